@@ -0,0 +1,47 @@
+package se.jereq.filesystem.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, taking the same options as the JMH runner. Unless other profilers are
+ * given with <code>-prof</code>, the GC profiler is added, so that the allocation rate of each
+ * benchmark is reported next to its score.
+ * <br><br>
+ * Build with <code>mvn package</code>, then run all benchmarks with
+ * <code>java -jar benchmarks/target/benchmarks.jar</code>, or a selection of them
+ * by giving a regular expression, such as <code>java -jar benchmarks/target/benchmarks.jar Path</code>.
+ */
+public class Benchmarks
+{
+	/**
+	 * Run the benchmarks.
+	 *
+	 * @param args the JMH command line options, <code>-h</code> lists them.
+	 * @throws Exception Thrown if the options are invalid or the benchmarks fail.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		if (cmdOptions.shouldHelp())
+		{
+			cmdOptions.showHelp();
+			return;
+		}
+
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(cmdOptions);
+		if (cmdOptions.getProfilers().isEmpty())
+			options.addProfiler(GCProfiler.class);
+
+		Runner runner = new Runner(options.build());
+		if (cmdOptions.shouldList())
+			runner.list();
+		else if (cmdOptions.shouldListWithParams())
+			runner.listWithParams(cmdOptions);
+		else
+			runner.run();
+	}
+}
@@ -0,0 +1,145 @@
+package se.jereq.filesystem.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jereq.filesystem.BlockDevice;
+import se.jereq.filesystem.CachingBlockDevice;
+import se.jereq.filesystem.DirectMemoryBlockDevice;
+import se.jereq.filesystem.MemoryBlockDevice;
+
+/**
+ * Throughput of reading and writing blocks on the in-memory block devices, one block at a time
+ * and vectored. Blocks are visited in order, wrapping around at the end of the device, so every
+ * block of the device is touched. Scores are in blocks per microsecond, which times the block
+ * size gives the throughput in bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockDeviceBenchmark
+{
+	private static final int DEVICE_SIZE = 16 * 1024 * 1024;
+	private static final int VECTOR_LENGTH = 16;
+
+	@Param({ "memory", "direct", "caching" })
+	public String device;
+
+	@Param({ "512", "4096" })
+	public int blockSize;
+
+	private BlockDevice m_Device;
+	private int m_nBlockCount;
+	private int m_nNext;
+	private byte[] m_abBlock;
+	private ByteBuffer m_Buffer;
+	private byte[] m_abVector;
+	private int[] m_anVector;
+
+	@Setup
+	public void setup()
+	{
+		m_nBlockCount = DEVICE_SIZE / blockSize;
+		switch (device)
+		{
+		case "memory":
+			m_Device = new MemoryBlockDevice(blockSize, m_nBlockCount);
+			break;
+		case "direct":
+			m_Device = new DirectMemoryBlockDevice(blockSize, m_nBlockCount);
+			break;
+		case "caching":
+			m_Device = new CachingBlockDevice(new MemoryBlockDevice(blockSize, m_nBlockCount));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown device " + device);
+		}
+
+		m_abBlock = new byte[blockSize];
+		for (int i = 0; i < blockSize; ++i)
+		{
+			m_abBlock[i] = (byte) i;
+		}
+		for (int i = 0; i < m_nBlockCount; ++i)
+		{
+			m_Device.writeBlock(i, m_abBlock, 0);
+		}
+
+		m_Buffer = ByteBuffer.allocateDirect(blockSize);
+		m_abVector = new byte[VECTOR_LENGTH * blockSize];
+		m_anVector = new int[VECTOR_LENGTH];
+	}
+
+	private int nextBlock()
+	{
+		int num = m_nNext;
+		m_nNext = num + 1 == m_nBlockCount ? 0 : num + 1;
+		return num;
+	}
+
+	private int[] nextBlocks()
+	{
+		for (int i = 0; i < VECTOR_LENGTH; ++i)
+		{
+			m_anVector[i] = nextBlock();
+		}
+
+		return m_anVector;
+	}
+
+	@Benchmark
+	public int readBlock()
+	{
+		return m_Device.readBlock(nextBlock(), m_abBlock, 0);
+	}
+
+	@Benchmark
+	public int writeBlock()
+	{
+		return m_Device.writeBlock(nextBlock(), m_abBlock, 0);
+	}
+
+	@Benchmark
+	public int readBlockBuffer()
+	{
+		m_Buffer.clear();
+		return m_Device.readBlock(nextBlock(), m_Buffer);
+	}
+
+	@Benchmark
+	public int writeBlockBuffer()
+	{
+		m_Buffer.clear();
+		return m_Device.writeBlock(nextBlock(), m_Buffer);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VECTOR_LENGTH)
+	public int readBlocks()
+	{
+		return m_Device.readBlocks(nextBlocks(), VECTOR_LENGTH, m_abVector, 0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VECTOR_LENGTH)
+	public int writeBlocks()
+	{
+		return m_Device.writeBlocks(nextBlocks(), VECTOR_LENGTH, m_abVector, 0);
+	}
+}
@@ -0,0 +1,194 @@
+package se.jereq.filesystem.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.jereq.filesystem.Filesystem;
+import se.jereq.filesystem.MemoryBlockDevice;
+
+/**
+ * The operations of a {@link Filesystem} on a {@link MemoryBlockDevice}, on files of different
+ * sizes. Operations that add to the filesystem are paired with removing what they added, so the
+ * filesystem looks the same at the start of every invocation, except for {@link #rm}, which removes
+ * files created for a whole iteration. Every result is checked, so that an operation starting to
+ * fail is not measured as the error path without notice.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesystemBenchmark
+{
+	private static final int DEVICE_SIZE = 64 * 1024 * 1024;
+	// Appending starts over once the file has grown this many times its starting size
+	private static final int APPEND_LIMIT = 64;
+	// The number of files removed in each iteration of the rm benchmark, all created before it
+	private static final int RM_BATCH = 256;
+
+	private static final String[] DIRECTORY = path("/bench");
+	private static final String[] SOURCE = path("/bench/source");
+	private static final String[] NEW = path("/bench/new");
+	private static final String[] APPENDED = path("/bench/appended");
+	private static final String[] MOVED = path("/bench/moved");
+	private static final String[] RENAMED = path("/bench/renamed");
+
+	@Param({ "512", "4096" })
+	public int blockSize;
+
+	@Param({ "64", "65536" })
+	public int fileSize;
+
+	private Filesystem m_Filesystem;
+	private byte[] m_abContents;
+	private int m_nAppends;
+	private boolean m_bRenamed;
+
+	static String[] path(String path)
+	{
+		return path.split("/", -1);
+	}
+
+	static String check(String result, String expected)
+	{
+		if (!result.endsWith(expected))
+			throw new IllegalStateException(result);
+
+		return result;
+	}
+
+	static String checkStart(String result, String expected)
+	{
+		if (!result.startsWith(expected))
+			throw new IllegalStateException(result);
+
+		return result;
+	}
+
+	/**
+	 * The files removed by {@link FilesystemBenchmark#rm}, all created before each iteration, as
+	 * setting up each invocation would take longer than removing a file. JMH sets up an instance of
+	 * the benchmark of its own for the state, so the files are created and removed in the filesystem
+	 * of that instance.
+	 */
+	@State(Scope.Thread)
+	public static class Removable
+	{
+		private Filesystem m_Filesystem;
+		private String[][] m_aasPaths = new String[RM_BATCH][];
+		private int m_nNext;
+
+		@Setup
+		public void setup(FilesystemBenchmark benchmark)
+		{
+			m_Filesystem = benchmark.m_Filesystem;
+			for (int i = 0; i < RM_BATCH; ++i)
+			{
+				m_aasPaths[i] = path("/bench/rm" + i);
+			}
+		}
+
+		@Setup(Level.Iteration)
+		public void create(FilesystemBenchmark benchmark)
+		{
+			m_nNext = 0;
+			for (String[] path : m_aasPaths)
+			{
+				check(m_Filesystem.create(path, benchmark.m_abContents), "created successfully");
+			}
+		}
+	}
+
+	@Setup
+	public void setup()
+	{
+		m_Filesystem = new Filesystem(new MemoryBlockDevice(blockSize, DEVICE_SIZE / blockSize));
+		m_Filesystem.format();
+
+		m_abContents = new byte[fileSize];
+		Arrays.fill(m_abContents, (byte) 'x');
+
+		check(m_Filesystem.mkdir(DIRECTORY), "created successfully");
+		check(m_Filesystem.create(SOURCE, m_abContents), "created successfully");
+		check(m_Filesystem.create(APPENDED, m_abContents), "created successfully");
+		check(m_Filesystem.create(MOVED, m_abContents), "created successfully");
+	}
+
+	@Benchmark
+	public void createRemove(Blackhole bh)
+	{
+		bh.consume(check(m_Filesystem.create(NEW, m_abContents), "created successfully"));
+		bh.consume(check(m_Filesystem.rm(NEW), "Deleted file /bench/new"));
+	}
+
+	/**
+	 * Each iteration removes every file of {@link Removable} once, timed as a whole and reported per file.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 5, batchSize = RM_BATCH)
+	@Measurement(iterations = 20, batchSize = RM_BATCH)
+	@OperationsPerInvocation(RM_BATCH)
+	public String rm(Removable files)
+	{
+		return checkStart(files.m_Filesystem.rm(files.m_aasPaths[files.m_nNext++]), "Deleted file /bench/rm");
+	}
+
+	@Benchmark
+	public String cat()
+	{
+		return checkStart(m_Filesystem.cat(SOURCE), "Dumping contents of /bench/source (" + fileSize + " bytes):");
+	}
+
+	@Benchmark
+	public String ls()
+	{
+		return checkStart(m_Filesystem.ls(DIRECTORY), "Listing directory /bench\n\nName");
+	}
+
+	@Benchmark
+	public void copyRemove(Blackhole bh)
+	{
+		bh.consume(check(m_Filesystem.copy(SOURCE, NEW), "copied successfully to /bench/new"));
+		bh.consume(check(m_Filesystem.rm(NEW), "Deleted file /bench/new"));
+	}
+
+	@Benchmark
+	public String append()
+	{
+		if (++m_nAppends == APPEND_LIMIT)
+		{
+			m_nAppends = 0;
+			check(m_Filesystem.rm(APPENDED), "Deleted file /bench/appended");
+			return check(m_Filesystem.create(APPENDED, m_abContents), "created successfully");
+		}
+
+		return check(m_Filesystem.append(SOURCE, APPENDED), "Appended /bench/source to /bench/appended");
+	}
+
+	@Benchmark
+	public String rename()
+	{
+		m_bRenamed = !m_bRenamed;
+		if (m_bRenamed)
+			return check(m_Filesystem.rename(MOVED, RENAMED), "renamed successfully to /bench/renamed");
+		else
+			return check(m_Filesystem.rename(RENAMED, MOVED), "renamed successfully to /bench/moved");
+	}
+}
@@ -0,0 +1,102 @@
+package se.jereq.filesystem.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jereq.filesystem.Filesystem;
+import se.jereq.filesystem.MemoryBlockDevice;
+import se.jereq.filesystem.Session;
+
+/**
+ * Path resolution at different depths and directory sizes. A chain of <code>depth</code>
+ * directories is created, and the deepest of them is filled with <code>entries</code> small
+ * files. Paths to the last file are looked up from the root, relative to a session working in
+ * the deepest directory, and for a file that does not exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark
+{
+	private static final int BLOCK_SIZE = 512;
+	private static final int BLOCK_COUNT = 65536;
+
+	@Param({ "1", "4", "16" })
+	public int depth;
+
+	@Param({ "10", "1000" })
+	public int entries;
+
+	private Filesystem m_Filesystem;
+	private Session m_Session;
+	private String[] m_asFile;
+	private String[] m_asMissing;
+	private String[] m_asRelative;
+	private String[] m_asDirectory;
+
+	@Setup
+	public void setup()
+	{
+		m_Filesystem = new Filesystem(new MemoryBlockDevice(BLOCK_SIZE, BLOCK_COUNT));
+		m_Filesystem.format();
+
+		StringBuilder dir = new StringBuilder();
+		for (int i = 0; i < depth; ++i)
+		{
+			dir.append("/d").append(i);
+			FilesystemBenchmark.check(m_Filesystem.mkdir(FilesystemBenchmark.path(dir.toString())), "created successfully");
+		}
+
+		byte[] contents = "contents".getBytes();
+		for (int i = 0; i < entries; ++i)
+		{
+			FilesystemBenchmark.check(m_Filesystem.create(FilesystemBenchmark.path(dir + "/f" + i), contents), "created successfully");
+		}
+
+		m_asDirectory = FilesystemBenchmark.path(dir.toString());
+		m_asFile = FilesystemBenchmark.path(dir + "/f" + (entries - 1));
+		m_asMissing = FilesystemBenchmark.path(dir + "/missing");
+		m_asRelative = FilesystemBenchmark.path("f" + (entries - 1));
+
+		m_Session = m_Filesystem.openSession();
+		FilesystemBenchmark.check(m_Session.cd(m_asDirectory), dir.toString());
+	}
+
+	@Benchmark
+	public String catAbsolute()
+	{
+		return m_Filesystem.cat(m_asFile);
+	}
+
+	@Benchmark
+	public String catRelative()
+	{
+		return m_Session.cat(m_asRelative);
+	}
+
+	@Benchmark
+	public String catMissing()
+	{
+		return m_Filesystem.cat(m_asMissing);
+	}
+
+	@Benchmark
+	public String ls()
+	{
+		return m_Filesystem.ls(m_asDirectory);
+	}
+}
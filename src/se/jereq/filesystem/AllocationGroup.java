@@ -0,0 +1,439 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One allocation group of a {@link FreeListNode}: the blocks described by a single block of the
+ * stored free list, with their own part of the bitmap, summary levels, free count and lock, so that
+ * threads taking and freeing blocks in different groups do not wait for each other.
+ * <br><br>
+ * The bitmap is processed 64 bits at a time. Above it, summary levels kept in memory hold one bit
+ * for each word of the level below, set when that word is full, so finding a free block reads a
+ * single word per level no matter how full the group is.
+ * <br><br>
+ * All methods are synchronized on the group, except for reading the free count and whether the
+ * group is dirty, which lets a group be passed over without locking it.
+ */
+public class AllocationGroup {
+
+	private static final long FULL = -1L;
+
+	private final int index;
+	private final int first;
+	private final byte[] bitmap;
+	private final int offset;
+	private final LongBuffer words;
+	// Level 0 has one bit for each word of the bitmap, every other level one bit for each word of the level below
+	private long[][] summary;
+	private volatile int freeCount;
+	private volatile boolean dirty;
+	// The free count of the whole free list, and one bit for each group set while it is full, kept up to date by the groups
+	private final AtomicInteger total;
+	private final AtomicLongArray full;
+	// Blocks free in the stored free list, but still taken in the bitmap, as offsets from the first block
+	private BitSet pinned = new BitSet();
+	private BitSet released = new BitSet();
+
+	/**
+	 * constructor.
+	 *
+	 * @param bitmap byte array holding all free list blocks back to back.
+	 * @param index the index of the group, which is the index of its block within the free list.
+	 * @param blockSize the size of each block in bytes, a multiple of 8.
+	 * @param total the free count of the whole free list, which the free blocks of the group are added to.
+	 * @param full the bits of the groups of the free list, one for each group, where the bit of
+	 * this group is kept set while it is full.
+	 */
+	public AllocationGroup(byte[] bitmap, int index, int blockSize, AtomicInteger total, AtomicLongArray full)
+	{
+		this.index = index;
+		first = index * blockSize * 8;
+		this.bitmap = bitmap;
+		offset = index * blockSize;
+		words = ByteBuffer.wrap(bitmap, offset, blockSize).slice().asLongBuffer();
+		this.total = total;
+		this.full = full;
+
+		summarize();
+		total.addAndGet(freeCount);
+		setFull(freeCount == 0);
+	}
+
+	private void setFull(boolean isFull)
+	{
+		long bit = 1L << (63 - index % 64);
+		if (isFull)
+			full.getAndUpdate(index / 64, word -> word | bit);
+		else
+			full.getAndUpdate(index / 64, word -> word & ~bit);
+	}
+
+	/**
+	 * Build the summary levels and free count from the bitmap.
+	 */
+	private void summarize()
+	{
+		int levels = 0;
+		int count = words.capacity();
+		do
+		{
+			count = (count + 63) / 64;
+			++levels;
+		}
+		while (count > 1);
+
+		summary = new long[levels][];
+		count = words.capacity();
+		for (int level = 0; level < levels; ++level)
+		{
+			summary[level] = new long[(count + 63) / 64];
+
+			// Bits past the end of a level describe nothing, and are always full
+			if (count % 64 != 0)
+				summary[level][count / 64] = FULL >>> (count % 64);
+
+			count = summary[level].length;
+		}
+
+		int free = 0;
+		for (int i = 0; i < words.capacity(); ++i)
+		{
+			long word = words.get(i);
+			free += 64 - Long.bitCount(word);
+
+			if (word == FULL)
+				setSummary(0, i, true);
+		}
+
+		freeCount = free;
+	}
+
+	private void setSummary(int level, int index, boolean full)
+	{
+		for (; level < summary.length; ++level)
+		{
+			long[] bits = summary[level];
+			int word = index / 64;
+			long old = bits[word];
+			long bit = 1L << (63 - index % 64);
+
+			bits[word] = full ? old | bit : old & ~bit;
+
+			// The level above only changes when this word becomes or stops being full
+			if ((old == FULL) == (bits[word] == FULL))
+				break;
+
+			index = word;
+		}
+	}
+
+	private void setWord(int index, long value, boolean store)
+	{
+		long old = words.get(index);
+		if (old == value)
+			return;
+
+		words.put(index, value);
+
+		int change = Long.bitCount(old) - Long.bitCount(value);
+		freeCount += change;
+		total.addAndGet(change);
+		if ((freeCount == 0) != (freeCount - change == 0))
+			setFull(freeCount == 0);
+		if (store)
+			dirty = true;
+
+		if ((old == FULL) != (value == FULL))
+			setSummary(0, index, value == FULL);
+	}
+
+	/**
+	 * @param start the offset of the first block from the first block of the group.
+	 * @param store <code>false</code> if the stored free list does not change, as for pinned blocks.
+	 */
+	private void setRange(int start, int count, boolean taken, boolean store)
+	{
+		int end = start + count;
+		while (start < end)
+		{
+			int index = start / 64;
+			int bit = start % 64;
+			int bits = Math.min(64 - bit, end - start);
+
+			long mask = FULL >>> bit;
+			if (bit + bits < 64)
+				mask &= ~(FULL >>> (bit + bits));
+
+			long word = words.get(index);
+			setWord(index, taken ? word | mask : word & ~mask, store);
+
+			start += bits;
+		}
+	}
+
+	private long getWord(int level, int index)
+	{
+		return level < 0 ? words.get(index) : summary[level][index];
+	}
+
+	/**
+	 * Find the first bit at or after a position that is not set, either in the bitmap
+	 * (level -1) or in one of the summary levels. Full words are skipped using the level above.
+	 *
+	 * @return The position of the bit, or -1 if all following bits are set.
+	 */
+	private int findClear(int level, int from)
+	{
+		int index = from / 64;
+		int wordCount = level < 0 ? words.capacity() : summary[level].length;
+		if (index >= wordCount)
+			return -1;
+
+		// Ignore the bits before the position
+		long word = getWord(level, index) | ~(FULL >>> (from % 64));
+		if (word == FULL)
+		{
+			if (level + 1 == summary.length)
+				return -1;
+
+			int next = findClear(level + 1, index + 1);
+			if (next == -1)
+				return -1;
+
+			index = next;
+			word = getWord(level, index);
+		}
+
+		return index * 64 + Long.numberOfLeadingZeros(~word);
+	}
+
+	/**
+	 * Get the number of free blocks in a row from a free block, stopping once <code>max</code> is reached.
+	 */
+	private int freeRunLength(int start, int max)
+	{
+		int end = words.capacity() * 64;
+
+		int pos = start;
+		while (pos - start < max && pos < end)
+		{
+			int bit = pos % 64;
+			int free = Math.min(Long.numberOfLeadingZeros(words.get(pos / 64) << bit), 64 - bit);
+			pos += free;
+
+			if (free < 64 - bit)
+				break;
+		}
+
+		return pos - start;
+	}
+
+	/**
+	 * Get the offset within the group of a goal block, or 0 if it is in another group.
+	 */
+	private int offsetOf(int goal)
+	{
+		return goal >= first && goal < first + getBlockCount() ? goal - first : 0;
+	}
+
+	/**
+	 * Get the number of a free block of the group and mark it as taken. The first free block at
+	 * or after the goal is used, so that blocks taken one after the other are close together.
+	 *
+	 * @param goal the number of the block to start looking from, or -1 to start at the beginning of the group.
+	 * @return The number of the taken free block, or -1 if the group is full.
+	 */
+	public synchronized int getNewBlock(int goal)
+	{
+		int from = offsetOf(goal);
+		int num = findClear(-1, from);
+		if (num == -1 && from > 0)
+			num = findClear(-1, 0);
+		if (num == -1)
+			return -1;
+
+		setRange(num, 1, true, true);
+		return first + num;
+	}
+
+	/**
+	 * Find a run of consecutive free blocks in the group and mark them as taken. The first run
+	 * long enough at or after the goal is used, or else the first one in the group.
+	 *
+	 * @param count the number of blocks to take.
+	 * @param goal the number of the block to start looking from, or -1 to start at the beginning of the group.
+	 * @return The number of the first taken block, or -1 if there is no run of <code>count</code> free blocks.
+	 */
+	public synchronized int getNewBlocks(int count, int goal)
+	{
+		if (count <= 0 || count > freeCount)
+			return -1;
+
+		int from = offsetOf(goal);
+		int start = findRun(from, words.capacity() * 64, count);
+		if (start == -1 && from > 0)
+			start = findRun(0, from, count);
+		if (start == -1)
+			return -1;
+
+		setRange(start, count, true, true);
+		return first + start;
+	}
+
+	/**
+	 * @return The offset of the first run of <code>count</code> free blocks starting in [<code>from</code>, <code>end</code>), or -1.
+	 */
+	private int findRun(int from, int end, int count)
+	{
+		int start = findClear(-1, from);
+		while (start != -1 && start < end)
+		{
+			int length = freeRunLength(start, count);
+			if (length >= count)
+				return start;
+
+			// The block after the run is taken
+			start = findClear(-1, start + length);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Mark a run of consecutive blocks of the group as free. The blocks stay pinned until
+	 * {@link #unpin} is called. Blocks already free are left alone.
+	 *
+	 * @param start the number of the first block to free.
+	 * @param count the number of blocks to free.
+	 */
+	public synchronized void freeBlocks(int start, int count)
+	{
+		for (int num = start - first; num < start - first + count; ++num)
+		{
+			if ((words.get(num / 64) & (1L << (63 - num % 64))) == 0 || pinned.get(num))
+				continue;
+
+			pinned.set(num);
+			released.set(num);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Let pinned blocks of the group be handed out again, now that freeing them can no longer be undone.
+	 * Blocks not pinned and blocks of other groups are left alone.
+	 *
+	 * @param blocks the numbers of the blocks to unpin, usually blocks released earlier.
+	 */
+	public synchronized void unpin(BitSet blocks)
+	{
+		int end = first + getBlockCount();
+		for (int num = blocks.nextSetBit(first); num != -1 && num < end; num = blocks.nextSetBit(num + 1))
+		{
+			if (pinned.get(num - first))
+			{
+				setRange(num - first, 1, false, false);
+				pinned.clear(num - first);
+			}
+		}
+	}
+
+	/**
+	 * Mark blocks as taken while the free list is being created, without any
+	 * of the bookkeeping of blocks taken later on.
+	 *
+	 * @param start the number of the first block to take.
+	 * @param count the number of blocks to take.
+	 */
+	synchronized void take(int start, int count)
+	{
+		setRange(start - first, count, true, true);
+	}
+
+	/**
+	 * Get the number of the first block of the group.
+	 *
+	 * @return The number of the first block described by the group.
+	 */
+	public int getFirstBlock()
+	{
+		return first;
+	}
+
+	/**
+	 * Get the number of blocks described by the group, including any past the end of the filesystem.
+	 *
+	 * @return The number of blocks in the group.
+	 */
+	public int getBlockCount()
+	{
+		return words.capacity() * 64;
+	}
+
+	/**
+	 * Get the number of blocks of the group currently free, not counting pinned blocks.
+	 * May be read without locking the group, in which case it may be out of date once returned.
+	 *
+	 * @return The number of blocks that can still be taken from the group.
+	 */
+	public int getFreeCount()
+	{
+		return freeCount;
+	}
+
+	/**
+	 * Check if the block of the free list storing the group has changed since it was last stored.
+	 *
+	 * @return <code>true</code> if the block needs to be stored.
+	 */
+	public boolean isDirty()
+	{
+		return dirty;
+	}
+
+	/**
+	 * Mark the block storing the group as stored.
+	 */
+	public synchronized void clearDirty()
+	{
+		dirty = false;
+	}
+
+	/**
+	 * Get and forget the blocks of the group freed since the released blocks were last taken.
+	 * These may still be in use on the device until the change to the free list has been stored.
+	 *
+	 * @return The set of released block numbers.
+	 */
+	public synchronized BitSet takeReleased()
+	{
+		BitSet res = new BitSet();
+		for (int num = released.nextSetBit(0); num != -1; num = released.nextSetBit(num + 1))
+		{
+			res.set(first + num);
+		}
+
+		released.clear();
+		return res;
+	}
+
+	/**
+	 * Copy the block of the free list storing the group, in order to store it. Pinned blocks are free in the copy.
+	 *
+	 * @param dest the array to copy the block to.
+	 * @param offset the index in <code>dest</code> where the block should be placed.
+	 */
+	public synchronized void copyStorageBlock(byte[] dest, int offset)
+	{
+		System.arraycopy(bitmap, this.offset, dest, offset, words.capacity() * 8);
+
+		for (int num = pinned.nextSetBit(0); num != -1; num = pinned.nextSetBit(num + 1))
+		{
+			dest[offset + num / 8] &= ~(0x80 >>> (num % 8));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package se.jereq.filesystem;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A block storing device accepting several requests at once. Each request returns at once with
+ * a <code>CompletableFuture</code> completed when the transfer is done, with the same result codes
+ * as the matching method of {@link BlockDevice}. Failures of the backing storage complete the
+ * future exceptionally.
+ * <br><br>
+ * At most {@link #getQueueDepth} requests are in flight. Further requests are queued, and started
+ * as earlier requests complete, so making a request never blocks the calling thread and requests
+ * may be made from the completion of others. Requests in flight at the same time may complete
+ * in any order, so the caller must not have two of them touch the same block, nor touch an
+ * array before the request using it completes.
+ * <br><br>
+ * See {@link AsyncBlockDeviceAdapter} to use a {@link BlockDevice} through this interface,
+ * and {@link BlockingBlockDevice} for the other way around.
+ */
+public interface AsyncBlockDevice
+{
+	/**
+	 * Get the size of the blocks on this device.
+	 *
+	 * @return The size of a single block in bytes.
+	 */
+	int getBlockSize();
+
+	/**
+	 * Get the number of blocks on this device.
+	 *
+	 * @return The number of blocks, valid block numbers are in the range [0, count).
+	 */
+	int getBlockCount();
+
+	/**
+	 * Get the largest number of requests in flight at once.
+	 *
+	 * @return The queue depth of the device, at least 1.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Start writing a block to "disk" from part of an array.
+	 *
+	 * @param p_nBlockNr the block to be overwritten, in the range [0, {@link #getBlockCount()}).
+	 * @param p_abContents the byte array holding the data to be written.
+	 * @param p_nOffset the index in <code>p_abContents</code> where the block starts.
+	 * There must be at least a block size of bytes from the offset to the end of the array.
+	 * @return A future completed with -1 if the block number is invalid and -2 if the array range
+	 * is invalid. Otherwise with 1 once the block is written.
+	 */
+	CompletableFuture<Integer> writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset);
+
+	/**
+	 * Start reading a block from "disk" into part of an array.
+	 *
+	 * @param p_nBlockNr the block to be read, in the range [0, {@link #getBlockCount()}).
+	 * @param p_abBuffer the byte array to read the block into.
+	 * @param p_nOffset the index in <code>p_abBuffer</code> where the block should be placed.
+	 * There must be room for at least a block size of bytes from the offset to the end of the array.
+	 * @return A future completed with -1 if the block number is invalid and -2 if the array range
+	 * is invalid. Otherwise with 1 once the block is in the array.
+	 */
+	CompletableFuture<Integer> readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset);
+
+	/**
+	 * Make sure all blocks written by completed requests have reached the storage backing the device.
+	 *
+	 * @return A future completed when the written blocks are stored.
+	 */
+	CompletableFuture<Void> flush();
+}
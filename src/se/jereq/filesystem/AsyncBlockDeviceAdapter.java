@@ -0,0 +1,174 @@
+package se.jereq.filesystem;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Makes a {@link BlockDevice} usable as an {@link AsyncBlockDevice}, by running its requests on
+ * other threads. Unless an executor is given, the requests run one after the other on a single
+ * thread of the adapter, so the device does not have to be thread-safe, while the caller is free
+ * to do other work in the meantime. A device safe for concurrent use of different blocks, such as
+ * a {@link MemoryBlockDevice} or a {@link MappedBlockDevice}, can be given an executor with several
+ * threads to have requests overlap.
+ * <br><br>
+ * Requests beyond the queue depth wait in a {@link RequestQueue}, so making one never blocks,
+ * and requests may be made from the completion of others.
+ */
+public class AsyncBlockDeviceAdapter implements AsyncBlockDevice
+{
+	/**
+	 * The queue depth used if none is given.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 32;
+
+	private final BlockDevice m_Device;
+	private final int m_nQueueDepth;
+	private final RequestQueue m_Queue;
+	private final Executor m_Executor;
+	// The executor created by the adapter, shut down by close
+	private final ExecutorService m_OwnExecutor;
+
+	/**
+	 * constructor. Runs requests on a thread of the adapter, keeping up to <code>DEFAULT_QUEUE_DEPTH</code> queued.
+	 *
+	 * @param device the device to run requests on.
+	 */
+	public AsyncBlockDeviceAdapter(BlockDevice device)
+	{
+		this(device, DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * constructor. Runs requests on a thread of the adapter.
+	 *
+	 * @param device the device to run requests on.
+	 * @param queueDepth the largest number of requests in flight at once.
+	 * @throws IllegalArgumentException Thrown if the queue depth is not positive.
+	 */
+	public AsyncBlockDeviceAdapter(BlockDevice device, int queueDepth)
+	{
+		this(device, queueDepth, Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "AsyncBlockDeviceAdapter");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device to run requests on. Must be safe for concurrent use by the threads of the executor.
+	 * @param queueDepth the largest number of requests in flight at once.
+	 * @param executor the executor to run requests on.
+	 * @throws IllegalArgumentException Thrown if the queue depth is not positive.
+	 */
+	public AsyncBlockDeviceAdapter(BlockDevice device, int queueDepth, Executor executor)
+	{
+		this(device, queueDepth, executor, false);
+	}
+
+	private AsyncBlockDeviceAdapter(BlockDevice device, int queueDepth, Executor executor, boolean ownExecutor)
+	{
+		if (queueDepth <= 0)
+			throw new IllegalArgumentException("Invalid queue depth");
+
+		m_Device = device;
+		m_nQueueDepth = queueDepth;
+		m_Queue = new RequestQueue(queueDepth);
+		m_Executor = executor;
+		m_OwnExecutor = ownExecutor ? (ExecutorService) executor : null;
+	}
+
+	/**
+	 * Get the device requests are run on.
+	 *
+	 * @return The device given to the constructor.
+	 */
+	public BlockDevice getDevice()
+	{
+		return m_Device;
+	}
+
+	public int getBlockSize()
+	{
+		return m_Device.getBlockSize();
+	}
+
+	public int getBlockCount()
+	{
+		return m_Device.getBlockCount();
+	}
+
+	public int getQueueDepth()
+	{
+		return m_nQueueDepth;
+	}
+
+	/**
+	 * Run a request once there is room for it in the queue.
+	 *
+	 * @param slots the number of slots of the queue the request takes.
+	 */
+	private <T> CompletableFuture<T> submit(int slots, Supplier<T> request)
+	{
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		m_Queue.submit(slots, () -> {
+			try
+			{
+				CompletableFuture.supplyAsync(request, m_Executor).whenComplete((value, failure) -> {
+					// Room is made before the caller continues, for any request it makes from here
+					m_Queue.done(slots);
+
+					if (failure == null)
+						result.complete(value);
+					else if (failure instanceof CompletionException && failure.getCause() != null)
+						result.completeExceptionally(failure.getCause());
+					else
+						result.completeExceptionally(failure);
+				});
+			}
+			catch (RuntimeException ex)
+			{
+				m_Queue.done(slots);
+				result.completeExceptionally(ex);
+			}
+		});
+
+		return result;
+	}
+
+	public CompletableFuture<Integer> writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		return submit(1, () -> m_Device.writeBlock(p_nBlockNr, p_abContents, p_nOffset));
+	}
+
+	public CompletableFuture<Integer> readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		return submit(1, () -> m_Device.readBlock(p_nBlockNr, p_abBuffer, p_nOffset));
+	}
+
+	/**
+	 * The device is flushed once the requests made before have completed, and requests made after wait for the flush.
+	 */
+	public CompletableFuture<Void> flush()
+	{
+		return submit(m_nQueueDepth, () -> {
+			m_Device.flush();
+			return null;
+		});
+	}
+
+	/**
+	 * Stop the thread of the adapter once the queued requests are done. Has no effect if an
+	 * executor was given to the constructor.
+	 */
+	public void close()
+	{
+		if (m_OwnExecutor != null)
+			m_OwnExecutor.shutdown();
+	}
+}
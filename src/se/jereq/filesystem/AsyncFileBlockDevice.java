@@ -0,0 +1,221 @@
+package se.jereq.filesystem;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Implements {@link AsyncBlockDevice} on an image file, using an <code>AsynchronousFileChannel</code>
+ * so that many reads and writes can be in progress at once without a thread waiting for each.
+ * The image must be closed with {@link #close} when no longer used.
+ * <br><br>
+ * Requests beyond the queue depth wait in a {@link RequestQueue}, so making one never blocks,
+ * and requests may be made from the completion of others.
+ */
+public class AsyncFileBlockDevice implements AsyncBlockDevice
+{
+	/**
+	 * The queue depth used if none is given.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 32;
+
+	private final int m_nBlockSize;
+	private final int m_nBlockCount;
+	private final int m_nQueueDepth;
+	private final RequestQueue m_Queue;
+	private final AsynchronousFileChannel m_Channel;
+
+	/**
+	 * constructor. Opens an image file, creating it if it does not exist, keeping up to
+	 * <code>DEFAULT_QUEUE_DEPTH</code> requests in flight.
+	 *
+	 * @param file the image file to open. Must either be empty or have the size of a complete device.
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @throws IOException Thrown if the file has an invalid size or can not be opened.
+	 */
+	public AsyncFileBlockDevice(File file, int blockSize, int blockCount) throws IOException
+	{
+		this(file, blockSize, blockCount, DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * constructor. Opens an image file, creating it if it does not exist.
+	 *
+	 * @param file the image file to open. Must either be empty or have the size of a complete device.
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @param queueDepth the largest number of requests in flight at once.
+	 * @throws IOException Thrown if the file has an invalid size or can not be opened.
+	 * @throws IllegalArgumentException Thrown if the geometry or queue depth is not positive.
+	 */
+	public AsyncFileBlockDevice(File file, int blockSize, int blockCount, int queueDepth) throws IOException
+	{
+		if (blockSize <= 0 || blockCount <= 0)
+			throw new IllegalArgumentException("Invalid device geometry");
+		if (queueDepth <= 0)
+			throw new IllegalArgumentException("Invalid queue depth");
+
+		long deviceSize = (long) blockCount * blockSize;
+
+		RandomAccessFile image = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (image.length() != 0 && image.length() != deviceSize)
+				throw new IOException("Invalid file size");
+
+			image.setLength(deviceSize);
+		}
+		finally
+		{
+			image.close();
+		}
+
+		m_nBlockSize = blockSize;
+		m_nBlockCount = blockCount;
+		m_nQueueDepth = queueDepth;
+		m_Queue = new RequestQueue(queueDepth);
+		m_Channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	public int getBlockSize()
+	{
+		return m_nBlockSize;
+	}
+
+	public int getBlockCount()
+	{
+		return m_nBlockCount;
+	}
+
+	public int getQueueDepth()
+	{
+		return m_nQueueDepth;
+	}
+
+	/**
+	 * Check the arguments of a request.
+	 *
+	 * @return -1 if the block number is invalid and -2 if the array range is invalid. Otherwise 1.
+	 */
+	private int check(int blockNr, byte[] array, int offset)
+	{
+		if (blockNr >= m_nBlockCount || blockNr < 0)
+			return -1;
+
+		if (offset < 0 || offset > array.length - m_nBlockSize)
+			return -2;
+
+		return 1;
+	}
+
+	/**
+	 * Start transferring a whole block, continuing until every byte is transferred.
+	 */
+	private CompletableFuture<Integer> transfer(int blockNr, byte[] array, int offset, final boolean write)
+	{
+		int res = check(blockNr, array, offset);
+		if (res < 0)
+			return CompletableFuture.completedFuture(res);
+
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		final ByteBuffer buffer = ByteBuffer.wrap(array, offset, m_nBlockSize);
+		final long start = (long) blockNr * m_nBlockSize - offset;
+
+		final CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer count, Void attachment)
+			{
+				if (count < 0)
+				{
+					failed(new EOFException("Unexpected end of image"), attachment);
+				}
+				else if (buffer.hasRemaining())
+				{
+					// The position in the file follows the position in the array
+					if (write)
+						m_Channel.write(buffer, start + buffer.position(), null, this);
+					else
+						m_Channel.read(buffer, start + buffer.position(), null, this);
+				}
+				else
+				{
+					m_Queue.done(1);
+					result.complete(1);
+				}
+			}
+
+			public void failed(Throwable failure, Void attachment)
+			{
+				m_Queue.done(1);
+				result.completeExceptionally(failure);
+			}
+		};
+
+		m_Queue.submit(1, () -> {
+			try
+			{
+				if (write)
+					m_Channel.write(buffer, start + buffer.position(), null, handler);
+				else
+					m_Channel.read(buffer, start + buffer.position(), null, handler);
+			}
+			catch (RuntimeException ex)
+			{
+				handler.failed(ex, null);
+			}
+		});
+
+		return result;
+	}
+
+	public CompletableFuture<Integer> writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		return transfer(p_nBlockNr, p_abContents, p_nOffset, true);
+	}
+
+	public CompletableFuture<Integer> readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		return transfer(p_nBlockNr, p_abBuffer, p_nOffset, false);
+	}
+
+	/**
+	 * The file is forced to storage once the requests made before have completed, and requests made
+	 * after wait for it. Forcing the file blocks the thread completing the last of the earlier requests.
+	 */
+	public CompletableFuture<Void> flush()
+	{
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		m_Queue.submit(m_nQueueDepth, () -> {
+			try
+			{
+				m_Channel.force(false);
+				m_Queue.done(m_nQueueDepth);
+				result.complete(null);
+			}
+			catch (IOException | RuntimeException ex)
+			{
+				m_Queue.done(m_nQueueDepth);
+				result.completeExceptionally(ex);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Close the image file. Requests in flight complete exceptionally.
+	 *
+	 * @throws IOException Thrown if the file could not be closed.
+	 */
+	public void close() throws IOException
+	{
+		m_Channel.close();
+	}
+}
@@ -1,35 +1,369 @@
 package se.jereq.filesystem;
 
+import java.nio.ByteBuffer;
+
 /**
- * Representation of a block storing device.
+ * Representation of a block storing device. The geometry of the device, its block size
+ * and block count, is fixed when the device is created.
  */
 public abstract class BlockDevice
 {
 	/**
-	 * The size of a single block supported.
+	 * The default size of a single block.
 	 */
 	public static final int BLOCK_SIZE = 512;
 	
 	/**
-	 * The number of blocks supported
+	 * The default number of blocks.
 	 */
 	public static final int BLOCK_COUNT = 250;
 	
+	private final int m_nBlockSize;
+	private final int m_nBlockCount;
+	
+	/**
+	 * constructor. Creates a device with the default geometry.
+	 */
+	protected BlockDevice()
+	{
+		this(BLOCK_SIZE, BLOCK_COUNT);
+	}
+	
+	/**
+	 * constructor.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @throws IllegalArgumentException Thrown if the size or count is not positive.
+	 */
+	protected BlockDevice(int blockSize, int blockCount)
+	{
+		if (blockSize <= 0 || blockCount <= 0)
+			throw new IllegalArgumentException("Invalid device geometry");
+		
+		m_nBlockSize = blockSize;
+		m_nBlockCount = blockCount;
+	}
+	
+	/**
+	 * Get the size of the blocks on this device.
+	 * 
+	 * @return The size of a single block in bytes.
+	 */
+	public final int getBlockSize()
+	{
+		return m_nBlockSize;
+	}
+	
+	/**
+	 * Get the number of blocks on this device.
+	 * 
+	 * @return The number of blocks, valid block numbers are in the range [0, count).
+	 */
+	public final int getBlockCount()
+	{
+		return m_nBlockCount;
+	}
+	
 	/**
-	 * Write a 512 byte block to "disk".
+	 * Write a block to "disk".
 	 * 
-	 * @param p_nBlockNr the block to be overwritten, in the range [0, 250).
-	 * @param p_abContents the byte array to be written, with a length of 512.
+	 * @param p_nBlockNr the block to be overwritten, in the range [0, {@link #getBlockCount()}).
+	 * @param p_abContents the byte array to be written, with a length of {@link #getBlockSize()}.
 	 * @return -1 if the block number is invalid and -2 if the byte array is an invalid length. Otherwise 1.
 	 */
 	public abstract int writeBlock(int p_nBlockNr, byte[] p_abContents);
 	
 	/**
-	 * Read a 512 byte block from "disk".
+	 * Read a block from "disk".
 	 * 
-	 * @param p_nBlockNr the block to be read, in the range [0, 250).
-	 * @return An empty array if the block number is invalid. Otherwise a copy of the block as an array of 512 byte.
+	 * @param p_nBlockNr the block to be read, in the range [0, {@link #getBlockCount()}).
+	 * @return An empty array if the block number is invalid. Otherwise a copy of the block
+	 * as an array of {@link #getBlockSize()} bytes.
 	 */
 	public abstract byte[] readBlock(int p_nBlockNr);
+	
+	/**
+	 * Write a block to "disk" from part of a larger array.
+	 * Implementations should override this to avoid the intermediate copy.
+	 * 
+	 * @param p_nBlockNr the block to be overwritten, in the range [0, {@link #getBlockCount()}).
+	 * @param p_abContents the byte array holding the data to be written.
+	 * @param p_nOffset the index in <code>p_abContents</code> where the block starts.
+	 * There must be at least a block size of bytes from the offset to the end of the array.
+	 * @return -1 if the block number is invalid and -2 if the array range is invalid. Otherwise 1.
+	 */
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		int blockSize = getBlockSize();
+		if (p_nOffset < 0 || p_nOffset > p_abContents.length - blockSize)
+			return -2;
+		
+		if (p_nOffset == 0 && p_abContents.length == blockSize)
+			return writeBlock(p_nBlockNr, p_abContents);
+		
+		byte[] abBlock = new byte[blockSize];
+		System.arraycopy(p_abContents, p_nOffset, abBlock, 0, blockSize);
+		return writeBlock(p_nBlockNr, abBlock);
+	}
+	
+	/**
+	 * Read a block from "disk" into part of a caller supplied array.
+	 * Implementations should override this to avoid allocating a new block.
+	 * 
+	 * @param p_nBlockNr the block to be read, in the range [0, {@link #getBlockCount()}).
+	 * @param p_abBuffer the byte array to read the block into.
+	 * @param p_nOffset the index in <code>p_abBuffer</code> where the block should be placed.
+	 * There must be room for at least a block size of bytes from the offset to the end of the array.
+	 * @return -1 if the block number is invalid and -2 if the array range is invalid. Otherwise 1.
+	 */
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		int blockSize = getBlockSize();
+		if (p_nOffset < 0 || p_nOffset > p_abBuffer.length - blockSize)
+			return -2;
+		
+		byte[] abBlock = readBlock(p_nBlockNr);
+		if (abBlock.length == 0)
+			return -1;
+		
+		System.arraycopy(abBlock, 0, p_abBuffer, p_nOffset, blockSize);
+		return 1;
+	}
+	
+	/**
+	 * Write a block to "disk" from the current position of a buffer.
+	 * On success the position of the buffer is advanced past the block.
+	 * 
+	 * @param p_nBlockNr the block to be overwritten, in the range [0, {@link #getBlockCount()}).
+	 * @param p_Buffer the buffer holding the data to be written, with at least a block size of bytes remaining.
+	 * @return -1 if the block number is invalid and -2 if too few bytes remain in the buffer. Otherwise 1.
+	 */
+	public int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		int blockSize = getBlockSize();
+		if (p_Buffer.remaining() < blockSize)
+			return -2;
+		
+		if (p_Buffer.hasArray())
+		{
+			int res = writeBlock(p_nBlockNr, p_Buffer.array(), p_Buffer.arrayOffset() + p_Buffer.position());
+			if (res == 1)
+				p_Buffer.position(p_Buffer.position() + blockSize);
+			
+			return res;
+		}
+		
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+			return -1;
+		
+		byte[] abBlock = new byte[blockSize];
+		p_Buffer.get(abBlock);
+		return writeBlock(p_nBlockNr, abBlock);
+	}
+	
+	/**
+	 * Read a block from "disk" into the current position of a buffer.
+	 * On success the position of the buffer is advanced past the block.
+	 * 
+	 * @param p_nBlockNr the block to be read, in the range [0, {@link #getBlockCount()}).
+	 * @param p_Buffer the buffer to read the block into, with room for at least a block size of bytes.
+	 * @return -1 if the block number is invalid and -2 if the buffer has too little room left. Otherwise 1.
+	 */
+	public int readBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		int blockSize = getBlockSize();
+		if (p_Buffer.remaining() < blockSize)
+			return -2;
+		
+		if (p_Buffer.hasArray())
+		{
+			int res = readBlock(p_nBlockNr, p_Buffer.array(), p_Buffer.arrayOffset() + p_Buffer.position());
+			if (res == 1)
+				p_Buffer.position(p_Buffer.position() + blockSize);
+			
+			return res;
+		}
+		
+		byte[] abBlock = readBlock(p_nBlockNr);
+		if (abBlock.length == 0)
+			return -1;
+		
+		p_Buffer.put(abBlock);
+		return 1;
+	}
+	
+	/**
+	 * Write several blocks to "disk" from consecutive parts of an array, block <code>i</code> of the
+	 * request being taken from index <code>p_nOffset + i * getBlockSize()</code>. Nothing is written
+	 * if any of the arguments is invalid. Implementations should override this to handle runs of
+	 * consecutive block numbers in a single operation.
+	 * 
+	 * @param p_anBlockNrs the blocks to be overwritten, each in the range [0, {@link #getBlockCount()}).
+	 * @param p_nCount the number of blocks to write, taken from the start of <code>p_anBlockNrs</code>.
+	 * @param p_abContents the byte array holding the data to be written.
+	 * @param p_nOffset the index in <code>p_abContents</code> where the first block starts.
+	 * There must be at least <code>p_nCount</code> blocks of bytes from the offset to the end of the array.
+	 * @return -1 if a block number is invalid and -2 if the count or array range is invalid. Otherwise 1.
+	 */
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abContents.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			writeBlock(p_anBlockNrs[i], p_abContents, p_nOffset + i * getBlockSize());
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Read several blocks from "disk" into consecutive parts of an array, block <code>i</code> of the
+	 * request being placed at index <code>p_nOffset + i * getBlockSize()</code>. Nothing is read
+	 * if any of the arguments is invalid. Implementations should override this to handle runs of
+	 * consecutive block numbers in a single operation.
+	 * 
+	 * @param p_anBlockNrs the blocks to be read, each in the range [0, {@link #getBlockCount()}).
+	 * @param p_nCount the number of blocks to read, taken from the start of <code>p_anBlockNrs</code>.
+	 * @param p_abBuffer the byte array to read the blocks into.
+	 * @param p_nOffset the index in <code>p_abBuffer</code> where the first block should be placed.
+	 * There must be room for at least <code>p_nCount</code> blocks of bytes from the offset to the end of the array.
+	 * @return -1 if a block number is invalid and -2 if the count or array range is invalid. Otherwise 1.
+	 */
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abBuffer.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			readBlock(p_anBlockNrs[i], p_abBuffer, p_nOffset + i * getBlockSize());
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Write several blocks to "disk" from the current position of a buffer, where they are stored
+	 * back to back. On success the position of the buffer is advanced past the blocks.
+	 * Nothing is written if any of the arguments is invalid.
+	 * 
+	 * @param p_anBlockNrs the blocks to be overwritten, each in the range [0, {@link #getBlockCount()}).
+	 * @param p_nCount the number of blocks to write, taken from the start of <code>p_anBlockNrs</code>.
+	 * @param p_Buffer the buffer holding the data to be written, with at least <code>p_nCount</code> blocks of bytes remaining.
+	 * @return -1 if a block number is invalid and -2 if the count is invalid or too few bytes remain in the buffer. Otherwise 1.
+	 */
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		if (p_Buffer.hasArray())
+		{
+			int res = writeBlocks(p_anBlockNrs, p_nCount, p_Buffer.array(), p_Buffer.arrayOffset() + p_Buffer.position());
+			if (res == 1)
+				p_Buffer.position(p_Buffer.position() + p_nCount * getBlockSize());
+			
+			return res;
+		}
+		
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			writeBlock(p_anBlockNrs[i], p_Buffer);
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Read several blocks from "disk" into the current position of a buffer, storing them
+	 * back to back. On success the position of the buffer is advanced past the blocks.
+	 * Nothing is read if any of the arguments is invalid.
+	 * 
+	 * @param p_anBlockNrs the blocks to be read, each in the range [0, {@link #getBlockCount()}).
+	 * @param p_nCount the number of blocks to read, taken from the start of <code>p_anBlockNrs</code>.
+	 * @param p_Buffer the buffer to read the blocks into, with room for at least <code>p_nCount</code> blocks of bytes.
+	 * @return -1 if a block number is invalid and -2 if the count is invalid or the buffer has too little room left. Otherwise 1.
+	 */
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		if (p_Buffer.hasArray())
+		{
+			int res = readBlocks(p_anBlockNrs, p_nCount, p_Buffer.array(), p_Buffer.arrayOffset() + p_Buffer.position());
+			if (res == 1)
+				p_Buffer.position(p_Buffer.position() + p_nCount * getBlockSize());
+			
+			return res;
+		}
+		
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			readBlock(p_anBlockNrs[i], p_Buffer);
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Check the arguments of a request for several blocks.
+	 * 
+	 * @param blockNrs the requested blocks.
+	 * @param count the number of blocks requested, from the start of <code>blockNrs</code>.
+	 * @param length the size of the array or buffer holding the blocks.
+	 * @param offset the index where the first block starts.
+	 * @return -1 if a block number is invalid and -2 if the count or range is invalid. Otherwise 1.
+	 */
+	protected final int checkBlocks(int[] blockNrs, int count, int length, int offset)
+	{
+		if (count < 0 || count > blockNrs.length)
+			return -2;
+		
+		if (offset < 0 || offset > length - (long) count * getBlockSize())
+			return -2;
+		
+		for (int i = 0; i < count; ++i)
+		{
+			if (blockNrs[i] >= getBlockCount() || blockNrs[i] < 0)
+				return -1;
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Get the length of a run of consecutive block numbers in a request.
+	 * 
+	 * @param blockNrs the requested blocks.
+	 * @param start the index in <code>blockNrs</code> where the run starts.
+	 * @param end the index in <code>blockNrs</code> where the request ends.
+	 * @return The number of blocks, at least 1, from <code>start</code> numbered one after the other.
+	 */
+	protected static int runLength(int[] blockNrs, int start, int end)
+	{
+		int length = 1;
+		while (start + length < end && blockNrs[start + length] == blockNrs[start] + length)
+		{
+			++length;
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Make sure all written blocks have reached the storage backing the device.
+	 * Devices without any backing storage have nothing to do.
+	 */
+	public void flush()
+	{
+	}
 
 }
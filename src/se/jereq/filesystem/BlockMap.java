@@ -0,0 +1,459 @@
+package se.jereq.filesystem;
+
+import java.util.Arrays;
+
+/**
+ * The map from the blocks of a file to the blocks of the device, stored as extents of consecutive
+ * blocks. The first extents are stored in the children area of the file <code>INode</code>, and any
+ * further extents in a chain of overflow blocks. A file stored in consecutive blocks only needs a
+ * single extent, no matter its size.
+ * <br><br>
+ * The whole map is kept in memory while in use. Changes must be saved with {@link #store},
+ * which writes any changed overflow blocks, after which the <code>INode</code> must be saved externally.
+ */
+public class BlockMap
+{
+	private static final int COUNT_OFFSET = 0;
+	private static final int OVERFLOW_OFFSET = COUNT_OFFSET + 4;
+	private static final int EXTENTS_OFFSET = OVERFLOW_OFFSET + 4;
+
+	private static final int NEXT_OFFSET = 0;
+	private static final int OVERFLOW_COUNT_OFFSET = NEXT_OFFSET + 4;
+	private static final int OVERFLOW_EXTENTS_OFFSET = OVERFLOW_COUNT_OFFSET + 4;
+
+	private static final int EXTENT_SIZE = 8;
+
+	private int m_nBlockSize;
+
+	private int[] m_anStart = new int[4];
+	private int[] m_anLength = new int[4];
+	// The index of the first block of each extent within the file
+	private int[] m_anFirst = new int[4];
+	private int m_nExtents = 0;
+	private int m_nBlocks = 0;
+
+	private int[] m_anOverflow = new int[0];
+	private int m_nFirstChanged = Integer.MAX_VALUE;
+
+	/**
+	 * constructor. Creates an empty map, for a new file.
+	 *
+	 * @param blockSize the block size of the filesystem.
+	 */
+	public BlockMap(int blockSize)
+	{
+		m_nBlockSize = blockSize;
+		m_nFirstChanged = 0;
+	}
+
+	/**
+	 * constructor. Loads the map of an existing file. Files stored inline have an empty map.
+	 *
+	 * @param file the <code>INode</code> of the file.
+	 * @param device the device to read any overflow blocks from.
+	 */
+	public BlockMap(INode file, BlockDevice device)
+	{
+		byte[] block = file.getBlock();
+		m_nBlockSize = block.length;
+		if (file.isInline())
+		{
+			m_nFirstChanged = 0;
+			return;
+		}
+
+		int base = INode.childrenOffset();
+		int count = getInt(block, base + COUNT_OFFSET);
+		int inline = Math.min(count, inlineCapacity(m_nBlockSize));
+		for (int i = 0; i < inline; ++i)
+		{
+			int index = base + EXTENTS_OFFSET + i * EXTENT_SIZE;
+			addExtent(getInt(block, index), getInt(block, index + 4));
+		}
+
+		int overflowNr = getInt(block, base + OVERFLOW_OFFSET);
+		byte[] overflow = new byte[m_nBlockSize];
+		while (overflowNr != 0)
+		{
+			m_anOverflow = Arrays.copyOf(m_anOverflow, m_anOverflow.length + 1);
+			m_anOverflow[m_anOverflow.length - 1] = overflowNr;
+
+			device.readBlock(overflowNr, overflow, 0);
+			int overflowCount = getInt(overflow, OVERFLOW_COUNT_OFFSET);
+			for (int i = 0; i < overflowCount; ++i)
+			{
+				int index = OVERFLOW_EXTENTS_OFFSET + i * EXTENT_SIZE;
+				addExtent(getInt(overflow, index), getInt(overflow, index + 4));
+			}
+
+			overflowNr = getInt(overflow, NEXT_OFFSET);
+		}
+	}
+
+	private static int inlineCapacity(int blockSize)
+	{
+		return (blockSize - INode.childrenOffset() - EXTENTS_OFFSET) / EXTENT_SIZE;
+	}
+
+	private static int overflowCapacity(int blockSize)
+	{
+		return (blockSize - OVERFLOW_EXTENTS_OFFSET) / EXTENT_SIZE;
+	}
+
+	/**
+	 * Get the number of overflow blocks needed to store a number of extents.
+	 *
+	 * @param blockSize the block size of the filesystem.
+	 * @param extents the number of extents.
+	 * @return The number of overflow blocks.
+	 */
+	public static int overflowBlocksFor(int blockSize, int extents)
+	{
+		int overflowExtents = Math.max(0, extents - inlineCapacity(blockSize));
+		int perBlock = overflowCapacity(blockSize);
+		return (overflowExtents + perBlock - 1) / perBlock;
+	}
+
+	private void addExtent(int start, int length)
+	{
+		if (m_nExtents == m_anStart.length)
+		{
+			m_anStart = Arrays.copyOf(m_anStart, m_nExtents * 2);
+			m_anLength = Arrays.copyOf(m_anLength, m_nExtents * 2);
+			m_anFirst = Arrays.copyOf(m_anFirst, m_nExtents * 2);
+		}
+
+		m_anStart[m_nExtents] = start;
+		m_anLength[m_nExtents] = length;
+		m_anFirst[m_nExtents] = m_nBlocks;
+		++m_nExtents;
+		m_nBlocks += length;
+	}
+
+	/**
+	 * Get the number of blocks in the file.
+	 *
+	 * @return The number of mapped blocks.
+	 */
+	public int getBlockCount()
+	{
+		return m_nBlocks;
+	}
+
+	/**
+	 * Get the number of extents the blocks are stored in.
+	 *
+	 * @return The number of extents.
+	 */
+	public int getExtentCount()
+	{
+		return m_nExtents;
+	}
+
+	/**
+	 * Get the first device block of an extent.
+	 *
+	 * @param extent the index of the extent, in the range [0, <code>getExtentCount()</code>).
+	 * @return The number of the first block of the extent.
+	 */
+	public int getExtentStart(int extent)
+	{
+		return m_anStart[extent];
+	}
+
+	/**
+	 * Get the number of blocks in an extent.
+	 *
+	 * @param extent the index of the extent, in the range [0, <code>getExtentCount()</code>).
+	 * @return The number of consecutive blocks in the extent.
+	 */
+	public int getExtentLength(int extent)
+	{
+		return m_anLength[extent];
+	}
+
+	/**
+	 * Find the extent holding a block of the file.
+	 *
+	 * @param index the index of the block within the file, in the range [0, <code>getBlockCount()</code>).
+	 * @return The index of the extent.
+	 */
+	public int findExtent(int index)
+	{
+		int low = 0;
+		int high = m_nExtents - 1;
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			if (m_anFirst[mid] <= index)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Get the device block storing a block of the file.
+	 *
+	 * @param index the index of the block within the file.
+	 * @return The number of the device block, or -1 if the index is outside the file.
+	 */
+	public int getBlock(int index)
+	{
+		if (index < 0 || index >= m_nBlocks)
+			return -1;
+
+		int extent = findExtent(index);
+		return m_anStart[extent] + index - m_anFirst[extent];
+	}
+
+	/**
+	 * Add consecutive blocks to the end of the file, extending the last extent if possible.
+	 *
+	 * @param start the number of the first device block.
+	 * @param length the number of blocks.
+	 */
+	public void append(int start, int length)
+	{
+		if (length <= 0)
+			return;
+
+		int last = m_nExtents - 1;
+		if (last >= 0 && m_anStart[last] + m_anLength[last] == start)
+		{
+			m_anLength[last] += length;
+			m_nBlocks += length;
+			m_nFirstChanged = Math.min(m_nFirstChanged, last);
+			return;
+		}
+
+		m_nFirstChanged = Math.min(m_nFirstChanged, m_nExtents);
+		addExtent(start, length);
+	}
+
+	/**
+	 * Add a block to the end of the file.
+	 *
+	 * @param block the number of the device block.
+	 */
+	public void append(int block)
+	{
+		append(block, 1);
+	}
+
+	/**
+	 * Replace a block of the file, such as when a shared block is copied before it is changed.
+	 * The extent holding the block is split if needed.
+	 *
+	 * @param index the index of the block within the file, in the range [0, <code>getBlockCount()</code>).
+	 * @param block the number of the new device block.
+	 */
+	public void set(int index, int block)
+	{
+		int extent = findExtent(index);
+		int start = m_anStart[extent];
+		int offset = index - m_anFirst[extent];
+		int after = m_anLength[extent] - offset - 1;
+
+		// Keep the blocks before and after as extents of their own
+		int at = extent;
+		if (offset > 0)
+		{
+			m_anLength[extent] = offset;
+			insertExtent(++at, block, 1);
+		}
+		else
+		{
+			m_anStart[extent] = block;
+			m_anLength[extent] = 1;
+		}
+
+		if (after > 0)
+			insertExtent(at + 1, start + offset + 1, after);
+
+		m_nFirstChanged = Math.min(m_nFirstChanged, extent);
+	}
+
+	private void insertExtent(int at, int start, int length)
+	{
+		int count = m_nExtents;
+		addExtent(0, 0);
+
+		System.arraycopy(m_anStart, at, m_anStart, at + 1, count - at);
+		System.arraycopy(m_anLength, at, m_anLength, at + 1, count - at);
+		m_anStart[at] = start;
+		m_anLength[at] = length;
+
+		for (int i = at; i <= count; ++i)
+		{
+			m_anFirst[i] = i == 0 ? 0 : m_anFirst[i - 1] + m_anLength[i - 1];
+		}
+	}
+
+	/**
+	 * Remove blocks from the end of the file, returning them to the free list.
+	 * The blocks must not be shared with other files.
+	 *
+	 * @param blockCount the number of blocks to keep.
+	 * @param freeList the free list to return the blocks to.
+	 */
+	public void truncate(int blockCount, FreeListNode freeList)
+	{
+		truncate(blockCount, freeList, null);
+	}
+
+	/**
+	 * Remove blocks from the end of the file, releasing any shared blocks
+	 * and returning the rest to the free list.
+	 *
+	 * @param blockCount the number of blocks to keep.
+	 * @param freeList the free list to return the blocks to.
+	 * @param refCounts the reference counts of shared blocks, or <code>null</code> if no blocks are shared.
+	 */
+	public void truncate(int blockCount, FreeListNode freeList, RefCountTable refCounts)
+	{
+		while (m_nBlocks > blockCount)
+		{
+			int last = m_nExtents - 1;
+			int remove = Math.min(m_anLength[last], m_nBlocks - blockCount);
+			int keep = m_anLength[last] - remove;
+			if (refCounts != null)
+				refCounts.release(m_anStart[last] + keep, remove, freeList);
+			else
+				freeList.freeBlocks(m_anStart[last] + keep, remove);
+
+			m_nBlocks -= remove;
+			m_nFirstChanged = Math.min(m_nFirstChanged, last);
+			if (keep == 0)
+				--m_nExtents;
+			else
+				m_anLength[last] = keep;
+		}
+	}
+
+	/**
+	 * Return all blocks of the file and any overflow blocks to the free list.
+	 * The blocks must not be shared with other files.
+	 *
+	 * @param freeList the free list to return the blocks to.
+	 */
+	public void free(FreeListNode freeList)
+	{
+		free(freeList, null);
+	}
+
+	/**
+	 * Release all blocks of the file, returning those not shared
+	 * and any overflow blocks to the free list.
+	 *
+	 * @param freeList the free list to return the blocks to.
+	 * @param refCounts the reference counts of shared blocks, or <code>null</code> if no blocks are shared.
+	 */
+	public void free(FreeListNode freeList, RefCountTable refCounts)
+	{
+		truncate(0, freeList, refCounts);
+		for (int overflowNr : m_anOverflow)
+		{
+			freeList.freeBlock(overflowNr);
+		}
+
+		m_anOverflow = new int[0];
+	}
+
+	/**
+	 * Get the number of blocks that have to be allocated to store the map after adding extents.
+	 *
+	 * @param extents the number of extents to be added.
+	 * @return The number of additional overflow blocks needed in the worst case.
+	 */
+	public int overflowBlocksNeeded(int extents)
+	{
+		return Math.max(0, overflowBlocksFor(m_nBlockSize, m_nExtents + extents) - m_anOverflow.length);
+	}
+
+	/**
+	 * Save the map to a file <code>INode</code>, writing any changed overflow blocks to the device.
+	 * Overflow blocks are taken from or returned to the free list as needed.
+	 * Files stored inline must be converted by the caller first.
+	 *
+	 * @param file the <code>INode</code> of the file.
+	 * @param device the device to write overflow blocks to.
+	 * @param freeList the free list to use for overflow blocks.
+	 * There must be at least <code>overflowBlocksNeeded(0)</code> free blocks.
+	 */
+	public void store(INode file, BlockDevice device, FreeListNode freeList)
+	{
+		byte[] block = file.getBlock();
+		int base = INode.childrenOffset();
+
+		int inlineCapacity = inlineCapacity(m_nBlockSize);
+		int inline = Math.min(m_nExtents, inlineCapacity);
+		putInt(block, base + COUNT_OFFSET, m_nExtents);
+		for (int i = Math.min(m_nFirstChanged, inline); i < inline; ++i)
+		{
+			int index = base + EXTENTS_OFFSET + i * EXTENT_SIZE;
+			putInt(block, index, m_anStart[i]);
+			putInt(block, index + 4, m_anLength[i]);
+		}
+
+		// Resize the overflow chain
+		int needed = overflowBlocksFor(m_nBlockSize, m_nExtents);
+		int oldLength = m_anOverflow.length;
+		for (int i = needed; i < oldLength; ++i)
+		{
+			freeList.freeBlock(m_anOverflow[i]);
+		}
+
+		m_anOverflow = Arrays.copyOf(m_anOverflow, needed);
+		for (int i = oldLength; i < needed; ++i)
+		{
+			m_anOverflow[i] = freeList.getNewBlock();
+		}
+
+		putInt(block, base + OVERFLOW_OFFSET, needed > 0 ? m_anOverflow[0] : 0);
+
+		// Only write the overflow blocks holding changed extents, or changed links
+		int perBlock = overflowCapacity(m_nBlockSize);
+		int firstChangedBlock = Math.max(0, m_nFirstChanged - inlineCapacity) / perBlock;
+		if (needed != oldLength)
+			firstChangedBlock = Math.min(firstChangedBlock, Math.max(0, Math.min(needed, oldLength) - 1));
+
+		byte[] overflow = new byte[m_nBlockSize];
+		for (int b = firstChangedBlock; b < needed; ++b)
+		{
+			int first = inlineCapacity + b * perBlock;
+			int count = Math.min(perBlock, m_nExtents - first);
+
+			putInt(overflow, NEXT_OFFSET, b + 1 < needed ? m_anOverflow[b + 1] : 0);
+			putInt(overflow, OVERFLOW_COUNT_OFFSET, count);
+			for (int i = 0; i < count; ++i)
+			{
+				int index = OVERFLOW_EXTENTS_OFFSET + i * EXTENT_SIZE;
+				putInt(overflow, index, m_anStart[first + i]);
+				putInt(overflow, index + 4, m_anLength[first + i]);
+			}
+
+			device.writeBlock(m_anOverflow[b], overflow);
+		}
+
+		m_nFirstChanged = Integer.MAX_VALUE;
+	}
+
+	private static int getInt(byte[] block, int index)
+	{
+		return (block[index] & 0xff) << 24 |
+				(block[index + 1] & 0xff) << 16 |
+				(block[index + 2] & 0xff) << 8 |
+				(block[index + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] block, int index, int val)
+	{
+		block[index + 0] = (byte) (val >>> 24);
+		block[index + 1] = (byte) (val >>> 16);
+		block[index + 2] = (byte) (val >>> 8);
+		block[index + 3] = (byte) val;
+	}
+}
@@ -0,0 +1,39 @@
+package se.jereq.filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Flight Recorder event for blocks read from the device of a {@link Filesystem}, committed by
+ * {@link MeteredBlockDevice}. Only reads taking longer than the threshold are recorded unless the
+ * recording asks for more, so the event can stay enabled in a continuous recording.
+ */
+@Name("se.jereq.filesystem.BlockRead")
+@Label("Block Read")
+@Category({ "Filesystem", "Block I/O" })
+@Description("Blocks read from the device of a filesystem")
+@Threshold("5 ms")
+@StackTrace(false)
+final class BlockReadEvent extends jdk.jfr.Event
+{
+	@Label("Device")
+	@Description("The class of the device read from")
+	String device;
+
+	@Label("Block")
+	@Description("The number of the first block read")
+	int block;
+
+	@Label("Blocks")
+	@Description("The number of blocks read in the request")
+	int blocks;
+
+	@Label("Bytes Read")
+	@DataAmount
+	long bytes;
+}
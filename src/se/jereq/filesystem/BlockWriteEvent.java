@@ -0,0 +1,39 @@
+package se.jereq.filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Flight Recorder event for blocks written to the device of a {@link Filesystem}, committed by
+ * {@link MeteredBlockDevice}. Only writes taking longer than the threshold are recorded unless the
+ * recording asks for more, so the event can stay enabled in a continuous recording.
+ */
+@Name("se.jereq.filesystem.BlockWrite")
+@Label("Block Write")
+@Category({ "Filesystem", "Block I/O" })
+@Description("Blocks written to the device of a filesystem")
+@Threshold("5 ms")
+@StackTrace(false)
+final class BlockWriteEvent extends jdk.jfr.Event
+{
+	@Label("Device")
+	@Description("The class of the device written to")
+	String device;
+
+	@Label("Block")
+	@Description("The number of the first block written")
+	int block;
+
+	@Label("Blocks")
+	@Description("The number of blocks written in the request")
+	int blocks;
+
+	@Label("Bytes Written")
+	@DataAmount
+	long bytes;
+}
@@ -0,0 +1,173 @@
+package se.jereq.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Makes an {@link AsyncBlockDevice} usable as a {@link BlockDevice}, so that a {@link Filesystem}
+ * can run on it. Single blocks are transferred one at a time, while all blocks of a
+ * {@link #readBlocks} or {@link #writeBlocks} request are in flight at once, up to the queue
+ * depth of the device, so that reading and writing files overlaps the transfers.
+ * <br><br>
+ * Failures of the backing storage are thrown as <code>UncheckedIOException</code>.
+ */
+public class BlockingBlockDevice extends BlockDevice
+{
+	private final AsyncBlockDevice m_Device;
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device to transfer blocks with.
+	 */
+	public BlockingBlockDevice(AsyncBlockDevice device)
+	{
+		super(device.getBlockSize(), device.getBlockCount());
+
+		m_Device = device;
+	}
+
+	/**
+	 * Get the device blocks are transferred with.
+	 *
+	 * @return The device given to the constructor.
+	 */
+	public AsyncBlockDevice getDevice()
+	{
+		return m_Device;
+	}
+
+	/**
+	 * Wait for a request to complete.
+	 *
+	 * @return The result of the request.
+	 */
+	private static <T> T await(CompletableFuture<T> request)
+	{
+		try
+		{
+			return request.join();
+		}
+		catch (CompletionException ex)
+		{
+			if (ex.getCause() instanceof IOException)
+				throw new UncheckedIOException((IOException) ex.getCause());
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Wait for all requests to complete.
+	 *
+	 * @return The first result that is not 1, otherwise 1.
+	 */
+	private static int awaitAll(List<CompletableFuture<Integer>> requests)
+	{
+		int res = 1;
+		for (CompletableFuture<Integer> request : requests)
+		{
+			int result = await(request);
+			if (res == 1)
+				res = result;
+		}
+
+		requests.clear();
+		return res;
+	}
+
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+	{
+		if (p_abContents.length != getBlockSize())
+		{
+			// Block size out-of-range
+			return -2;
+		}
+
+		return writeBlock(p_nBlockNr, p_abContents, 0);
+	}
+
+	public byte[] readBlock(int p_nBlockNr)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return new byte[0];
+		}
+
+		byte[] abBlock = new byte[getBlockSize()];
+		readBlock(p_nBlockNr, abBlock, 0);
+
+		return abBlock;
+	}
+
+	@Override
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		return await(m_Device.writeBlock(p_nBlockNr, p_abContents, p_nOffset));
+	}
+
+	@Override
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		return await(m_Device.readBlock(p_nBlockNr, p_abBuffer, p_nOffset));
+	}
+
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abContents.length, p_nOffset);
+		if (res < 0)
+			return res;
+
+		List<CompletableFuture<Integer>> requests = new ArrayList<CompletableFuture<Integer>>(p_nCount);
+		Set<Integer> inFlight = new HashSet<Integer>();
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			// Writes to the same block may complete in any order, so the earlier one must be done first
+			if (!inFlight.add(p_anBlockNrs[i]))
+			{
+				res = awaitAll(requests);
+				if (res < 0)
+					return res;
+
+				inFlight.clear();
+				inFlight.add(p_anBlockNrs[i]);
+			}
+
+			requests.add(m_Device.writeBlock(p_anBlockNrs[i], p_abContents, p_nOffset + i * getBlockSize()));
+		}
+
+		return awaitAll(requests);
+	}
+
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abBuffer.length, p_nOffset);
+		if (res < 0)
+			return res;
+
+		List<CompletableFuture<Integer>> requests = new ArrayList<CompletableFuture<Integer>>(p_nCount);
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			requests.add(m_Device.readBlock(p_anBlockNrs[i], p_abBuffer, p_nOffset + i * getBlockSize()));
+		}
+
+		return awaitAll(requests);
+	}
+
+	@Override
+	public void flush()
+	{
+		await(m_Device.flush());
+	}
+}
@@ -0,0 +1,303 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implements {@link BlockDevice} on top of {@link ByteBuffer}s holding the blocks back to back.
+ * Blocks are accessed as slice copies of the buffers. As a single buffer is limited to 2 GB,
+ * larger devices are split into chunks of whole blocks, see {@link #blocksPerChunk}.
+ */
+public abstract class ByteBufferBlockDevice extends BlockDevice
+{
+	private static final int MAX_CHUNK_SIZE = 1 << 30;
+	
+	private final ByteBuffer[] m_Chunks;
+	private final int m_nBlocksPerChunk;
+
+	/**
+	 * constructor.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @param chunks the buffers holding the blocks. Each chunk except the last must hold exactly
+	 * {@link #blocksPerChunk} blocks, and the last the remaining blocks.
+	 * @throws IllegalArgumentException Thrown if the chunks are too few or too small.
+	 */
+	protected ByteBufferBlockDevice(int blockSize, int blockCount, ByteBuffer[] chunks)
+	{
+		super(blockSize, blockCount);
+		
+		m_nBlocksPerChunk = blocksPerChunk(blockSize);
+		if (chunks.length != chunkCount(blockSize, blockCount))
+			throw new IllegalArgumentException("Invalid number of chunks for device");
+		
+		for (int i = 0; i < chunks.length; ++i)
+		{
+			if (chunks[i].capacity() < chunkSize(blockSize, blockCount, i))
+				throw new IllegalArgumentException("Buffer too small for device");
+		}
+		
+		m_Chunks = chunks;
+	}
+	
+	/**
+	 * Get the number of blocks stored in each chunk.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @return The number of blocks in each chunk, except possibly the last.
+	 */
+	protected static int blocksPerChunk(int blockSize)
+	{
+		return Math.max(1, MAX_CHUNK_SIZE / blockSize);
+	}
+	
+	/**
+	 * Get the number of chunks needed for a device.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @return The number of chunks needed to hold all blocks.
+	 */
+	protected static int chunkCount(int blockSize, int blockCount)
+	{
+		int blocksPerChunk = blocksPerChunk(blockSize);
+		return (blockCount + blocksPerChunk - 1) / blocksPerChunk;
+	}
+	
+	/**
+	 * Get the size of a chunk.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @param chunk the index of the chunk.
+	 * @return The size of the chunk in bytes.
+	 */
+	protected static int chunkSize(int blockSize, int blockCount, int chunk)
+	{
+		int blocksPerChunk = blocksPerChunk(blockSize);
+		return Math.min(blocksPerChunk, blockCount - chunk * blocksPerChunk) * blockSize;
+	}
+	
+	/**
+	 * Get the buffers holding the blocks.
+	 * 
+	 * @return The chunks given to the constructor.
+	 */
+	protected ByteBuffer[] getChunks()
+	{
+		return m_Chunks;
+	}
+
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_abContents.length != getBlockSize())
+		{
+			// Block size out-of-range
+			return -2;
+		}
+		
+		return writeBlock(p_nBlockNr, p_abContents, 0);
+	}
+
+	public byte[] readBlock(int p_nBlockNr)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return new byte[0];
+		}
+		
+		byte[] abBlock = new byte[getBlockSize()];
+		readBlock(p_nBlockNr, abBlock, 0);
+		
+		return abBlock;
+	}
+	
+	@Override
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_nOffset < 0 || p_nOffset > p_abContents.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+		
+		blockView(p_nBlockNr).put(p_abContents, p_nOffset, getBlockSize());
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_nOffset < 0 || p_nOffset > p_abBuffer.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+		
+		blockView(p_nBlockNr).get(p_abBuffer, p_nOffset, getBlockSize());
+		
+		return 1;
+	}
+	
+	@Override
+	public int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+		
+		ByteBuffer source = p_Buffer.duplicate();
+		source.limit(source.position() + getBlockSize());
+		blockView(p_nBlockNr).put(source);
+		p_Buffer.position(source.position());
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+		
+		p_Buffer.put(blockView(p_nBlockNr));
+		
+		return 1;
+	}
+	
+	/**
+	 * Consecutive blocks within a chunk are written with a single bulk transfer.
+	 */
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abContents.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; )
+		{
+			int run = chunkRunLength(p_anBlockNrs, i, p_nCount);
+			runView(p_anBlockNrs[i], run).put(p_abContents, p_nOffset + i * getBlockSize(), run * getBlockSize());
+			i += run;
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Consecutive blocks within a chunk are read with a single bulk transfer.
+	 */
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abBuffer.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; )
+		{
+			int run = chunkRunLength(p_anBlockNrs, i, p_nCount);
+			runView(p_anBlockNrs[i], run).get(p_abBuffer, p_nOffset + i * getBlockSize(), run * getBlockSize());
+			i += run;
+		}
+		
+		return 1;
+	}
+	
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		ByteBuffer source = p_Buffer.duplicate();
+		for (int i = 0; i < p_nCount; )
+		{
+			int run = chunkRunLength(p_anBlockNrs, i, p_nCount);
+			source.limit(source.position() + run * getBlockSize());
+			runView(p_anBlockNrs[i], run).put(source);
+			i += run;
+		}
+		p_Buffer.position(source.position());
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; )
+		{
+			int run = chunkRunLength(p_anBlockNrs, i, p_nCount);
+			p_Buffer.put(runView(p_anBlockNrs[i], run));
+			i += run;
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Get the length of a run of consecutive blocks that does not cross into the next chunk.
+	 */
+	private int chunkRunLength(int[] blockNrs, int start, int end)
+	{
+		int leftInChunk = m_nBlocksPerChunk - blockNrs[start] % m_nBlocksPerChunk;
+		return Math.min(runLength(blockNrs, start, end), leftInChunk);
+	}
+	
+	private ByteBuffer blockView(int blockNr)
+	{
+		return runView(blockNr, 1);
+	}
+	
+	private ByteBuffer runView(int blockNr, int count)
+	{
+		ByteBuffer view = m_Chunks[blockNr / m_nBlocksPerChunk].duplicate();
+		view.position((blockNr % m_nBlocksPerChunk) * getBlockSize());
+		view.limit(view.position() + count * getBlockSize());
+		return view;
+	}
+}
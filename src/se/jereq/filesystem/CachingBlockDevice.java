@@ -0,0 +1,319 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A write-back cache in front of another {@link BlockDevice}. A bounded number of blocks
+ * are kept in memory and evicted using the CLOCK algorithm. Written blocks are only passed
+ * on to the underlying device when they are evicted or when {@link #flush} is called, so
+ * repeated writes to the same block only reach the device once.
+ * <br><br>
+ * The cache is shared by all threads, so every access is synchronized on the device.
+ */
+public class CachingBlockDevice extends BlockDevice
+{
+	/**
+	 * The number of blocks cached if no capacity is given.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final BlockDevice m_Device;
+	private final int m_nCapacity;
+
+	// All cached blocks back to back, slot i starting at i * block size
+	private final byte[] m_abData;
+	private final int[] m_anSlotBlock;
+	private final boolean[] m_abReferenced;
+	private final boolean[] m_abDirty;
+	private final Map<Integer, Integer> m_Slots;
+
+	private int m_nClockHand = 0;
+	private int m_nUsedSlots = 0;
+
+	private long m_nHits = 0;
+	private long m_nMisses = 0;
+
+	/**
+	 * constructor. Caches up to <code>DEFAULT_CAPACITY</code> blocks.
+	 *
+	 * @param device the device to cache blocks from.
+	 */
+	public CachingBlockDevice(BlockDevice device)
+	{
+		this(device, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device to cache blocks from.
+	 * @param capacity the maximum number of blocks kept in memory.
+	 * @throws IllegalArgumentException Thrown if the capacity is not positive or too large to keep in memory.
+	 */
+	public CachingBlockDevice(BlockDevice device, int capacity)
+	{
+		super(device.getBlockSize(), device.getBlockCount());
+
+		if (capacity <= 0 || (long) capacity * device.getBlockSize() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid cache capacity");
+
+		m_Device = device;
+		m_nCapacity = capacity;
+
+		m_abData = new byte[capacity * device.getBlockSize()];
+		m_anSlotBlock = new int[capacity];
+		m_abReferenced = new boolean[capacity];
+		m_abDirty = new boolean[capacity];
+		m_Slots = new HashMap<Integer, Integer>(capacity * 2);
+
+		Arrays.fill(m_anSlotBlock, -1);
+	}
+
+	/**
+	 * Get the device blocks are cached from.
+	 *
+	 * @return The device given to the constructor.
+	 */
+	public BlockDevice getDevice()
+	{
+		return m_Device;
+	}
+
+	/**
+	 * Get the number of blocks that can be cached.
+	 *
+	 * @return The maximum number of blocks kept in memory.
+	 */
+	public int getCapacity()
+	{
+		return m_nCapacity;
+	}
+
+	/**
+	 * Get the number of times a block was found in the cache.
+	 *
+	 * @return The number of reads and writes of blocks already cached.
+	 */
+	public synchronized long getHits()
+	{
+		return m_nHits;
+	}
+
+	/**
+	 * Get the number of times a block had to be read from the underlying device.
+	 * Blocks written as a whole are not read, and count as neither hits nor misses.
+	 *
+	 * @return The number of blocks loaded into the cache.
+	 */
+	public synchronized long getMisses()
+	{
+		return m_nMisses;
+	}
+
+	/**
+	 * Find the slot caching a block, loading the block from the device if it is not cached.
+	 *
+	 * @param blockNr the block to find, which must be valid.
+	 * @param load <code>false</code> if the whole block is about to be overwritten,
+	 * so that its old contents do not have to be read.
+	 * @return The slot holding the block.
+	 */
+	private int slotFor(int blockNr, boolean load)
+	{
+		Integer cached = m_Slots.get(blockNr);
+		if (cached != null)
+		{
+			int slot = cached;
+			m_abReferenced[slot] = true;
+			++m_nHits;
+			return slot;
+		}
+
+		int slot = takeSlot();
+		if (load)
+		{
+			m_Device.readBlock(blockNr, m_abData, slot * getBlockSize());
+			++m_nMisses;
+		}
+
+		m_anSlotBlock[slot] = blockNr;
+		m_abReferenced[slot] = true;
+		m_Slots.put(blockNr, slot);
+
+		return slot;
+	}
+
+	/**
+	 * Get an unused slot, evicting a block if all slots are taken.
+	 *
+	 * @return An empty slot.
+	 */
+	private int takeSlot()
+	{
+		if (m_nUsedSlots < m_nCapacity)
+			return m_nUsedSlots++;
+
+		// Give recently used blocks a second chance, at most one full turn is needed
+		while (m_abReferenced[m_nClockHand])
+		{
+			m_abReferenced[m_nClockHand] = false;
+			m_nClockHand = (m_nClockHand + 1) % m_nCapacity;
+		}
+
+		int slot = m_nClockHand;
+		m_nClockHand = (m_nClockHand + 1) % m_nCapacity;
+
+		writeBack(slot);
+		m_Slots.remove(m_anSlotBlock[slot]);
+		m_anSlotBlock[slot] = -1;
+
+		return slot;
+	}
+
+	private void writeBack(int slot)
+	{
+		if (!m_abDirty[slot])
+			return;
+
+		m_Device.writeBlock(m_anSlotBlock[slot], m_abData, slot * getBlockSize());
+		m_abDirty[slot] = false;
+	}
+
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+	{
+		if (p_abContents.length != getBlockSize())
+		{
+			// Block size out-of-range
+			return -2;
+		}
+
+		return writeBlock(p_nBlockNr, p_abContents, 0);
+	}
+
+	public byte[] readBlock(int p_nBlockNr)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return new byte[0];
+		}
+
+		byte[] abBlock = new byte[getBlockSize()];
+		readBlock(p_nBlockNr, abBlock, 0);
+
+		return abBlock;
+	}
+
+	@Override
+	public synchronized int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_nOffset < 0 || p_nOffset > p_abContents.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+
+		int slot = slotFor(p_nBlockNr, false);
+		System.arraycopy(p_abContents, p_nOffset, m_abData, slot * getBlockSize(), getBlockSize());
+		m_abDirty[slot] = true;
+
+		return 1;
+	}
+
+	@Override
+	public synchronized int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_nOffset < 0 || p_nOffset > p_abBuffer.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+
+		int slot = slotFor(p_nBlockNr, true);
+		System.arraycopy(m_abData, slot * getBlockSize(), p_abBuffer, p_nOffset, getBlockSize());
+
+		return 1;
+	}
+
+	@Override
+	public synchronized int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+
+		int slot = slotFor(p_nBlockNr, false);
+		p_Buffer.get(m_abData, slot * getBlockSize(), getBlockSize());
+		m_abDirty[slot] = true;
+
+		return 1;
+	}
+
+	@Override
+	public synchronized int readBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+
+		int slot = slotFor(p_nBlockNr, true);
+		p_Buffer.put(m_abData, slot * getBlockSize(), getBlockSize());
+
+		return 1;
+	}
+
+	/**
+	 * Write all changed blocks to the underlying device, in block order, and flush it.
+	 * The blocks stay cached.
+	 */
+	@Override
+	public synchronized void flush()
+	{
+		int[] dirtyBlocks = new int[m_nUsedSlots];
+		int dirtyCount = 0;
+		for (int slot = 0; slot < m_nUsedSlots; ++slot)
+		{
+			if (m_abDirty[slot])
+				dirtyBlocks[dirtyCount++] = m_anSlotBlock[slot];
+		}
+
+		Arrays.sort(dirtyBlocks, 0, dirtyCount);
+		for (int i = 0; i < dirtyCount; ++i)
+		{
+			writeBack(m_Slots.get(dirtyBlocks[i]));
+		}
+
+		m_Device.flush();
+	}
+}
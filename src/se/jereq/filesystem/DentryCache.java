@@ -0,0 +1,332 @@
+package se.jereq.filesystem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of path resolution, mapping absolute paths to the block of the
+ * <code>INode</code> they name. Paths known not to exist are cached as negative entries.
+ * <br><br>
+ * The entries form a tree mirroring the directories, so a path is looked up with one
+ * hash lookup per component, and everything below a changed path can be dropped at once.
+ * <br><br>
+ * All methods are synchronized. The cache can only be kept in step with the directories if
+ * the entries of a directory are only inserted while it is locked by the caller.
+ */
+public class DentryCache
+{
+	/**
+	 * The maximum number of entries cached if no capacity is given.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Returned by {@link #lookup} for paths known not to exist.
+	 */
+	public static final int NEGATIVE = -1;
+
+	/**
+	 * Returned by {@link #lookup} for paths not in the cache.
+	 */
+	public static final int UNKNOWN = -2;
+
+	private static class Entry
+	{
+		final int block;
+		Map<String, Entry> children;
+		// Set once the entry is dropped from the tree, and can no longer be trusted by anchors
+		volatile boolean dropped;
+
+		Entry(int block)
+		{
+			this.block = block;
+		}
+	}
+
+	/**
+	 * A cached directory, from which paths through it can be looked up without looking up the
+	 * path of the directory again, such as the paths relative to a working directory. An anchor
+	 * is only used for as long as the directory stays cached.
+	 */
+	public static class Anchor
+	{
+		private final String[] m_asPath;
+		private final int[] m_anBlocks;
+		private final Entry m_Entry;
+
+		private Anchor(String[] path, int[] blocks, Entry entry)
+		{
+			m_asPath = path;
+			m_anBlocks = blocks;
+			m_Entry = entry;
+		}
+
+		/**
+		 * Get the block of the anchored directory.
+		 *
+		 * @return The block of the <code>INode</code> of the directory.
+		 */
+		public int getBlock()
+		{
+			return m_Entry.block;
+		}
+
+		/**
+		 * Check whether the anchor can still be used.
+		 *
+		 * @return <code>false</code> once the directory is no longer cached.
+		 */
+		public boolean isValid()
+		{
+			return !m_Entry.dropped;
+		}
+
+		private boolean covers(String[] path, int length)
+		{
+			if (m_Entry.dropped || m_asPath.length > length)
+				return false;
+
+			// Paths made relative to the same working directory share its components
+			for (int i = 0; i < m_asPath.length; ++i)
+			{
+				if (m_asPath[i] != path[i] && !m_asPath[i].equals(path[i]))
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	private final int m_nCapacity;
+	private final Entry m_Root;
+	private int m_nSize = 0;
+
+	/**
+	 * constructor. Caches up to <code>DEFAULT_CAPACITY</code> entries.
+	 *
+	 * @param rootBlock the block of the root directory, which is always cached.
+	 */
+	public DentryCache(int rootBlock)
+	{
+		this(rootBlock, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * constructor.
+	 *
+	 * @param rootBlock the block of the root directory, which is always cached.
+	 * @param capacity the maximum number of entries to cache. When it is reached the cache is emptied.
+	 */
+	public DentryCache(int rootBlock, int capacity)
+	{
+		m_nCapacity = capacity;
+		m_Root = new Entry(rootBlock);
+	}
+
+	/**
+	 * Look up the start of an absolute path.
+	 *
+	 * @param path the components of the absolute path, without any "." or "..".
+	 * @param length the number of components of <code>path</code> to look up.
+	 * @return The block of the <code>INode</code> at the path, <code>NEGATIVE</code> if the path
+	 * does not exist, or <code>UNKNOWN</code> if the path is not cached.
+	 */
+	public synchronized int lookup(String[] path, int length)
+	{
+		Entry entry = m_Root;
+		for (int i = 0; i < length; ++i)
+		{
+			if (entry.block == NEGATIVE)
+				return NEGATIVE;	// Nothing exists below a missing path
+
+			if (entry.children == null)
+				return UNKNOWN;
+
+			entry = entry.children.get(path[i]);
+			if (entry == null)
+				return UNKNOWN;
+		}
+
+		return entry.block;
+	}
+
+	/**
+	 * Look up as much of an absolute path as is cached.
+	 *
+	 * @param path the components of the absolute path, without any "." or "..".
+	 * @param length the number of components of <code>path</code> to look up.
+	 * @param blocks array of at least <code>length + 1</code> entries, filled with the block of the
+	 * <code>INode</code> at each cached start of the path, beginning with the root at index 0.
+	 * @return The number of components found. The block stored at that index is <code>NEGATIVE</code>
+	 * if the path does not exist from there on.
+	 */
+	public int lookup(String[] path, int length, int[] blocks)
+	{
+		return lookup(null, path, length, blocks);
+	}
+
+	/**
+	 * Look up as much of an absolute path as is cached, starting from an anchored directory
+	 * if the path goes through it.
+	 *
+	 * @param anchor a directory to start from, or <code>null</code> to start from the root. Ignored
+	 * if the path does not go through it or it is no longer cached.
+	 * @param path the components of the absolute path, without any "." or "..".
+	 * @param length the number of components of <code>path</code> to look up.
+	 * @param blocks array of at least <code>length + 1</code> entries, filled with the block of the
+	 * <code>INode</code> at each cached start of the path, beginning with the root at index 0.
+	 * @return The number of components found. The block stored at that index is <code>NEGATIVE</code>
+	 * if the path does not exist from there on.
+	 */
+	public synchronized int lookup(Anchor anchor, String[] path, int length, int[] blocks)
+	{
+		Entry entry = m_Root;
+		int start = 0;
+		blocks[0] = entry.block;
+		if (anchor != null && anchor.covers(path, length))
+		{
+			entry = anchor.m_Entry;
+			start = anchor.m_asPath.length;
+			System.arraycopy(anchor.m_anBlocks, 0, blocks, 0, start + 1);
+		}
+
+		for (int i = start; i < length; ++i)
+		{
+			if (entry.block == NEGATIVE || entry.children == null)
+				return i;
+
+			entry = entry.children.get(path[i]);
+			if (entry == null)
+				return i;
+
+			blocks[i + 1] = entry.block;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Anchor a cached directory, to look up paths through it with.
+	 *
+	 * @param path the components of the absolute path of the directory, without any "." or "..".
+	 * @return The anchor, or <code>null</code> if the path and everything above it is not cached.
+	 */
+	public synchronized Anchor anchor(String[] path)
+	{
+		int[] blocks = new int[path.length + 1];
+		Entry entry = m_Root;
+		blocks[0] = entry.block;
+		for (int i = 0; i < path.length; ++i)
+		{
+			if (entry.block == NEGATIVE || entry.children == null)
+				return null;
+
+			entry = entry.children.get(path[i]);
+			if (entry == null)
+				return null;
+
+			blocks[i + 1] = entry.block;
+		}
+
+		if (entry.block == NEGATIVE)
+			return null;
+
+		return new Anchor(path, blocks, entry);
+	}
+
+	/**
+	 * Cache the result of resolving the start of an absolute path. Anything cached below
+	 * the path is dropped. Nothing is cached unless the parent path is already cached, as
+	 * the directory the path was resolved in, so a directory moved or replaced meanwhile
+	 * does not get the entries of another.
+	 *
+	 * @param path the components of the absolute path, without any "." or "..".
+	 * @param length the number of components of <code>path</code> that were resolved, at least one.
+	 * @param parentBlock the block of the directory holding the entry.
+	 * @param block the block of the <code>INode</code> at the path, or <code>NEGATIVE</code> if it does not exist.
+	 */
+	public synchronized void insert(String[] path, int length, int parentBlock, int block)
+	{
+		Entry parent = findEntry(path, length - 1);
+		if (parent == null || parent.block != parentBlock)
+			return;
+
+		if (parent.children == null)
+			parent.children = new HashMap<String, Entry>();
+
+		Entry old = parent.children.put(path[length - 1], new Entry(block));
+		if (old != null)
+			m_nSize -= drop(old);
+
+		if (++m_nSize > m_nCapacity)
+			clear();
+	}
+
+	/**
+	 * Drop an absolute path and everything below it from the cache.
+	 *
+	 * @param path the components of the absolute path, without any "." or "..". Must not be empty.
+	 */
+	public synchronized void invalidate(String[] path)
+	{
+		Entry parent = findEntry(path, path.length - 1);
+		if (parent == null || parent.children == null)
+			return;
+
+		Entry old = parent.children.remove(path[path.length - 1]);
+		if (old != null)
+			m_nSize -= drop(old);
+	}
+
+	/**
+	 * Drop all entries except the root.
+	 */
+	public synchronized void clear()
+	{
+		if (m_Root.children != null)
+		{
+			for (Entry child : m_Root.children.values())
+			{
+				drop(child);
+			}
+		}
+
+		m_Root.children = null;
+		m_nSize = 0;
+	}
+
+	private Entry findEntry(String[] path, int length)
+	{
+		Entry entry = m_Root;
+		for (int i = 0; i < length && entry != null; ++i)
+		{
+			if (entry.children == null)
+				return null;
+
+			entry = entry.children.get(path[i]);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Mark an entry and everything below it as dropped from the tree.
+	 *
+	 * @return The number of entries dropped.
+	 */
+	private static int drop(Entry entry)
+	{
+		entry.dropped = true;
+
+		int count = 1;
+		if (entry.children != null)
+		{
+			for (Entry child : entry.children.values())
+			{
+				count += drop(child);
+			}
+		}
+
+		return count;
+	}
+}
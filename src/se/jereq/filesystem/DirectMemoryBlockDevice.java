@@ -0,0 +1,41 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implements {@link BlockDevice} as an off-heap memory disk. All blocks are kept in
+ * direct buffers outside the Java heap, so the size of the device does not affect the
+ * heap footprint or the work done by the garbage collector.
+ */
+public class DirectMemoryBlockDevice extends ByteBufferBlockDevice
+{
+	/**
+	 * constructor. Allocates the memory for all blocks, initially zeroed, using the default geometry.
+	 */
+	public DirectMemoryBlockDevice()
+	{
+		this(BLOCK_SIZE, BLOCK_COUNT);
+	}
+	
+	/**
+	 * constructor. Allocates the memory for all blocks, initially zeroed.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 */
+	public DirectMemoryBlockDevice(int blockSize, int blockCount)
+	{
+		super(blockSize, blockCount, allocate(blockSize, blockCount));
+	}
+	
+	private static ByteBuffer[] allocate(int blockSize, int blockCount)
+	{
+		ByteBuffer[] chunks = new ByteBuffer[chunkCount(blockSize, blockCount)];
+		for (int i = 0; i < chunks.length; ++i)
+		{
+			chunks[i] = ByteBuffer.allocateDirect(chunkSize(blockSize, blockCount, i));
+		}
+		
+		return chunks;
+	}
+}
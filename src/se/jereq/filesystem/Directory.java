@@ -0,0 +1,456 @@
+package se.jereq.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the entries of directories. The entries of a directory are indexed by the hash of
+ * their names in a B+tree of {@link DirectoryNode}s. The root node is stored in the children area
+ * of the directory <code>INode</code> itself, so small directories do not use any other blocks,
+ * and larger directories grow one level at a time. The leaves hold the name, type and block of
+ * each entry, so finding, adding and removing an entry reads one block per level of the index,
+ * and no <code>INode</code>s of the entries.
+ * <br><br>
+ * Emptied leaves are not merged, their blocks are freed when the whole directory is empty.
+ * Changes to the directory <code>INode</code> must be saved externally, while changed index
+ * blocks are written directly.
+ * <br><br>
+ * Different directories may be used by several threads at once, while a single directory
+ * must be locked by the caller.
+ * <br><br>
+ * The children area of a file holds its block map or its contents, not an index, so every method
+ * taking a directory <code>INode</code> throws an <code>IllegalArgumentException</code> for any other type.
+ */
+public class Directory
+{
+	private BlockDevice m_BlockDevice;
+	private int m_nBlockSize;
+
+	// Scratch blocks of each thread, one for each level of the index below the root
+	private ThreadLocal<List<byte[]>> m_Levels = ThreadLocal.withInitial(() -> new ArrayList<byte[]>());
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device storing the directories.
+	 * @param blockSize the block size of the filesystem.
+	 */
+	public Directory(BlockDevice device, int blockSize)
+	{
+		m_BlockDevice = device;
+		m_nBlockSize = blockSize;
+	}
+
+	/**
+	 * Make a new directory <code>INode</code> empty.
+	 *
+	 * @param dir the new directory.
+	 */
+	public static void initialize(INode dir)
+	{
+		rootOf(dir).clear(0);
+	}
+
+	/**
+	 * Get the hash a name is indexed by.
+	 *
+	 * @param name the name of an entry.
+	 * @return The hash of the name.
+	 */
+	public static int hash(String name)
+	{
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static DirectoryNode rootOf(INode dir)
+	{
+		if (dir.getType() != INode.Type.Directory)
+			throw new IllegalArgumentException("Not a directory");
+
+		int offset = INode.childrenOffset();
+		return new DirectoryNode(dir.getBlock(), offset, dir.getBlock().length - offset);
+	}
+
+	private byte[] levelBlock(int level)
+	{
+		List<byte[]> levels = m_Levels.get();
+		while (levels.size() <= level)
+		{
+			levels.add(new byte[m_nBlockSize]);
+		}
+
+		return levels.get(level);
+	}
+
+	private DirectoryNode readNode(int blockNr, int level)
+	{
+		byte[] block = levelBlock(level);
+		m_BlockDevice.readBlock(blockNr, block, 0);
+		return new DirectoryNode(block, 0, m_nBlockSize);
+	}
+
+	/**
+	 * Descend from the root to the leaf where the search for a hash starts.
+	 * Blocks and indices of the nodes passed are stored in the given arrays if not <code>null</code>.
+	 */
+	private DirectoryNode findLeaf(DirectoryNode root, int hash, int[] blocks, int[] indices)
+	{
+		DirectoryNode node = root;
+		int blockNr = -1;
+		for (int depth = 0; node.getLevel() > 0; ++depth)
+		{
+			int index = node.findChild(hash);
+			if (blocks != null)
+			{
+				blocks[depth] = blockNr;
+				indices[depth] = index;
+			}
+
+			blockNr = node.getValue(index);
+			node = readNode(blockNr, node.getLevel() - 1);
+		}
+
+		if (blocks != null)
+			blocks[root.getLevel()] = blockNr;
+
+		return node;
+	}
+
+	/**
+	 * Find an entry by name.
+	 *
+	 * @param dir the directory to search.
+	 * @param name the name of the entry.
+	 * @return The block of the <code>INode</code> with the name, or -1 if there is none.
+	 * @throws IllegalArgumentException Thrown if <code>dir</code> is not a directory.
+	 */
+	public int find(INode dir, String name)
+	{
+		int hash = hash(name);
+		DirectoryNode node = findLeaf(rootOf(dir), hash, null, null);
+
+		int index = node.lowerBound(hash);
+		while (true)
+		{
+			for (; index < node.getCount(); ++index)
+			{
+				if (node.getHash(index) != hash)
+					return -1;
+
+				if (node.hasName(index, name))
+					return node.getValue(index);
+			}
+
+			// Entries with the same hash may continue in the next leaf
+			int next = node.getNext();
+			if (node.getBlock() == dir.getBlock() || next == -1)
+				return -1;
+
+			node = readNode(next, 0);
+			index = 0;
+		}
+	}
+
+	/**
+	 * Get the number of blocks that may have to be allocated to add an entry.
+	 *
+	 * @param dir the directory to add an entry to.
+	 * @return The largest number of blocks {@link #add} can take from the free list.
+	 */
+	public int blocksNeededToAdd(INode dir)
+	{
+		return rootOf(dir).getLevel() + 2;
+	}
+
+	/**
+	 * Add an entry to a directory and increase its size. Does not check for existing entries.
+	 *
+	 * @param dir the directory to add the entry to.
+	 * @param name the name of the entry.
+	 * @param type the type of the <code>INode</code> to add.
+	 * @param child the block of the <code>INode</code> to add.
+	 * @param freeList the free list to take any new index blocks from.
+	 * There must be at least <code>blocksNeededToAdd(dir)</code> free blocks.
+	 * @throws IllegalArgumentException Thrown if <code>dir</code> is not a directory.
+	 */
+	public void add(INode dir, String name, INode.Type type, int child, FreeListNode freeList)
+	{
+		int hash = hash(name);
+		DirectoryNode root = rootOf(dir);
+
+		int height = root.getLevel() + 1;
+		int[] blocks = new int[height];
+		int[] indices = new int[height];
+		DirectoryNode[] nodes = new DirectoryNode[height];
+
+		// Find the path, keeping a scratch block for each level
+		nodes[0] = root;
+		blocks[0] = -1;
+		for (int depth = 0; depth < height - 1; ++depth)
+		{
+			indices[depth] = nodes[depth].findChild(hash);
+			blocks[depth + 1] = nodes[depth].getValue(indices[depth]);
+			nodes[depth + 1] = readNode(blocks[depth + 1], nodes[depth].getLevel() - 1);
+		}
+
+		int depth = height - 1;
+		int index = nodes[depth].upperBound(hash);
+		int value = child;
+
+		// Insert, splitting full nodes on the way up
+		while (true)
+		{
+			DirectoryNode node = nodes[depth];
+			if (!node.isFull())
+			{
+				insert(node, index, hash, value, type, name);
+				if (blocks[depth] != -1)
+					m_BlockDevice.writeBlock(blocks[depth], node.getBlock());
+				break;
+			}
+
+			if (depth == 0)
+			{
+				// Move the root into a new block, and let the root point to it
+				int movedNr = freeList.getNewBlock();
+				DirectoryNode moved = new DirectoryNode(new byte[m_nBlockSize], 0, m_nBlockSize);
+				moved.clear(node.getLevel());
+				node.moveEntries(0, moved);
+
+				node.clear(moved.getLevel() + 1);
+				node.insert(0, moved.getHash(0), movedNr);
+
+				// The moved node is larger than the root, but may still be full
+				if (!moved.isFull())
+				{
+					insert(moved, index, hash, value, type, name);
+					m_BlockDevice.writeBlock(movedNr, moved.getBlock());
+					break;
+				}
+
+				nodes = new DirectoryNode[] { node, moved };
+				blocks = new int[] { -1, movedNr };
+				indices = new int[] { 0 };
+				depth = 1;
+				continue;
+			}
+
+			int splitNr = freeList.getNewBlock();
+			DirectoryNode split = new DirectoryNode(new byte[m_nBlockSize], 0, m_nBlockSize);
+			split.clear(node.getLevel());
+
+			int mid = node.getCount() / 2;
+			node.moveEntries(mid, split);
+			if (node.getLevel() == 0)
+			{
+				split.setNext(node.getNext());
+				node.setNext(splitNr);
+			}
+
+			if (index <= mid)
+				insert(node, index, hash, value, type, name);
+			else
+				insert(split, index - mid, hash, value, type, name);
+
+			m_BlockDevice.writeBlock(blocks[depth], node.getBlock());
+			m_BlockDevice.writeBlock(splitNr, split.getBlock());
+
+			// Continue by adding the new node to the parent
+			hash = split.getHash(0);
+			value = splitNr;
+			--depth;
+			index = indices[depth] + 1;
+		}
+
+		dir.setSize(dir.getSize() + 1);
+	}
+
+	private static void insert(DirectoryNode node, int index, int hash, int value, INode.Type type, String name)
+	{
+		if (node.getLevel() == 0)
+			node.insert(index, hash, value, type, name);
+		else
+			node.insert(index, hash, value);
+	}
+
+	/**
+	 * Remove an entry from a directory and decrease its size. If the directory
+	 * becomes empty, all index blocks are freed.
+	 *
+	 * @param dir the directory to remove the entry from.
+	 * @param name the name of the entry.
+	 * @param freeList the free list to return any unused index blocks to.
+	 * @return The block of the <code>INode</code> of the removed entry, or -1 if the entry was not found.
+	 * @throws IllegalArgumentException Thrown if <code>dir</code> is not a directory.
+	 */
+	public int remove(INode dir, String name, FreeListNode freeList)
+	{
+		int hash = hash(name);
+		DirectoryNode root = rootOf(dir);
+
+		int[] blocks = new int[root.getLevel() + 1];
+		DirectoryNode node = findLeaf(root, hash, blocks, new int[blocks.length]);
+		int blockNr = blocks[blocks.length - 1];
+
+		int index = node.lowerBound(hash);
+		while (true)
+		{
+			for (; index < node.getCount() && node.getHash(index) == hash; ++index)
+			{
+				if (!node.hasName(index, name))
+					continue;
+
+				int child = node.getValue(index);
+				node.remove(index);
+				dir.setSize(dir.getSize() - 1);
+
+				if (dir.getSize() == 0 && root.getLevel() > 0)
+				{
+					freeNodes(root, freeList);
+					root.clear(0);
+				}
+				else if (blockNr != -1)
+				{
+					m_BlockDevice.writeBlock(blockNr, node.getBlock());
+				}
+
+				return child;
+			}
+
+			if (index < node.getCount() || blockNr == -1 || node.getNext() == -1)
+				return -1;
+
+			blockNr = node.getNext();
+			node = readNode(blockNr, 0);
+			index = 0;
+		}
+	}
+
+	private void freeNodes(DirectoryNode node, FreeListNode freeList)
+	{
+		for (int i = 0; i < node.getCount(); ++i)
+		{
+			int childNr = node.getValue(i);
+			if (node.getLevel() > 1)
+				freeNodes(readNode(childNr, node.getLevel() - 1), freeList);
+
+			freeList.freeBlock(childNr);
+		}
+	}
+
+	/**
+	 * Count the blocks used by the index of a directory, not including the <code>INode</code>.
+	 *
+	 * @param dir the directory to count the blocks of.
+	 * @return The number of index blocks.
+	 */
+	public int countBlocks(INode dir)
+	{
+		return countBlocks(rootOf(dir));
+	}
+
+	private int countBlocks(DirectoryNode node)
+	{
+		if (node.getLevel() == 0)
+			return 0;
+
+		int count = node.getCount();
+		if (node.getLevel() > 1)
+		{
+			for (int i = 0; i < node.getCount(); ++i)
+			{
+				count += countBlocks(readNode(node.getValue(i), node.getLevel() - 1));
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Iterates over the entries of a directory in hash order.
+	 * The directory must not be changed while iterating.
+	 */
+	public class Cursor
+	{
+		private DirectoryNode m_Node;
+		private boolean m_bRoot;
+		private int m_nIndex = -1;
+
+		private Cursor(INode dir)
+		{
+			m_Node = rootOf(dir);
+			m_bRoot = true;
+
+			// Find the leftmost leaf, reading into a block owned by the cursor
+			while (m_Node.getLevel() > 0)
+			{
+				int childNr = m_Node.getValue(0);
+				m_Node = new DirectoryNode(m_bRoot ? new byte[m_nBlockSize] : m_Node.getBlock(), 0, m_nBlockSize);
+				m_BlockDevice.readBlock(childNr, m_Node.getBlock(), 0);
+				m_bRoot = false;
+			}
+		}
+
+		/**
+		 * Move to the next entry.
+		 *
+		 * @return <code>false</code> if there are no more entries.
+		 */
+		public boolean next()
+		{
+			++m_nIndex;
+			while (m_nIndex >= m_Node.getCount())
+			{
+				if (m_bRoot || m_Node.getNext() == -1)
+					return false;
+
+				m_BlockDevice.readBlock(m_Node.getNext(), m_Node.getBlock(), 0);
+				m_nIndex = 0;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Get the current entry.
+		 *
+		 * @return The block of the <code>INode</code> of the current entry.
+		 */
+		public int getChild()
+		{
+			return m_Node.getValue(m_nIndex);
+		}
+
+		/**
+		 * Get the name of the current entry.
+		 *
+		 * @return The name of the current entry.
+		 */
+		public String getName()
+		{
+			return m_Node.getName(m_nIndex);
+		}
+
+		/**
+		 * Get the type of the current entry.
+		 *
+		 * @return The type of the <code>INode</code> of the current entry.
+		 */
+		public INode.Type getType()
+		{
+			return m_Node.getType(m_nIndex);
+		}
+	}
+
+	/**
+	 * Start iterating over the entries of a directory.
+	 *
+	 * @param dir the directory to iterate over.
+	 * @return A cursor placed before the first entry.
+	 */
+	public Cursor iterate(INode dir)
+	{
+		return new Cursor(dir);
+	}
+}
@@ -0,0 +1,98 @@
+package se.jereq.filesystem;
+
+/**
+ * An entry of a directory as listed by {@link Filesystem#list}. Holds what is needed to tell the
+ * entries apart and pick among them, without formatting anything.
+ */
+public class DirectoryEntry
+{
+	/**
+	 * The size of an entry listed without reading its <code>INode</code>.
+	 */
+	public static final int UNKNOWN_SIZE = -1;
+
+	private final String m_sName;
+	private final INode.Type m_Type;
+	private final int m_nSize;
+	private final int m_nINode;
+
+	/**
+	 * constructor.
+	 *
+	 * @param name the name of the entry.
+	 * @param type whether the entry is a file or a directory.
+	 * @param size the size of the file in bytes, or the number of entries of the directory.
+	 * {@link #UNKNOWN_SIZE} if it was not read.
+	 * @param inode the number of the block holding the <code>INode</code> of the entry.
+	 */
+	DirectoryEntry(String name, INode.Type type, int size, int inode)
+	{
+		m_sName = name;
+		m_Type = type;
+		m_nSize = size;
+		m_nINode = inode;
+	}
+
+	/**
+	 * @return The name of the entry.
+	 */
+	public String getName()
+	{
+		return m_sName;
+	}
+
+	/**
+	 * @return Whether the entry is a file or a directory.
+	 */
+	public INode.Type getType()
+	{
+		return m_Type;
+	}
+
+	/**
+	 * @return The size of the file in bytes, or the number of entries of the directory.
+	 * {@link #UNKNOWN_SIZE} if the entry was listed without its size, see {@link Filesystem#listWithSizes}.
+	 */
+	public int getSize()
+	{
+		return m_nSize;
+	}
+
+	/**
+	 * @return <code>true</code> if the size of the entry was read.
+	 */
+	public boolean hasSize()
+	{
+		return m_nSize != UNKNOWN_SIZE;
+	}
+
+	/**
+	 * @return The number of the block holding the <code>INode</code> of the entry.
+	 */
+	public int getINode()
+	{
+		return m_nINode;
+	}
+
+	/**
+	 * @return <code>true</code> if the entry is a file.
+	 */
+	public boolean isFile()
+	{
+		return m_Type == INode.Type.File;
+	}
+
+	/**
+	 * @return <code>true</code> if the entry is a directory.
+	 */
+	public boolean isDirectory()
+	{
+		return m_Type == INode.Type.Directory;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_sName;
+	}
+}
@@ -0,0 +1,374 @@
+package se.jereq.filesystem;
+
+/**
+ * A representation of a node in the index of a directory, stored in part of an underlying byte array.
+ * Entries are kept sorted by the hash of the name they index. Leaf nodes (level 0) hold the entries
+ * of the directory, with the name, type and block of each <code>INode</code>, and are linked in hash
+ * order. Other nodes map the lowest hash found in a child node to the block of that child node.
+ * Changes must be saved externally by storing the underlying block.
+ */
+public class DirectoryNode
+{
+	/**
+	 * The number of bytes used by the node header.
+	 */
+	public static final int HEADER_SIZE = 12;
+
+	/**
+	 * The number of bytes used by each entry in leaf nodes.
+	 */
+	public static final int LEAF_ENTRY_SIZE = 9 + INode.MAX_FILENAME_LENGTH;
+
+	/**
+	 * The number of bytes used by each entry in other nodes.
+	 */
+	public static final int INDEX_ENTRY_SIZE = 8;
+
+	private static final int LEVEL_OFFSET = 0;
+	private static final int COUNT_OFFSET = LEVEL_OFFSET + 4;
+	private static final int NEXT_OFFSET = COUNT_OFFSET + 4;
+
+	private static final int HASH_OFFSET = 0;
+	private static final int VALUE_OFFSET = HASH_OFFSET + 4;
+	private static final int TYPE_OFFSET = VALUE_OFFSET + 4;
+	private static final int NAME_OFFSET = TYPE_OFFSET + 1;
+
+	private byte[] block;
+	private int offset;
+	private int size;
+
+	/**
+	 * constructor. Creates a <code>DirectoryNode</code> for an existing node.
+	 *
+	 * @param data the byte array holding the node.
+	 * @param offset the index in <code>data</code> where the node starts.
+	 * @param size the number of bytes available to the node.
+	 * @throws IllegalArgumentException Exception thrown if the range is invalid or too small to hold a node.
+	 */
+	public DirectoryNode(byte[] data, int offset, int size)
+	{
+		if (data == null || offset < 0 || size < HEADER_SIZE + 2 * LEAF_ENTRY_SIZE || offset > data.length - size)
+			throw new IllegalArgumentException("Invalid node range");
+
+		block = data;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * Reset the node to an empty node.
+	 *
+	 * @param level the level of the node, 0 for leaf nodes.
+	 */
+	public void clear(int level)
+	{
+		setLevel(level);
+		setCount(0);
+		setNext(-1);
+	}
+
+	/**
+	 * Get the underlying byte array.
+	 *
+	 * @return The array given to the constructor.
+	 */
+	public byte[] getBlock()
+	{
+		return block;
+	}
+
+	/**
+	 * Get the level of the node within the index.
+	 *
+	 * @return 0 for leaf nodes, otherwise one more than the level of the child nodes.
+	 */
+	public int getLevel()
+	{
+		return getInt(LEVEL_OFFSET);
+	}
+
+	/**
+	 * Set the level of the node within the index.
+	 *
+	 * @param level 0 for leaf nodes, otherwise one more than the level of the child nodes.
+	 */
+	public void setLevel(int level)
+	{
+		putInt(LEVEL_OFFSET, level);
+	}
+
+	/**
+	 * Get the number of entries in the node.
+	 *
+	 * @return The number of entries.
+	 */
+	public int getCount()
+	{
+		return getInt(COUNT_OFFSET);
+	}
+
+	private void setCount(int count)
+	{
+		putInt(COUNT_OFFSET, count);
+	}
+
+	/**
+	 * Get the next leaf node in hash order.
+	 *
+	 * @return The block of the next leaf node, or -1 if there is none.
+	 */
+	public int getNext()
+	{
+		return getInt(NEXT_OFFSET);
+	}
+
+	/**
+	 * Set the next leaf node in hash order.
+	 *
+	 * @param next the block of the next leaf node, or -1 if there is none.
+	 */
+	public void setNext(int next)
+	{
+		putInt(NEXT_OFFSET, next);
+	}
+
+	/**
+	 * Get the number of entries that fit in the node.
+	 *
+	 * @return The maximum number of entries.
+	 */
+	public int getCapacity()
+	{
+		return (size - HEADER_SIZE) / entrySize();
+	}
+
+	private int entrySize()
+	{
+		return getLevel() == 0 ? LEAF_ENTRY_SIZE : INDEX_ENTRY_SIZE;
+	}
+
+	/**
+	 * Check if there is room for another entry.
+	 *
+	 * @return <code>true</code> if the node can not hold any more entries.
+	 */
+	public boolean isFull()
+	{
+		return getCount() >= getCapacity();
+	}
+
+	/**
+	 * Get the hash of an entry.
+	 *
+	 * @param num the index of the entry, in the range [0, <code>getCount()</code>).
+	 * @return The hash of the name indexed by the entry.
+	 */
+	public int getHash(int num)
+	{
+		return getInt(toIndex(num) + HASH_OFFSET);
+	}
+
+	/**
+	 * Get the value of an entry.
+	 *
+	 * @param num the index of the entry, in the range [0, <code>getCount()</code>).
+	 * @return For leaf nodes the block of an <code>INode</code>, otherwise the block of a child node.
+	 */
+	public int getValue(int num)
+	{
+		return getInt(toIndex(num) + VALUE_OFFSET);
+	}
+
+	/**
+	 * Get the name of an entry. Only valid for leaf nodes.
+	 *
+	 * @param num the index of the entry, in the range [0, <code>getCount()</code>).
+	 * @return The name of the entry.
+	 */
+	public String getName(int num)
+	{
+		return INode.decodeName(block, offset + toIndex(num) + NAME_OFFSET);
+	}
+
+	/**
+	 * Check if an entry has the given name. Only valid for leaf nodes.
+	 *
+	 * @param num the index of the entry, in the range [0, <code>getCount()</code>).
+	 * @param name the name to compare with.
+	 * @return <code>true</code> if the name of the entry equals <code>name</code>.
+	 */
+	public boolean hasName(int num, String name)
+	{
+		return INode.nameEquals(block, offset + toIndex(num) + NAME_OFFSET, name);
+	}
+
+	/**
+	 * Get the type of the <code>INode</code> of an entry. Only valid for leaf nodes.
+	 *
+	 * @param num the index of the entry, in the range [0, <code>getCount()</code>).
+	 * @return The type of the <code>INode</code>.
+	 */
+	public INode.Type getType(int num)
+	{
+		return INode.decodeType(block[offset + toIndex(num) + TYPE_OFFSET]);
+	}
+
+	/**
+	 * Find the child node to search for a hash. Only valid for nodes that are not leaves.
+	 * <br><br>
+	 * Entries with the same hash may continue into the following leaves,
+	 * so the search must start in the child before any child starting with the hash.
+	 *
+	 * @param hash the hash to search for.
+	 * @return The index of the last entry with a lower hash, or 0 if there is none.
+	 */
+	public int findChild(int hash)
+	{
+		return Math.max(0, lowerBound(hash) - 1);
+	}
+
+	/**
+	 * Find the first entry with a hash at least as large as the given hash.
+	 *
+	 * @param hash the hash to search for.
+	 * @return The index of the entry, or <code>getCount()</code> if all hashes are lower.
+	 */
+	public int lowerBound(int hash)
+	{
+		int low = 0;
+		int high = getCount();
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (getHash(mid) < hash)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Find the first entry with a hash larger than the given hash.
+	 *
+	 * @param hash the hash to search for.
+	 * @return The index of the entry, or <code>getCount()</code> if no hash is larger.
+	 */
+	public int upperBound(int hash)
+	{
+		int low = 0;
+		int high = getCount();
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (getHash(mid) <= hash)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Insert an entry, shifting any following entries. Only valid for nodes that are not leaves.
+	 *
+	 * @param num the index of the new entry, in the range [0, <code>getCount()</code>].
+	 * @param hash the lowest hash in the child node.
+	 * @param value the block of the child node.
+	 * @throws RuntimeException Thrown if the node is full.
+	 */
+	public void insert(int num, int hash, int value)
+	{
+		int start = makeRoom(num);
+		putInt(start + HASH_OFFSET, hash);
+		putInt(start + VALUE_OFFSET, value);
+	}
+
+	/**
+	 * Insert an entry, shifting any following entries. Only valid for leaf nodes.
+	 *
+	 * @param num the index of the new entry, in the range [0, <code>getCount()</code>].
+	 * @param hash the hash of the name.
+	 * @param value the block of the <code>INode</code>.
+	 * @param type the type of the <code>INode</code>.
+	 * @param name the name of the entry, no longer than <code>INode.MAX_FILENAME_LENGTH</code> bytes.
+	 * @throws RuntimeException Thrown if the node is full.
+	 */
+	public void insert(int num, int hash, int value, INode.Type type, String name)
+	{
+		int start = makeRoom(num);
+		putInt(start + HASH_OFFSET, hash);
+		putInt(start + VALUE_OFFSET, value);
+		block[offset + start + TYPE_OFFSET] = INode.encodeType(type);
+		INode.encodeName(block, offset + start + NAME_OFFSET, name);
+	}
+
+	private int makeRoom(int num)
+	{
+		int count = getCount();
+		if (count >= getCapacity())
+			throw new RuntimeException("Max size reached");
+
+		int start = toIndex(num);
+		int entrySize = entrySize();
+		System.arraycopy(block, offset + start, block, offset + start + entrySize, (count - num) * entrySize);
+		setCount(count + 1);
+
+		return start;
+	}
+
+	/**
+	 * Remove an entry, shifting any following entries to remove the empty space.
+	 *
+	 * @param num the index of the entry to remove, in the range [0, <code>getCount()</code>).
+	 */
+	public void remove(int num)
+	{
+		int count = getCount();
+		int start = offset + toIndex(num);
+		int entrySize = entrySize();
+		System.arraycopy(block, start + entrySize, block, start, (count - num - 1) * entrySize);
+		setCount(count - 1);
+	}
+
+	/**
+	 * Move the entries from an index and on to the end of another node of the same level.
+	 *
+	 * @param num the index of the first entry to move.
+	 * @param dest the node to move the entries to, with room for them.
+	 */
+	public void moveEntries(int num, DirectoryNode dest)
+	{
+		int count = getCount();
+		int destCount = dest.getCount();
+		System.arraycopy(block, offset + toIndex(num), dest.block, dest.offset + dest.toIndex(destCount),
+				(count - num) * entrySize());
+		dest.setCount(destCount + count - num);
+		setCount(num);
+	}
+
+	private int toIndex(int num)
+	{
+		return HEADER_SIZE + entrySize() * num;
+	}
+
+	private int getInt(int index)
+	{
+		index += offset;
+		return (block[index] & 0xff) << 24 |
+				(block[index + 1] & 0xff) << 16 |
+				(block[index + 2] & 0xff) << 8 |
+				(block[index + 3] & 0xff);
+	}
+
+	private void putInt(int index, int val)
+	{
+		index += offset;
+		block[index + 0] = (byte) (val >>> 24);
+		block[index + 1] = (byte) (val >>> 16);
+		block[index + 2] = (byte) (val >>> 8);
+		block[index + 3] = (byte) val;
+	}
+}
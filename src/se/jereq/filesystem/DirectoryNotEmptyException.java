@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A directory to remove still has entries.
+ */
+public class DirectoryNotEmptyException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public DirectoryNotEmptyException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,43 @@
+package se.jereq.filesystem;
+
+/**
+ * What {@link Filesystem#stat} found at a path: the entry as it would be listed in its
+ * directory, and how the contents are stored.
+ */
+public class FileStat extends DirectoryEntry
+{
+	private final boolean m_bInline;
+	private final int m_nBlocks;
+
+	/**
+	 * constructor.
+	 *
+	 * @param node the <code>INode</code> found.
+	 * @param inode the number of the block holding the <code>INode</code>.
+	 * @param blocks the number of blocks the contents or the index are stored in.
+	 */
+	FileStat(INode node, int inode, int blocks)
+	{
+		super(node.getName(), node.getType(), node.getSize(), inode);
+
+		m_bInline = node.isInline();
+		m_nBlocks = blocks;
+	}
+
+	/**
+	 * @return <code>true</code> if the contents of the file are stored in its <code>INode</code> rather than in blocks of their own.
+	 */
+	public boolean isInline()
+	{
+		return m_bInline;
+	}
+
+	/**
+	 * @return The number of blocks the contents of a file are stored in, or the number of blocks of
+	 * the index of a directory, not counting the <code>INode</code>. Blocks shared with copies are counted as well.
+	 */
+	public int getBlockCount()
+	{
+		return m_nBlocks;
+	}
+}
@@ -1,7 +1,5 @@
 package se.jereq.filesystem;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,29 +7,200 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A simple and limited filesystem using a provided {@link BlockDevice}.
  * <br><br>
- * Currently only supports statically defined blocks sizes and block counts.
+ * The block size and block count are those of the device when it is formatted,
+ * and are recorded in a {@link Superblock} stored in the first block.
+ * <br><br>
+ * Each operation changing the filesystem is a transaction of a {@link JournalBlockDevice},
+ * so that the metadata stays consistent if the program stops in the middle of an operation.
+ * Operations are only certain to have reached the device after {@link #sync}.
+ * <br><br>
+ * The filesystem may be used by several threads at once. Each operation locks the <code>INode</code>s
+ * it reads or changes, see {@link INodeLocks}, so operations on different files and directories run
+ * in parallel, and the changes of operations running at the same time are committed together.
+ * Streams and channels must each be used by one thread at a time.
+ * <br><br>
+ * Relative paths are resolved from a working directory. Operations called on the filesystem
+ * itself share a single working directory, while each {@link Session} opened with {@link #openSession}
+ * has one of its own, so that several clients can use the same filesystem without a filesystem
+ * each over the same device.
+ * <br><br>
+ * The latency of each operation, and the blocks it transfers, are counted in the
+ * {@link FilesystemMetrics} of the filesystem, see {@link #getMetrics}. Operations and block
+ * transfers taking long are also recorded as Flight Recorder events.
+ * <br><br>
+ * The operations returning a descriptive <code>String</code> are meant for a shell. Each has a typed
+ * counterpart, such as {@link #listWithSizes} for {@link #ls} or {@link #readAllBytes} for {@link #cat}, returning
+ * the result as it is and throwing a {@link FilesystemException} on errors, with the message the
+ * <code>String</code> would have been. Programs should use those.
  */
 public class Filesystem
 {
-	private static final short ROOT_BLOCK = 0;
-	private static final short FREE_LIST_BLOCK = 1;
+	private static final int SUPERBLOCK = 0;
+	
+	// The largest number of blocks passed to the device in a single request
+	private static final int BATCH_BLOCKS = 64;
+	
+	// The device given to the filesystem, behind one counting every transfer
+	private BlockDevice m_BlockDevice;
+	private final FilesystemMetrics m_Metrics;
+	// Metadata is written through the journal, file contents through its data device
+	private JournalBlockDevice m_Journal;
+	private BlockDevice m_DataDevice;
+	// Replaced each time the filesystem is prepared for use, null while it can not be used
+	private volatile Object m_Mount;
+	// The session of the operations called on the filesystem itself
+	private final Session m_Session = new Session(this);
+	
+	private Superblock m_Superblock;
+	private FreeListNode m_FreeList;
+	private RefCountTable m_RefCounts;
+	private DentryCache m_Dentries;
+	private Directory m_Directory;
+	
+	// Held for reading by every operation, and for writing by those needing the whole tree to themselves
+	private final ReentrantReadWriteLock m_TreeLock = new ReentrantReadWriteLock();
+	// Held while moving entries between directories, so the shape of the tree changes one move at a time
+	private final ReentrantLock m_RenameLock = new ReentrantLock();
+	private final INodeLocks m_Locks = new INodeLocks();
+	// The files with streams or channels open on them, by the block of their INode
+	private final Map<Integer, OpenFile> m_OpenFiles = new HashMap<Integer, OpenFile>();
+	
+	// Scratch blocks of each thread reused by lookups and block copies, so that they do not create garbage
+	private ThreadLocal<Scratch> m_Scratch;
+	
+	private static final int[] NO_INODES = new int[0];
+	
+	// The ways a path can ask for its INodes to be locked
+	private static final int UNLOCKED = 0;
+	private static final int SHARED = 1;
+	private static final int EXCLUSIVE = 2;
+	
+	/**
+	 * Scratch blocks reused by the lookups and block copies of a thread.
+	 */
+	private static class Scratch
+	{
+		final byte[] pathBlock;
+		final INode pathNode;
+		final byte[] entryBlock;
+		final INode entryNode;
+		
+		Scratch(int blockSize)
+		{
+			pathBlock = new byte[blockSize];
+			pathNode = new INode(pathBlock);
+			entryBlock = new byte[blockSize];
+			entryNode = new INode(entryBlock);
+		}
+	}
 	
 	/**
-	 * The index of the first block free for dynamic use.
-	 * Earlier blocks are reserved for use by the filesystem.
+	 * A path to resolve, and how its <code>INode</code>s are to be locked. Once resolved, the
+	 * <code>INode</code> at the path and the directory holding it each come with the version of
+	 * their lock stripe, read while they were known to be in the tree, so that once locked it can
+	 * be checked that nobody has changed them since.
 	 */
-	public static final short BLOCK_START = 2;
+	private static class Resolved
+	{
+		final String[] path;
+		final int parentMode;
+		final int nodeMode;
+		
+		// The working directory the path was made absolute in, if any, to look the path up from
+		final WorkingDirectory cwd;
+		
+		// The INodes at each start of the path, from the root, as far as they were found
+		final int[] chain;
+		int parent = -1;
+		int parentVersion;
+		int node = -1;
+		int nodeVersion;
+		
+		Resolved(String[] absPath, int parentMode, int nodeMode)
+		{
+			this(absPath, null, parentMode, nodeMode);
+		}
+		
+		Resolved(String[] absPath, WorkingDirectory cwd, int parentMode, int nodeMode)
+		{
+			path = absPath;
+			this.cwd = cwd;
+			this.parentMode = parentMode;
+			this.nodeMode = nodeMode;
+			chain = new int[absPath.length + 1];
+		}
+	}
 	
-	private BlockDevice m_BlockDevice;
-	private List<String> currentDirectory;
+	/**
+	 * A file with streams or channels open on it. Once the <code>INode</code> of the file is freed
+	 * its block may be given to another file, so it is marked as removed for the handles to see.
+	 */
+	private static class OpenFile
+	{
+		final int node;
+		// The number of handles open, guarded by m_OpenFiles
+		int handles = 0;
+		// Only changed with the INode locked for writing, or the whole tree while it is set up
+		volatile boolean removed = false;
+		
+		OpenFile(int node)
+		{
+			this.node = node;
+		}
+	}
+	
+	/**
+	 * The working directory of a {@link Session}, replaced as a whole when it changes. Comes with
+	 * the directory anchored in the dentry cache once it has been resolved, so that relative paths
+	 * are looked up from there rather than from the root.
+	 */
+	static class WorkingDirectory
+	{
+		// The filesystem was prepared for use again if this is not the current mount
+		final Object mount;
+		final String[] path;
+		volatile DentryCache.Anchor anchor;
+		
+		WorkingDirectory(Object mount, String[] absPath)
+		{
+			this.mount = mount;
+			path = absPath;
+		}
+		
+		/**
+		 * Check whether a path made absolute in this directory goes through it, further than the root.
+		 * 
+		 * @param length the number of components of the path to consider.
+		 */
+		boolean isAbove(String[] absPath, int length)
+		{
+			if (path.length == 0 || path.length > length)
+				return false;
+			
+			// Relative paths share the components of the working directory
+			for (int i = 0; i < path.length; ++i)
+			{
+				if (path[i] != absPath[i])
+					return false;
+			}
+			
+			return true;
+		}
+	}
 
 	/**
 	 * constructor.
@@ -40,7 +209,29 @@ public class Filesystem
 	 */
 	public Filesystem(BlockDevice p_BlockDevice)
 	{
-		m_BlockDevice = p_BlockDevice;
+		m_Metrics = new FilesystemMetrics(this, p_BlockDevice);
+		m_BlockDevice = new MeteredBlockDevice(p_BlockDevice, m_Metrics);
+	}
+	
+	/**
+	 * Get the metrics of the operations run on this filesystem and its sessions.
+	 * 
+	 * @return The metrics, kept since the filesystem was created.
+	 */
+	public FilesystemMetrics getMetrics()
+	{
+		return m_Metrics;
+	}
+
+	/**
+	 * Open a new session on this filesystem, with its own working directory starting at the root.
+	 * Each thread can have a session of its own, while all of them share the filesystem.
+	 * 
+	 * @return The new session.
+	 */
+	public Session openSession()
+	{
+		return new Session(this);
 	}
 
 	/**
@@ -51,67 +242,195 @@ public class Filesystem
 	 */
 	public String format()
 	{
-		INode root = new INode("SYSTEM_ROOT_NODE", INode.Type.Directory);
-		writeINode(ROOT_BLOCK, root);
+		FilesystemMetrics.Context context = m_Metrics.begin(FilesystemMetrics.Operation.FORMAT, null, null);
+		try
+		{
+			return formatDevice();
+		}
+		finally
+		{
+			m_Metrics.end(context);
+		}
+	}
+	
+	private String formatDevice()
+	{
+		int blockSize = m_BlockDevice.getBlockSize();
+		int blockCount = m_BlockDevice.getBlockCount();
 		
-		FreeListNode free = new FreeListNode();
-		writeFreeList(free);
+		if (blockSize < Superblock.MIN_BLOCK_SIZE)
+			return "Unsupported block size. Blocks must be at least " + Superblock.MIN_BLOCK_SIZE + " bytes";
+		if (blockSize % 8 != 0)
+			return "Unsupported block size. Blocks must be a multiple of 8 bytes";
 		
-		currentDirectory = Collections.emptyList();
+		Superblock superblock = new Superblock(blockSize, blockCount);
+		if (superblock.getFirstFreeBlock() >= blockCount)
+			return "Blockdevice too small";
+		
+		m_TreeLock.writeLock().lock();
+		try
+		{
+			m_BlockDevice.writeBlock(SUPERBLOCK, superblock.getBlock());
+			
+			m_Journal = new JournalBlockDevice(m_BlockDevice, superblock.getJournalStart(), superblock.getJournalBlocks());
+			m_Journal.format();
+			
+			FreeListNode free = new FreeListNode(blockSize, blockCount, superblock.getFirstFreeBlock());
+			setup(superblock, free, new RefCountTable(blockSize, blockCount));
+			
+			INode root = new INode("SYSTEM_ROOT_NODE", INode.Type.Directory, blockSize);
+			Directory.initialize(root);
+			writeINode(superblock.getRootBlock(), root);
+			writeFreeList(free);
+			m_Journal.flush();
+			
+			m_Mount = new Object();
+		}
+		finally
+		{
+			m_TreeLock.writeLock().unlock();
+		}
 		
 		return new String("Diskformat successful");
 	}
 	
-	private short findChildNode(INode current, String nextName)
+	private void setup(Superblock superblock, FreeListNode free, RefCountTable refCounts)
 	{
-		if (current.getType() == INode.Type.File)
-			return -1;
+		m_Superblock = superblock;
+		m_FreeList = free;
+		m_RefCounts = refCounts;
+		m_Dentries = new DentryCache(superblock.getRootBlock());
+		m_Directory = new Directory(m_Journal, superblock.getBlockSize());
+		m_DataDevice = m_Journal.getDataDevice();
+		
+		int blockSize = superblock.getBlockSize();
+		m_Scratch = ThreadLocal.withInitial(() -> new Scratch(blockSize));
+		
+		// Handles open on the blocks as they were can not be used any more
+		synchronized (m_OpenFiles)
+		{
+			for (OpenFile file : m_OpenFiles.values())
+			{
+				file.removed = true;
+			}
+			m_OpenFiles.clear();
+		}
+	}
+	
+	/**
+	 * Load the superblock, free list and reference counts stored on the device,
+	 * after replaying any operations left in the journal.
+	 * 
+	 * @return <code>null</code> if successful, otherwise a descriptive error.
+	 */
+	private String load()
+	{
+		Superblock superblock;
+		try
+		{
+			superblock = new Superblock(m_BlockDevice.readBlock(SUPERBLOCK));
+		}
+		catch (IllegalArgumentException ex)
+		{
+			return "No filesystem found on blockdevice";
+		}
+		
+		int blockSize = superblock.getBlockSize();
+		int blockCount = superblock.getBlockCount();
+		if (blockSize != m_BlockDevice.getBlockSize() || blockCount > m_BlockDevice.getBlockCount())
+			return "Filesystem does not match the geometry of the blockdevice";
+		
+		m_Journal = new JournalBlockDevice(m_BlockDevice, superblock.getJournalStart(), superblock.getJournalBlocks());
+		if (m_Journal.recover() < 0)
+			return "No filesystem found on blockdevice";
+		
+		INode root = new INode(m_Journal.readBlock(superblock.getRootBlock()));
+		if (root.getType() != INode.Type.Directory)
+			return "No filesystem found on blockdevice";
 		
-		int i = 0;
-		short currChild = current.getChild(i++);
-		while (currChild != -1)
+		byte[] freeListData = new byte[superblock.getFreeListBlocks() * blockSize];
+		for (int i = 0; i < superblock.getFreeListBlocks(); ++i)
 		{
-			INode child = new INode(m_BlockDevice.readBlock(currChild));
-			
-			if (child.getName().equals(nextName))
-				return currChild;
-			
-			currChild = current.getChild(i++);
+			m_Journal.readBlock(superblock.getFreeListStart() + i, freeListData, i * blockSize);
+		}
+		
+		byte[] refCountData = new byte[superblock.getRefCountBlocks() * blockSize];
+		for (int i = 0; i < superblock.getRefCountBlocks(); ++i)
+		{
+			m_Journal.readBlock(superblock.getRefCountStart() + i, refCountData, i * blockSize);
+		}
+		
+		FreeListNode free;
+		RefCountTable refCounts;
+		try
+		{
+			free = new FreeListNode(freeListData, blockSize, blockCount);
+			refCounts = new RefCountTable(refCountData, blockSize, blockCount);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			return "No filesystem found on blockdevice";
 		}
 		
-		return -1;
+		setup(superblock, free, refCounts);
+		
+		return null;
+	}
+	
+	private int findChildNode(INode current, String nextName)
+	{
+		if (current.getType() != INode.Type.Directory)
+			return -1;
+		
+		return m_Directory.find(current, nextName);
 	}
 	
-	private INode findChildINode(INode current, String nextName)
+	/**
+	 * Get the working directory of a session. Sessions go back to the root
+	 * when the filesystem is prepared for use again.
+	 * 
+	 * @return The working directory, or <code>null</code> if the filesystem is not ready for use.
+	 */
+	private WorkingDirectory workingDirectory(Session session)
 	{
-		if (current.getType() == INode.Type.File)
+		Object mount = m_Mount;
+		if (mount == null)
 			return null;
 		
-		int i = 0;
-		int currChild = current.getChild(i++);
-		while (currChild != -1)
+		WorkingDirectory cwd = session.getDirectory();
+		if (cwd == null || cwd.mount != mount)
 		{
-			INode child = new INode(m_BlockDevice.readBlock(currChild));
-			
-			if (child.getName().equals(nextName))
-				return child;
-			
-			currChild = current.getChild(i++);
+			cwd = new WorkingDirectory(mount, new String[0]);
+			session.setDirectory(cwd);
 		}
 		
-		return null;
+		return cwd;
+	}
+	
+	/**
+	 * Get the working directory of a session, for operations that can not run before the filesystem is ready.
+	 * 
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	private WorkingDirectory readyDirectory(Session session) throws FilesystemException
+	{
+		WorkingDirectory cwd = workingDirectory(session);
+		if (cwd == null)
+			throw new FilesystemException("Invalid filesystem. Use format or read to prepare the filesystem before use.");
+		
+		return cwd;
 	}
 	
-	private String[] toAbsolute(String[] path)
+	private String[] toAbsolute(WorkingDirectory cwd, String[] path)
 	{
 		if (path == null || path.length == 0)
-			return currentDirectory.toArray(new String[0]);
+			return cwd.path.clone();
 		
 		List<String> absolutePath;
 		if ("".equals(path[0]))
 			absolutePath = new ArrayList<String>();
 		else
-			absolutePath = new ArrayList<String>(currentDirectory);
+			absolutePath = new ArrayList<String>(Arrays.asList(cwd.path));
 		
 		for (String s : path)
 		{
@@ -131,35 +450,153 @@ public class Filesystem
 		return absolutePath.toArray(new String[0]);
 	}
 	
-	private short findNode(String[] absPath)
+	/**
+	 * Find the <code>INode</code>s of a path without locking them. Directories below the part of the
+	 * path known to the cache are locked for reading one at a time while they are searched.
+	 */
+	private void resolve(Resolved found)
 	{
-		if (absPath.length == 0)
-			return ROOT_BLOCK;
+		String[] absPath = found.path;
+		int[] chain = found.chain;
+		DentryCache.Anchor anchor = found.cwd != null ? found.cwd.anchor : null;
 		
-		INode node = new INode(m_BlockDevice.readBlock(ROOT_BLOCK));
-		for (int i = 0; i < absPath.length - 1; ++i)
+		restart:
+		for (;;)
 		{
-			node = findChildINode(node, absPath[i]);
+			int depth = m_Dentries.lookup(anchor, absPath, absPath.length, chain);
+			int cached = depth;
+			found.node = chain[depth];
+			found.parent = depth > 0 ? chain[depth - 1] : -1;
+			found.nodeVersion = m_Locks.getVersion(found.node);
+			found.parentVersion = found.parent != -1 ? m_Locks.getVersion(found.parent) : 0;
 			
-			if (node == null)
-				return -1;
+			// The INodes were still in the tree when the versions were read if the cache still has them
+			int[] check = new int[depth + 1];
+			if (m_Dentries.lookup(anchor, absPath, depth, check) != depth || check[depth] != found.node
+					|| (depth > 0 && check[depth - 1] != found.parent))
+				continue;
+			
+			Scratch scratch = m_Scratch.get();
+			for (; found.node != DentryCache.NEGATIVE && depth < absPath.length; ++depth)
+			{
+				int dirNum = found.node;
+				int dirVersion = found.nodeVersion;
+				
+				INodeLocks.Guard guard = m_Locks.lock(new int[] { dirNum }, NO_INODES);
+				try
+				{
+					if (!m_Locks.isCurrent(dirNum, dirVersion))
+						continue restart;
+					
+					m_Journal.readBlock(dirNum, scratch.pathBlock, 0);
+					int childNum = findChildNode(scratch.pathNode, absPath[depth]);
+					m_Dentries.insert(absPath, depth + 1, dirNum, childNum);
+					
+					found.parent = dirNum;
+					found.parentVersion = dirVersion;
+					found.node = childNum;
+					if (childNum != -1)
+						found.nodeVersion = m_Locks.getVersion(childNum);
+					chain[depth + 1] = childNum;
+				}
+				finally
+				{
+					guard.unlock();
+				}
+			}
+			
+			if (found.node == DentryCache.NEGATIVE)
+			{
+				found.node = -1;
+				
+				// Only the last INode of a path has a parent when it is missing
+				if (depth < absPath.length)
+					found.parent = -1;
+			}
+			
+			// The working directory is cached by now if the path went through it
+			WorkingDirectory cwd = found.cwd;
+			if (cwd != null && (anchor == null || !anchor.isValid()) && cwd.isAbove(absPath, depth))
+				cwd.anchor = m_Dentries.anchor(cwd.path);
+			
+			m_Metrics.pathResolved(absPath.length, cached, depth - cached);
+			return;
 		}
-		
-		return findChildNode(node, absPath[absPath.length - 1]);
 	}
 	
-	private INode findINode(String[] absPath)
+	/**
+	 * Resolve paths and lock the <code>INode</code>s found, in the modes asked for by each path.
+	 * Tries again until none of the <code>INode</code>s was changed by anyone else between being
+	 * found and being locked.
+	 * 
+	 * @return The locks taken, to be unlocked when done.
+	 */
+	private INodeLocks.Guard lock(Resolved... paths)
 	{
-		INode node = new INode(m_BlockDevice.readBlock(ROOT_BLOCK));
-		for (String s : absPath)
+		for (;;)
 		{
-			node = findChildINode(node, s);
+			int[] shared = new int[2 * paths.length];
+			int[] exclusive = new int[2 * paths.length];
+			int sharedCount = 0;
+			int exclusiveCount = 0;
+			for (Resolved found : paths)
+			{
+				resolve(found);
+				
+				if (found.parent != -1 && found.parentMode == SHARED)
+					shared[sharedCount++] = found.parent;
+				else if (found.parent != -1 && found.parentMode == EXCLUSIVE)
+					exclusive[exclusiveCount++] = found.parent;
+				
+				if (found.node != -1 && found.nodeMode == SHARED)
+					shared[sharedCount++] = found.node;
+				else if (found.node != -1 && found.nodeMode == EXCLUSIVE)
+					exclusive[exclusiveCount++] = found.node;
+			}
+			
+			INodeLocks.Guard guard = m_Locks.lock(Arrays.copyOf(shared, sharedCount), Arrays.copyOf(exclusive, exclusiveCount));
+			
+			boolean current = true;
+			for (Resolved found : paths)
+			{
+				if (found.parent != -1 && found.parentMode != UNLOCKED)
+					current &= m_Locks.isCurrent(found.parent, found.parentVersion);
+				if (found.node != -1 && found.nodeMode != UNLOCKED)
+					current &= m_Locks.isCurrent(found.node, found.nodeVersion);
+			}
+			
+			if (current)
+				return guard;
 			
-			if (node == null)
-				return null;
+			guard.unlock();
+		}
+	}
+	
+	/**
+	 * Start an operation changing the filesystem, as a handle on the running journal transaction.
+	 * Must be called before locking any <code>INode</code>, as it may wait for the transaction to be committed.
+	 */
+	private void beginChange()
+	{
+		m_TreeLock.readLock().lock();
+		m_Journal.begin();
+	}
+	
+	/**
+	 * End an operation started with {@link #beginChange}. Blocks freed by transactions
+	 * committed in the meantime can be taken again from here on.
+	 */
+	private void endChange()
+	{
+		try
+		{
+			m_Journal.commit();
+			getFreeList().unpin(m_Journal.takeReusable());
+		}
+		finally
+		{
+			m_TreeLock.readLock().unlock();
 		}
-		
-		return node;
 	}
 
 	/**
@@ -173,20 +610,19 @@ public class Filesystem
 	 */
 	public String ls(String[] p_asPath)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
-		
-		String[] absPath = toAbsolute(p_asPath);
-		INode dir = findINode(absPath);
-		
-		if (dir == null)
+		return m_Session.ls(p_asPath);
+	}
+	
+	String ls(Session session, String[] p_asPath)
+	{
+		List<DirectoryEntry> entries;
+		try
 		{
-			return "Directory does not exist";
+			entries = list(session, p_asPath, true);
 		}
-		
-		if (dir.getType() == INode.Type.File)
+		catch (FilesystemException ex)
 		{
-			return "Can not list file";
+			return ex.getMessage();
 		}
 		
 		StringBuilder res = new StringBuilder("Listing directory ");
@@ -194,180 +630,1489 @@ public class Filesystem
 		
 		res.append("\n\n");
 		
-		if (dir.getSize() == 0)
+		if (entries.isEmpty())
 		{
 			res.append("Empty directory");
 			return res.toString();
 		}
 		
-		res.append(String.format("%-20s%-10s%10s\n\n", "Name", "Type", "Size"));
+		// Columns of 20, 10 and 10 characters, the last aligned to the right
+		padRight(res, "Name", 20);
+		padRight(res, "Type", 10);
+		padLeft(res, "Size", 10);
+		res.append("\n\n");
 		
-		int i = 0;
-		int currChild = dir.getChild(i++);
-		while (currChild != -1)
+		for (DirectoryEntry entry : entries)
 		{
-			INode child = new INode(m_BlockDevice.readBlock(currChild));
-			
-			res.append(String.format("%-20s%-10s%10d\n", child.getName(), child.getType(), child.getSize()));
-			
-			currChild = dir.getChild(i++);
+			padRight(res, entry.getName(), 20);
+			padRight(res, entry.getType().name(), 10);
+			padLeft(res, Integer.toString(entry.getSize()), 10);
+			res.append('\n');
 		}
 		
 		return res.toString();
 	}
-
-	private FreeListNode getFreeList()
-	{
-		return new FreeListNode(m_BlockDevice.readBlock(FREE_LIST_BLOCK));
-	}
-	
-	private void writeFreeList(FreeListNode freeList)
-	{
-
-		m_BlockDevice.writeBlock(FREE_LIST_BLOCK, freeList.getBlock());
-	}
 	
-	private INode getINode(short num)
+	/**
+	 * Get the entries of a directory, in the order they are stored in. The entries are read while the
+	 * directory is locked, and later changes to the directory do not change the list.
+	 * <br><br>
+	 * Only what the directory itself stores is read, so the size of each entry is
+	 * {@link DirectoryEntry#UNKNOWN_SIZE}. Use {@link #listWithSizes} to read the sizes as well.
+	 * 
+	 * @param p_asPath the directory to list. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return The entries of the directory, empty if it has none.
+	 * @throws NoSuchPathException Thrown if the directory does not exist.
+	 * @throws NotADirectoryException Thrown if the path points to a file.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public List<DirectoryEntry> list(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
 	{
-		return new INode(m_BlockDevice.readBlock(num));
+		return m_Session.list(p_asPath);
 	}
 	
-	private void writeINode(short num, INode node)
+	/**
+	 * Get the entries of a directory like {@link #list}, along with their sizes. The size is stored
+	 * in the <code>INode</code> of each entry, so an extra block is read for every entry.
+	 * 
+	 * @param p_asPath the directory to list. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return The entries of the directory, empty if it has none.
+	 * @throws NoSuchPathException Thrown if the directory does not exist.
+	 * @throws NotADirectoryException Thrown if the path points to a file.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public List<DirectoryEntry> listWithSizes(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
 	{
-		m_BlockDevice.writeBlock(num, node.getBlock());
+		return m_Session.listWithSizes(p_asPath);
 	}
 	
-	private void copyBlock(short source, short dest)
+	List<DirectoryEntry> list(Session session, String[] p_asPath, boolean p_bSizes) throws NoSuchPathException, NotADirectoryException, FilesystemException
 	{
-		byte[] data = m_BlockDevice.readBlock(source);
-		m_BlockDevice.writeBlock(dest, data);
+		WorkingDirectory cwd = readyDirectory(session);
+		
+		Resolved found = new Resolved(toAbsolute(cwd, p_asPath), cwd, UNLOCKED, SHARED);
+		
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			if (found.node == -1)
+				throw new NoSuchPathException("Directory does not exist");
+			
+			INode dir = getINode(found.node);
+			if (dir.getType() == INode.Type.File)
+				throw new NotADirectoryException("Can not list file");
+			
+			List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>(dir.getSize());
+			
+			Scratch scratch = m_Scratch.get();
+			Directory.Cursor cursor = m_Directory.iterate(dir);
+			while (cursor.next())
+			{
+				int size = DirectoryEntry.UNKNOWN_SIZE;
+				if (p_bSizes)
+				{
+					// Only the size is not stored in the entry
+					m_Journal.readBlock(cursor.getChild(), scratch.entryBlock, 0);
+					size = scratch.entryNode.getSize();
+				}
+				
+				entries.add(new DirectoryEntry(cursor.getName(), cursor.getType(), size, cursor.getChild()));
+			}
+			
+			return entries;
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
 	}
 	
 	/**
-	 * Create a new file with the provided content. Fails if the path is invalid or the content is to large.
+	 * Get the type, size and storage of a file or directory.
 	 * 
-	 * @param p_asPath the path to the file to be created. Can be either relative or absolute.
+	 * @param p_asPath the path to the file or directory. Can be either relative or absolute.
 	 * Absolute paths are marked by a leading empty string.
 	 * 
-	 * @param p_abContents a byte array containing the data to initialize the file with.
-	 * @return A descriptive result from the operation, without final newline.
+	 * @return What was found at the path.
+	 * @throws NoSuchPathException Thrown if nothing exists at the path.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
 	 */
-	public String create(String[] p_asPath, byte[] p_abContents)
+	public FileStat stat(String[] p_asPath) throws NoSuchPathException, FilesystemException
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
-
-		if (p_asPath == null || p_asPath.length == 0)
-			return "Invalid path";
-		
-		String[] absPath = toAbsolute(p_asPath);
-		
-		String filename = absPath[absPath.length - 1];
-		if (filename == null || filename.isEmpty())
-			return "Invalid filename";
-		
-		short parentNum = findNode(Arrays.copyOfRange(absPath, 0, absPath.length - 1));
-		if (parentNum == -1)
-			return "Invalid path";
-		
-		INode parentNode = getINode(parentNum);
-		if (findChildNode(parentNode, filename) != -1)
-			return "A file or directory with that name already exists. Delete that file first or choose another name.";
-		
-		if (p_abContents.length > BlockDevice.BLOCK_SIZE * INode.NUM_CHILDREN)
-			return "Size to large. Max filesize supported is " + (BlockDevice.BLOCK_SIZE * INode.NUM_CHILDREN) + " bytes";
-		
-		FreeListNode free = getFreeList();
+		return m_Session.stat(p_asPath);
+	}
+	
+	FileStat stat(Session session, String[] p_asPath) throws NoSuchPathException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 		
-		short fileNum = free.getNewBlock();
+		Resolved found = new Resolved(toAbsolute(cwd, p_asPath), cwd, UNLOCKED, SHARED);
 		
-		INode fileNode;
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
 		try
 		{
-			fileNode = new INode(filename, INode.Type.File);
-		}
-		catch (IllegalArgumentException ex)
+			if (found.node == -1)
+				throw new NoSuchPathException(concatPath(p_asPath) + " does not exist");
+			
+			INode node = getINode(found.node);
+			int blocks = node.getType() == INode.Type.Directory ? m_Directory.countBlocks(node)
+					: new BlockMap(node, m_Journal).getBlockCount();
+			
+			return new FileStat(node, found.node, blocks);
+		}
+		finally
 		{
-			return ex.getMessage();
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+	}
+
+	private FreeListNode getFreeList()
+	{
+		return m_FreeList;
+	}
+	
+	/**
+	 * Get the number of free blocks, for the metrics.
+	 * 
+	 * @return The number of blocks that can be taken, or 0 if the filesystem is not ready for use.
+	 */
+	long getFreeBlocks()
+	{
+		// Reading the mount first makes the free list set up with it visible
+		if (m_Mount == null)
+			return 0;
+		
+		return getFreeList().getFreeCount();
+	}
+	
+	/**
+	 * Store the changed blocks of the free list, and of the reference counts which change along with it.
+	 * Every operation does this last, before its handle on the journal transaction is closed.
+	 * Changes made by other operations meanwhile are stored along with those of the caller.
+	 */
+	private void writeFreeList(FreeListNode freeList)
+	{
+		int start = m_Superblock.getFreeListStart();
+		int blockSize = m_Superblock.getBlockSize();
+		byte[] block = m_Scratch.get().entryBlock;
+		
+		for (int i = 0; i < freeList.getStorageBlockCount(); ++i)
+		{
+			AllocationGroup group = freeList.getGroup(i);
+			if (!group.isDirty())
+				continue;
+			
+			// The group is stored along with the blocks it released, so no other thread can store it in between
+			synchronized (group)
+			{
+				// Pinned blocks are stored as free, as they will be once the transaction is committed
+				group.copyStorageBlock(block, 0);
+				m_Journal.writeBlock(start + i, block, 0);
+				group.clearDirty();
+				m_Journal.release(group.takeReleased());
+			}
+		}
+		
+		start = m_Superblock.getRefCountStart();
+		synchronized (m_RefCounts)
+		{
+			for (int i = 0; i < m_RefCounts.getStorageBlockCount(); ++i)
+			{
+				if (m_RefCounts.isDirty(i))
+					m_Journal.writeBlock(start + i, m_RefCounts.getBlocks(), i * blockSize);
+			}
+			
+			m_RefCounts.clearDirty();
+		}
+	}
+	
+	private INode getINode(int num)
+	{
+		return new INode(m_Journal.readBlock(num));
+	}
+	
+	private void writeINode(int num, INode node)
+	{
+		m_Journal.writeBlock(num, node.getBlock());
+	}
+	
+	/**
+	 * Return the block of an <code>INode</code> to the free list, ending any stream or channel
+	 * open on it. The <code>INode</code> must be locked for writing.
+	 */
+	private void freeINode(int num, FreeListNode freeList)
+	{
+		synchronized (m_OpenFiles)
+		{
+			OpenFile file = m_OpenFiles.remove(num);
+			if (file != null)
+				file.removed = true;
 		}
 		
-		for (int i = 0; i < p_abContents.length; i += BlockDevice.BLOCK_SIZE)
+		freeList.freeBlock(num);
+	}
+	
+	/**
+	 * Count a handle open on a file. The <code>INode</code> must be locked.
+	 */
+	private OpenFile openFile(int num)
+	{
+		synchronized (m_OpenFiles)
 		{
-			short blockNum = free.getNewBlock();
-			byte[] blockOfData = Arrays.copyOfRange(p_abContents, i, i + BlockDevice.BLOCK_SIZE);
+			OpenFile file = m_OpenFiles.get(num);
+			if (file == null)
+			{
+				file = new OpenFile(num);
+				m_OpenFiles.put(num, file);
+			}
 			
-			m_BlockDevice.writeBlock(blockNum, blockOfData);
-			fileNode.addChild(blockNum);
+			++file.handles;
+			return file;
+		}
+	}
+	
+	private void closeFile(OpenFile file)
+	{
+		synchronized (m_OpenFiles)
+		{
+			if (--file.handles == 0 && m_OpenFiles.get(file.node) == file)
+				m_OpenFiles.remove(file.node);
+		}
+	}
+	
+	private int blocksFor(int size)
+	{
+		int blockSize = m_Superblock.getBlockSize();
+		return (int) (((long) size + blockSize - 1) / blockSize);
+	}
+	
+	private void copyBlock(int source, int dest)
+	{
+		byte[] block = m_Scratch.get().entryBlock;
+		m_DataDevice.readBlock(source, block, 0);
+		m_DataDevice.writeBlock(dest, block, 0);
+	}
+	
+	/**
+	 * Add the blocks of one file to the end of another, sharing them instead of copying the data.
+	 * Blocks shared by too many files already are copied.
+	 */
+	private void shareBlocks(BlockMap sourceMap, BlockMap destMap, FreeListNode freeList)
+	{
+		for (int e = 0; e < sourceMap.getExtentCount(); ++e)
+		{
+			int start = sourceMap.getExtentStart(e);
+			for (int i = start; i < start + sourceMap.getExtentLength(e); ++i)
+			{
+				if (m_RefCounts.share(i))
+				{
+					destMap.append(i);
+				}
+				else
+				{
+					int newBlock = freeList.getNewBlock(i);
+					copyBlock(i, newBlock);
+					destMap.append(newBlock);
+				}
+			}
 		}
+	}
+	
+	/**
+	 * Get the number of blocks needed by {@link #shareBlocks}, including any overflow blocks of the
+	 * destination map. Each copied block may split an extent in three.
+	 */
+	private int blocksNeededToShare(BlockMap sourceMap, BlockMap destMap)
+	{
+		int saturated = 0;
+		for (int e = 0; e < sourceMap.getExtentCount(); ++e)
+		{
+			saturated += m_RefCounts.countSaturated(sourceMap.getExtentStart(e), sourceMap.getExtentLength(e));
+		}
+		
+		return saturated + destMap.overflowBlocksNeeded(sourceMap.getExtentCount() + 2 * saturated);
+	}
+	
+	/**
+	 * Make sure a block of a file is not shared with other files before it is changed,
+	 * giving the file a copy of its own if it is. Takes at most one block from the free list,
+	 * and may add two extents to the map.
+	 * 
+	 * @param keepContents <code>false</code> if the whole block will be overwritten, so the
+	 * contents do not have to be copied.
+	 * @return The block to write to.
+	 */
+	private int unshareBlock(BlockMap map, int index, boolean keepContents, FreeListNode freeList)
+	{
+		int block = map.getBlock(index);
+		if (!m_RefCounts.isShared(block))
+			return block;
 		
-		fileNode.setSize(p_abContents.length);
+		int newBlock = freeList.getNewBlock(block);
+		if (keepContents)
+			copyBlock(block, newBlock);
 		
-		parentNode.addChild(fileNum);
-		parentNode.setSize(parentNode.getSize() + 1);
+		map.set(index, newBlock);
+		m_RefCounts.release(block, 1, freeList);
 		
-		writeINode(fileNum, fileNode);
+		return newBlock;
+	}
+	
+	private int countShared(BlockMap map, int firstIndex, int lastIndex)
+	{
+		int shared = 0;
+		for (int i = firstIndex; i < Math.min(lastIndex, map.getBlockCount()); ++i)
+		{
+			if (m_RefCounts.isShared(map.getBlock(i)))
+				++shared;
+		}
 		
-		// Finalize changes
-		writeINode(parentNum, parentNode);
-		writeFreeList(free);
+		return shared;
+	}
+	
+	/**
+	 * Create a new file with the provided content. Fails if the path is invalid or the content is to large.
+	 * 
+	 * @param p_asPath the path to the file to be created. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @param p_abContents a byte array containing the data to initialize the file with.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String create(String[] p_asPath, byte[] p_abContents)
+	{
+		return m_Session.create(p_asPath, p_abContents);
+	}
+	
+	String create(Session session, String[] p_asPath, byte[] p_abContents)
+	{
+		try
+		{
+			createFile(session, p_asPath, p_abContents);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
 
 		return concatPath(p_asPath) + " created successfully";
 	}
-
+	
 	/**
-	 * Despite what the name says, this function does not catenate anything. Rather it
-	 * returns the content of the single file the given file points to.
+	 * Create a new file with the provided content.
 	 * 
-	 * @param p_asPath the path to the file to be catenated. Can be either relative or absolute.
+	 * @param p_asPath the path to the file to be created. Can be either relative or absolute.
 	 * Absolute paths are marked by a leading empty string.
 	 * 
-	 * @return If the path points to a file, returns the contents of that file, otherwise returns
-	 * a descriptive error string. No final newline added.
+	 * @param p_abContents a byte array containing the data to initialize the file with.
+	 * @throws NoSuchPathException Thrown if the directory to create the file in does not exist.
+	 * @throws NotADirectoryException Thrown if the directory to create the file in is a file.
+	 * @throws PathExistsException Thrown if a file or directory with the name already exists.
+	 * @throws InvalidNameException Thrown if the name can not be used.
+	 * @throws OutOfSpaceException Thrown if there is not enough free space for the content.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
 	 */
-	public String cat(String[] p_asPath)
+	public void createFile(String[] p_asPath, byte[] p_abContents) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		m_Session.createFile(p_asPath, p_abContents);
+	}
+	
+	void createFile(Session session, String[] p_asPath, byte[] p_abContents) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		NewFileOutputStream output = startFile(session, p_asPath);
+		
+		// The size is known, so all blocks can be taken up front, as one run if possible.
+		// Small files are stored inline when the stream is closed, without any blocks.
+		if (p_abContents.length > INode.inlineCapacity(m_Superblock.getBlockSize())
+				&& !output.preallocate(blocksFor(p_abContents.length)))
+		{
+			output.discard();
+			throw new OutOfSpaceException("Not enough free space");
+		}
+		
+		output.write(p_abContents, 0, p_abContents.length);
+		output.close();
+	}
+	
+	/**
+	 * Create a new file, writing the content as it arrives. Blocks are taken from the free list
+	 * as they are filled, and the file only appears in its directory once the stream is closed.
+	 * Files small enough are stored inline in their <code>INode</code>.
+	 * If the stream can not be completed, any blocks taken are returned to the free list.
+	 * 
+	 * @param p_asPath the path to the file to be created. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return A stream to write the content of the file to. Must be closed to create the file.
+	 * @throws NoSuchPathException Thrown if the directory to create the file in does not exist.
+	 * @throws NotADirectoryException Thrown if the directory to create the file in is a file.
+	 * @throws PathExistsException Thrown if a file or directory with the name already exists.
+	 * @throws InvalidNameException Thrown if the name can not be used.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public OutputStream openWrite(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, FilesystemException
+	{
+		return m_Session.openWrite(p_asPath);
+	}
+	
+	OutputStream openWrite(Session session, String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, FilesystemException
+	{
+		return startFile(session, p_asPath);
+	}
+	
+	private NewFileOutputStream startFile(Session session, String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
+
+		if (p_asPath == null || p_asPath.length == 0)
+			throw new NoSuchPathException("Invalid path");
 		
-		String[] absPath = toAbsolute(p_asPath);
+		String[] absPath = toAbsolute(cwd, p_asPath);
 		
-		INode file = findINode(absPath);
+		String filename = absPath[absPath.length - 1];
+		if (filename == null || filename.isEmpty())
+			throw new InvalidNameException("Invalid filename");
 		
-		if (file == null)
+		int directoryBlocks;
+		int parentNum;
+		Resolved found = new Resolved(Arrays.copyOfRange(absPath, 0, absPath.length - 1), cwd, UNLOCKED, SHARED);
+		
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
 		{
-			return "File does not exist";
+			if (found.node == -1)
+				throw new NoSuchPathException("Invalid path");
+			
+			INode parentNode = getINode(found.node);
+			if (parentNode.getType() != INode.Type.Directory)
+				throw new NotADirectoryException("Can not create a file inside a file");
+			
+			if (findChildNode(parentNode, filename) != -1)
+				throw new PathExistsException("A file or directory with that name already exists. Delete that file first or choose another name.");
+			
+			directoryBlocks = m_Directory.blocksNeededToAdd(parentNode);
+			parentNum = found.node;
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+
+		INode fileNode;
+		try
+		{
+			fileNode = new INode(filename, INode.Type.File, m_Superblock.getBlockSize());
+		}
+		catch (IllegalArgumentException ex)
+		{
+			throw new InvalidNameException(ex.getMessage());
 		}
 		
-		if (file.getType() != INode.Type.File)
+		return new NewFileOutputStream(absPath, fileNode, directoryBlocks, parentNum);
+	}
+	
+	/**
+	 * Fills the blocks of a new file as data arrives, and adds the file to its directory when closed.
+	 */
+	private class NewFileOutputStream extends OutputStream
+	{
+		// The largest number of blocks taken at once while the size is unknown
+		private static final int MAX_PREALLOCATION = 64;
+		
+		private String[] m_asPath;
+		private INode m_File;
+		private int m_nDirectoryBlocks;
+		// The directory the file goes in, which its blocks are taken close to
+		private int m_nParent;
+		
+		private BlockMap m_Map;
+		private byte[] m_abBuffer;
+		private int[] m_anBlocks = new int[BATCH_BLOCKS];
+		private long m_nSize = 0;
+		private boolean m_bClosed = false;
+		
+		private NewFileOutputStream(String[] absPath, INode file, int directoryBlocks, int parentNum)
 		{
-			return "Can not catenate anything other than files";
+			m_asPath = absPath;
+			m_File = file;
+			m_nDirectoryBlocks = directoryBlocks;
+			m_nParent = parentNum;
+			m_Map = new BlockMap(m_Superblock.getBlockSize());
+			m_abBuffer = new byte[m_Superblock.getBlockSize()];
 		}
 		
-		int fileSize = file.getSize();
-		int completeBlocks = fileSize / BlockDevice.BLOCK_SIZE;
-		int incompleteBlockSize = fileSize % BlockDevice.BLOCK_SIZE;
+		/**
+		 * The number of free blocks that must be left for the INode, the block map and the directory entry.
+		 */
+		private int reserved(int newBlocks)
+		{
+			return 1 + m_Map.overflowBlocksNeeded(newBlocks) + m_nDirectoryBlocks;
+		}
 		
-		StringBuilder res = new StringBuilder();
-		res.append("Dumping contents of ").append(concatPath(p_asPath))
-			.append(" (").append(file.getSize()).append(" bytes):\n");
+		private boolean preallocate(int blockCount)
+		{
+			// Other threads can not take the blocks between the check and the allocation
+			FreeListNode free = getFreeList();
+			int needed = blockCount + reserved(blockCount);
+			if (!free.reserve(needed))
+				return false;
+			
+			try
+			{
+				allocateBlocks(m_Map, blockCount, free, m_nParent);
+			}
+			finally
+			{
+				free.unreserve(needed);
+			}
+			
+			return true;
+		}
 		
-		for (int i = 0; i < completeBlocks; ++i)
+		private int blockFor(int index) throws FilesystemException
 		{
-			short blockNum = file.getChild(i);
-			byte[] block = m_BlockDevice.readBlock(blockNum);
-			res.append(new String(block, 0, block.length));
+			if (index < m_Map.getBlockCount())
+				return m_Map.getBlock(index);
+			
+			// Take more blocks the larger the file gets, to keep it in few extents
+			int count = Math.min(Math.max(1, m_Map.getBlockCount()), MAX_PREALLOCATION);
+			if (!preallocate(count) && !preallocate(1))
+				throw new OutOfSpaceException("Not enough free space");
+			
+			return m_Map.getBlock(index);
+		}
+		
+		/**
+		 * Check if the file is to be stored inline. Nothing has been written to blocks
+		 * if the whole file is still in the buffer.
+		 */
+		private boolean fitsInline()
+		{
+			return m_Map.getBlockCount() == 0 && m_nSize <= INode.inlineCapacity(m_abBuffer.length);
+		}
+		
+		private void ensureOpen() throws FilesystemException
+		{
+			if (m_bClosed)
+				throw new FilesystemException("Stream closed");
+		}
+		
+		@Override
+		public void write(int b) throws FilesystemException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws FilesystemException
+		{
+			if (off < 0 || len < 0 || len > b.length - off)
+				throw new IndexOutOfBoundsException();
+			
+			ensureOpen();
+			
+			if (m_nSize + len > Integer.MAX_VALUE)
+				throw new OutOfSpaceException("File too large");
+			
+			int blockSize = m_abBuffer.length;
+			try
+			{
+				while (len > 0)
+				{
+					int index = (int) (m_nSize / blockSize);
+					int inBlock = (int) (m_nSize % blockSize);
+					int count = Math.min(len, blockSize - inBlock);
+					
+					// Whole blocks are written straight from the array of the caller, several at a time
+					if (count == blockSize)
+					{
+						count = Math.min(len / blockSize, BATCH_BLOCKS);
+						for (int i = 0; i < count; ++i)
+						{
+							m_anBlocks[i] = blockFor(index + i);
+						}
+						
+						m_DataDevice.writeBlocks(m_anBlocks, count, b, off);
+						count *= blockSize;
+					}
+					else
+					{
+						System.arraycopy(b, off, m_abBuffer, inBlock, count);
+						if (inBlock + count == blockSize)
+							m_DataDevice.writeBlock(blockFor(index), m_abBuffer, 0);
+					}
+					
+					m_nSize += count;
+					off += count;
+					len -= count;
+				}
+			}
+			catch (FilesystemException ex)
+			{
+				discard();
+				throw ex;
+			}
+		}
+		
+		@Override
+		public void close() throws FilesystemException
+		{
+			if (m_bClosed)
+				return;
+			
+			try
+			{
+				int blockSize = m_abBuffer.length;
+				if (m_nSize % blockSize != 0 && !fitsInline())
+					m_DataDevice.writeBlock(blockFor((int) (m_nSize / blockSize)), m_abBuffer, 0);
+				
+				commit();
+			}
+			catch (FilesystemException ex)
+			{
+				discard();
+				throw ex;
+			}
+			
+			m_bClosed = true;
 		}
 		
-		if (incompleteBlockSize != 0)
+		private void commit() throws FilesystemException
 		{
-			short blockNum = file.getChild(completeBlocks);
-			byte[] block = m_BlockDevice.readBlock(blockNum);
-			res.append(new String(block, 0, incompleteBlockSize));
+			// The directory may have changed since the stream was opened
+			String[] parentPath = Arrays.copyOfRange(m_asPath, 0, m_asPath.length - 1);
+			String filename = m_asPath[m_asPath.length - 1];
+			
+			Resolved found = new Resolved(parentPath, UNLOCKED, EXCLUSIVE);
+			
+			beginChange();
+			INodeLocks.Guard guard = lock(found);
+			try
+			{
+				if (found.node == -1)
+					throw new NoSuchPathException("Invalid path");
+				
+				int parentNum = found.node;
+				INode parentNode = getINode(parentNum);
+				if (parentNode.getType() != INode.Type.Directory)
+					throw new NotADirectoryException("Can not create a file inside a file");
+				
+				if (findChildNode(parentNode, filename) != -1)
+					throw new PathExistsException("A file or directory with that name already exists. Delete that file first or choose another name.");
+				
+				FreeListNode free = getFreeList();
+				
+				// Return any blocks taken in advance but not filled
+				m_Map.truncate(blocksFor((int) m_nSize), free);
+				
+				m_nDirectoryBlocks = m_Directory.blocksNeededToAdd(parentNode);
+				int needed = reserved(0);
+				if (!free.reserve(needed))
+					throw new OutOfSpaceException("Not enough free space");
+				
+				try
+				{
+					int fileNum = free.getNewBlock(found.node);
+					
+					if (fitsInline())
+					{
+						System.arraycopy(m_abBuffer, 0, m_File.getBlock(), INode.childrenOffset(), (int) m_nSize);
+						m_File.setInline(true);
+					}
+					else
+					{
+						m_Map.store(m_File, m_Journal, free);
+					}
+					
+					m_File.setSize((int) m_nSize);
+					
+					m_Directory.add(parentNode, filename, INode.Type.File, fileNum, free);
+					
+					writeINode(fileNum, m_File);
+					
+					// Finalize changes
+					writeINode(parentNum, parentNode);
+					writeFreeList(free);
+					m_Dentries.insert(m_asPath, m_asPath.length, parentNum, fileNum);
+				}
+				finally
+				{
+					free.unreserve(needed);
+				}
+			}
+			finally
+			{
+				guard.unlock();
+				endChange();
+			}
+		}
+		
+		/**
+		 * Give up on the file, returning all blocks taken to the free list.
+		 */
+		private void discard()
+		{
+			m_bClosed = true;
+			
+			beginChange();
+			try
+			{
+				m_Map.free(getFreeList());
+				writeFreeList(getFreeList());
+			}
+			finally
+			{
+				endChange();
+			}
+		}
+	}
+
+	/**
+	 * Despite what the name says, this function does not catenate anything. Rather it
+	 * returns the content of the single file the given file points to.
+	 * 
+	 * @param p_asPath the path to the file to be catenated. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return If the path points to a file, returns the contents of that file, otherwise returns
+	 * a descriptive error string. No final newline added.
+	 */
+	public String cat(String[] p_asPath)
+	{
+		return m_Session.cat(p_asPath);
+	}
+	
+	String cat(Session session, String[] p_asPath)
+	{
+		byte[] contents;
+		try
+		{
+			contents = readAllBytes(session, p_asPath);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+		
+		StringBuilder res = new StringBuilder();
+		res.append("Dumping contents of ").append(concatPath(p_asPath))
+			.append(" (").append(contents.length).append(" bytes):\n");
+		res.append(new String(contents));
+		
+		return res.toString();
+	}
+	
+	/**
+	 * Read the whole content of a file. The file is locked while it is read, so the content
+	 * is that of a single moment. Use {@link #openRead} to read large files a part at a time.
+	 * 
+	 * @param p_asPath the path to the file to read. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return The content of the file, not converted in any way.
+	 * @throws NoSuchPathException Thrown if the file does not exist.
+	 * @throws NotAFileException Thrown if the path points to a directory.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public byte[] readAllBytes(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		return m_Session.readAllBytes(p_asPath);
+	}
+	
+	byte[] readAllBytes(Session session, String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
+		
+		Resolved found = new Resolved(toAbsolute(cwd, p_asPath), cwd, UNLOCKED, SHARED);
+		
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			if (found.node == -1)
+				throw new NoSuchPathException("File does not exist");
+			
+			INode file = getINode(found.node);
+			if (file.getType() != INode.Type.File)
+				throw new NotAFileException("Can not catenate anything other than files");
+			
+			// Several blocks are read at a time, straight into the result
+			byte[] contents = new byte[file.getSize()];
+			int chunk = BATCH_BLOCKS * m_Superblock.getBlockSize();
+			INodeInputStream input = new INodeInputStream(file, m_Journal);
+			try
+			{
+				int offset = 0;
+				int count;
+				while (offset < contents.length
+						&& (count = input.read(contents, offset, Math.min(chunk, contents.length - offset))) != -1)
+				{
+					offset += count;
+				}
+			}
+			finally
+			{
+				input.close();
+			}
+			
+			return contents;
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Open a file for reading. The contents are read from the block device as they are needed,
+	 * and are not converted in any way, so any file can be streamed using little memory.
+	 * 
+	 * @param p_asPath the path to the file to read. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return A stream of the contents of the file. Changes made to the file are seen by the stream,
+	 * which fails with a {@link NoSuchPathException} once the file is removed.
+	 * @throws NoSuchPathException Thrown if the file does not exist.
+	 * @throws NotAFileException Thrown if the path points to a directory.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public InputStream openRead(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		return m_Session.openRead(p_asPath);
+	}
+	
+	InputStream openRead(Session session, String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
+		
+		if (p_asPath == null || p_asPath.length == 0)
+			throw new NoSuchPathException("Invalid path");
+		
+		Resolved found = new Resolved(toAbsolute(cwd, p_asPath), cwd, UNLOCKED, SHARED);
+		
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			if (found.node == -1)
+				throw new NoSuchPathException(concatPath(p_asPath) + " does not exist");
+			
+			INode file = getINode(found.node);
+			if (file.getType() != INode.Type.File)
+				throw new NotAFileException(concatPath(p_asPath) + " is not a file");
+			
+			return new OpenInputStream(new FileHandle(found.node, file));
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reads a file with its <code>INode</code> locked for each read, checked as for a channel, see
+	 * {@link FileHandle}. Changes made to the file are seen from the next read, and the stream fails
+	 * once the file is removed, rather than reading blocks that may have been given to other files.
+	 */
+	private class OpenInputStream extends INodeInputStream
+	{
+		private FileHandle m_Handle;
+		private boolean m_bClosed = false;
+		
+		private OpenInputStream(FileHandle handle)
+		{
+			super(handle.getFile(), m_Journal);
+			
+			m_Handle = handle;
+		}
+		
+		/**
+		 * Lock the <code>INode</code> and pick up any changes made to the file.
+		 * 
+		 * @return The locks taken, to be released with {@link #unlock}.
+		 */
+		private INodeLocks.Guard lock() throws FilesystemException
+		{
+			if (m_bClosed)
+				throw new FilesystemException("Stream closed");
+			
+			m_TreeLock.readLock().lock();
+			INodeLocks.Guard guard = m_Locks.lock(new int[] { m_Handle.getNumber() }, NO_INODES);
+			try
+			{
+				if (m_Handle.refresh())
+					reload(m_Handle.getFile());
+			}
+			catch (FilesystemException ex)
+			{
+				unlock(guard);
+				throw ex;
+			}
+			
+			return guard;
+		}
+		
+		private void unlock(INodeLocks.Guard guard)
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+		
+		@Override
+		public int read() throws FilesystemException
+		{
+			INodeLocks.Guard guard = lock();
+			try
+			{
+				return super.read();
+			}
+			finally
+			{
+				unlock(guard);
+			}
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws FilesystemException
+		{
+			INodeLocks.Guard guard = lock();
+			try
+			{
+				return super.read(b, off, len);
+			}
+			finally
+			{
+				unlock(guard);
+			}
+		}
+		
+		@Override
+		public long skip(long n) throws FilesystemException
+		{
+			INodeLocks.Guard guard = lock();
+			try
+			{
+				return super.skip(n);
+			}
+			finally
+			{
+				unlock(guard);
+			}
+		}
+		
+		@Override
+		public int available() throws FilesystemException
+		{
+			INodeLocks.Guard guard = lock();
+			try
+			{
+				return super.available();
+			}
+			finally
+			{
+				unlock(guard);
+			}
+		}
+		
+		@Override
+		public void close()
+		{
+			m_bClosed = true;
+			m_Handle.close();
+			super.close();
+		}
+	}
+	
+	/**
+	 * Read the <code>INode</code> at a path while it is locked.
+	 * 
+	 * @return The <code>INode</code>, or <code>null</code> if the path does not exist.
+	 */
+	private INode lockedINode(Resolved found)
+	{
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			return found.node != -1 ? getINode(found.node) : null;
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Open an existing file for reading and writing at any position. Only the blocks covering the
+	 * bytes read or written are accessed, so small updates do not rewrite the rest of the file.
+	 * Writing past the end grows the file, and the <code>INode</code> is stored whenever the size changes.
+	 * 
+	 * @param p_asPath the path to the file to open. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return A channel positioned at the start of the file. Changes made to the file in other ways
+	 * are seen by the channel, which fails with a {@link NoSuchPathException} once the file is removed.
+	 * @throws NoSuchPathException Thrown if the file does not exist.
+	 * @throws NotAFileException Thrown if the path points to a directory.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public SeekableByteChannel openChannel(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		return m_Session.openChannel(p_asPath);
+	}
+	
+	SeekableByteChannel openChannel(Session session, String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
+		
+		if (p_asPath == null || p_asPath.length == 0)
+			throw new NoSuchPathException("Invalid path");
+		
+		Resolved found = new Resolved(toAbsolute(cwd, p_asPath), cwd, UNLOCKED, SHARED);
+		
+		m_TreeLock.readLock().lock();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			if (found.node == -1)
+				throw new NoSuchPathException(concatPath(p_asPath) + " does not exist");
+			
+			INode file = getINode(found.node);
+			if (file.getType() != INode.Type.File)
+				throw new NotAFileException(concatPath(p_asPath) + " is not a file");
+			
+			return new FileChannel(new FileHandle(found.node, file), 0);
+		}
+		finally
+		{
+			guard.unlock();
+			m_TreeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The <code>INode</code> of a file a stream or channel is open on. Others may change the file
+	 * while it is open, so the <code>INode</code> is read again whenever its lock stripe has been
+	 * locked for writing since it was last read.
+	 */
+	private class FileHandle
+	{
+		private final OpenFile m_Open;
+		private INode m_File;
+		private int m_nVersion;
+		private boolean m_bClosed = false;
+		
+		/**
+		 * constructor. The <code>INode</code> must be locked.
+		 */
+		private FileHandle(int fileNum, INode file)
+		{
+			m_Open = openFile(fileNum);
+			m_File = file;
+			m_nVersion = m_Locks.getVersion(fileNum);
+		}
+		
+		private int getNumber()
+		{
+			return m_Open.node;
+		}
+		
+		private INode getFile()
+		{
+			return m_File;
+		}
+		
+		/**
+		 * Make sure the file still exists, and read its <code>INode</code> again if it may have
+		 * changed. The <code>INode</code> must be locked.
+		 * 
+		 * @return <code>true</code> if the <code>INode</code> was read again.
+		 * @throws NoSuchPathException Thrown if the file has been removed.
+		 */
+		private boolean refresh() throws NoSuchPathException
+		{
+			if (m_Open.removed)
+				throw new NoSuchPathException("File has been removed");
+			
+			if (m_Locks.isCurrent(m_Open.node, m_nVersion))
+				return false;
+			
+			m_File = getINode(m_Open.node);
+			m_nVersion = m_Locks.getVersion(m_Open.node);
+			return true;
+		}
+		
+		private void close()
+		{
+			if (m_bClosed)
+				return;
+			
+			m_bClosed = true;
+			closeFile(m_Open);
+		}
+	}
+	
+	/**
+	 * Reads and writes the blocks of a file at any position. The <code>INode</code> is checked
+	 * each time the file is used, see {@link FileHandle}, and the channel fails once the file is removed.
+	 */
+	private class FileChannel implements SeekableByteChannel
+	{
+		private FileHandle m_Handle;
+		private int m_nFileNum;
+		private INode m_File;
+		private BlockMap m_Map;
+		private long m_nPosition = 0;
+		private boolean m_bOpen = true;
+		
+		private byte[] m_abBlock;
+		private int[] m_anBlocks = new int[BATCH_BLOCKS];
+		// Free blocks already held back by whoever opened the channel, enough for all its writes
+		private int m_nReserved;
+		
+		private FileChannel(FileHandle handle, int reserved)
+		{
+			m_Handle = handle;
+			m_nFileNum = handle.getNumber();
+			m_File = handle.getFile();
+			m_nReserved = reserved;
+			m_Map = new BlockMap(m_File, m_Journal);
+			m_abBlock = new byte[m_Superblock.getBlockSize()];
+		}
+		
+		private void ensureOpen() throws IOException
+		{
+			if (!m_bOpen)
+				throw new ClosedChannelException();
+		}
+		
+		/**
+		 * Pick up any changes made to the file by others. Must be called with the <code>INode</code> locked.
+		 */
+		private void refresh() throws NoSuchPathException
+		{
+			if (m_Handle.refresh())
+			{
+				m_File = m_Handle.getFile();
+				m_Map = new BlockMap(m_File, m_Journal);
+			}
+		}
+		
+		private void readBlock(int index, byte[] dest) throws FilesystemException
+		{
+			if (m_DataDevice.readBlock(m_Map.getBlock(index), dest, 0) < 0)
+				throw new FilesystemException("Could not read block " + index + " of the file");
+		}
+		
+		@Override
+		public boolean isOpen()
+		{
+			return m_bOpen;
+		}
+		
+		@Override
+		public void close()
+		{
+			m_bOpen = false;
+			m_Handle.close();
+		}
+		
+		@Override
+		public long position() throws IOException
+		{
+			ensureOpen();
+			return m_nPosition;
+		}
+		
+		@Override
+		public SeekableByteChannel position(long newPosition) throws IOException
+		{
+			if (newPosition < 0)
+				throw new IllegalArgumentException("Negative position");
+			
+			ensureOpen();
+			m_nPosition = newPosition;
+			return this;
+		}
+		
+		@Override
+		public long size() throws IOException
+		{
+			ensureOpen();
+			
+			m_TreeLock.readLock().lock();
+			INodeLocks.Guard guard = m_Locks.lock(new int[] { m_nFileNum }, NO_INODES);
+			try
+			{
+				refresh();
+				return m_File.getSize();
+			}
+			finally
+			{
+				guard.unlock();
+				m_TreeLock.readLock().unlock();
+			}
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) throws IOException
+		{
+			ensureOpen();
+			
+			m_TreeLock.readLock().lock();
+			INodeLocks.Guard guard = m_Locks.lock(new int[] { m_nFileNum }, NO_INODES);
+			try
+			{
+				refresh();
+				return readLocked(dst);
+			}
+			finally
+			{
+				guard.unlock();
+				m_TreeLock.readLock().unlock();
+			}
+		}
+		
+		private int readLocked(ByteBuffer dst) throws FilesystemException
+		{
+			long size = m_File.getSize();
+			if (m_nPosition >= size)
+				return -1;
+			
+			if (m_File.isInline())
+			{
+				int count = (int) Math.min(dst.remaining(), size - m_nPosition);
+				dst.put(m_File.getBlock(), INode.childrenOffset() + (int) m_nPosition, count);
+				m_nPosition += count;
+				return count;
+			}
+			
+			int blockSize = m_abBlock.length;
+			int total = 0;
+			while (dst.hasRemaining() && m_nPosition < size)
+			{
+				int index = (int) (m_nPosition / blockSize);
+				int inBlock = (int) (m_nPosition % blockSize);
+				int count = (int) Math.min(Math.min(dst.remaining(), blockSize - inBlock), size - m_nPosition);
+				
+				// Whole blocks are read straight into the buffer, several at a time
+				if (count == blockSize)
+				{
+					count = (int) Math.min(Math.min(dst.remaining(), size - m_nPosition) / blockSize, BATCH_BLOCKS);
+					for (int i = 0; i < count; ++i)
+					{
+						m_anBlocks[i] = m_Map.getBlock(index + i);
+					}
+					
+					if (m_DataDevice.readBlocks(m_anBlocks, count, dst) < 0)
+						throw new FilesystemException("Could not read block " + index + " of the file");
+					
+					count *= blockSize;
+				}
+				else
+				{
+					readBlock(index, m_abBlock);
+					dst.put(m_abBlock, inBlock, count);
+				}
+				
+				m_nPosition += count;
+				total += count;
+			}
+			
+			return total;
+		}
+		
+		@Override
+		public int write(ByteBuffer src) throws IOException
+		{
+			ensureOpen();
+			
+			beginChange();
+			INodeLocks.Guard guard = m_Locks.lock(NO_INODES, new int[] { m_nFileNum });
+			try
+			{
+				refresh();
+				return writeLocked(src);
+			}
+			finally
+			{
+				guard.unlock();
+				endChange();
+			}
+		}
+		
+		private int writeLocked(ByteBuffer src) throws FilesystemException
+		{
+			int length = src.remaining();
+			if (length == 0)
+				return 0;
+			
+			long oldSize = m_File.getSize();
+			long end = m_nPosition + length;
+			if (end > Integer.MAX_VALUE)
+				throw new OutOfSpaceException("File too large");
+			
+			if (m_File.isInline() && end <= INode.inlineCapacity(m_abBlock.length))
+			{
+				// Skipped bytes read as zeros
+				int base = INode.childrenOffset();
+				if (m_nPosition > oldSize)
+					Arrays.fill(m_File.getBlock(), base + (int) oldSize, base + (int) m_nPosition, (byte) 0);
+				
+				src.get(m_File.getBlock(), base + (int) m_nPosition, length);
+				m_nPosition = end;
+				m_File.setSize((int) Math.max(end, oldSize));
+				
+				writeINode(m_nFileNum, m_File);
+				return length;
+			}
+			
+			// Check for room for all new blocks, and copies of shared blocks written to,
+			// before writing anything, so a full filesystem changes nothing
+			FreeListNode free = getFreeList();
+			int newBlocks = Math.max(0, blocksFor((int) end) - m_Map.getBlockCount());
+			int shared = countShared(m_Map, (int) (Math.min(m_nPosition, oldSize) / m_abBlock.length), blocksFor((int) end));
+			int needed = newBlocks + shared + m_Map.overflowBlocksNeeded(newBlocks + 2 * shared);
+			boolean reserve = needed > m_nReserved;
+			if (reserve && !free.reserve(needed))
+				throw new OutOfSpaceException("Not enough free space");
+			
+			try
+			{
+				if (end > oldSize)
+				{
+					allocateBlocks(m_Map, newBlocks, free, m_nFileNum);
+				
+					// Data that has outgrown the INode moves to the first block
+					if (m_File.isInline())
+					{
+						System.arraycopy(m_File.getBlock(), INode.childrenOffset(), m_abBlock, 0, (int) oldSize);
+						m_DataDevice.writeBlock(m_Map.getBlock(0), m_abBlock);
+						m_File.setInline(false);
+					}
+				
+					// Bytes skipped past the old end read as zeros
+					byte[] zeros = new byte[m_abBlock.length];
+					for (long pos = oldSize; pos < m_nPosition; )
+					{
+						int count = (int) Math.min(zeros.length - pos % zeros.length, m_nPosition - pos);
+						writeAt(pos, ByteBuffer.wrap(zeros, 0, count));
+						pos += count;
+					}
+				}
+				
+				writeAt(m_nPosition, src);
+				m_nPosition = end;
+				
+				if (end > oldSize || shared > 0)
+				{
+					m_Map.store(m_File, m_Journal, free);
+					m_File.setSize((int) Math.max(end, oldSize));
+				
+					writeINode(m_nFileNum, m_File);
+					writeFreeList(free);
+				}
+			}
+			finally
+			{
+				if (reserve)
+					free.unreserve(needed);
+			}
+			
+			return length;
+		}
+		
+		/**
+		 * Write all remaining bytes of a buffer to blocks already in the map.
+		 */
+		private void writeAt(long position, ByteBuffer src) throws FilesystemException
+		{
+			int blockSize = m_abBlock.length;
+			while (src.hasRemaining())
+			{
+				int index = (int) (position / blockSize);
+				int inBlock = (int) (position % blockSize);
+				int count = Math.min(src.remaining(), blockSize - inBlock);
+				
+				if (count == blockSize)
+				{
+					count = Math.min(src.remaining() / blockSize, BATCH_BLOCKS);
+					for (int i = 0; i < count; ++i)
+					{
+						m_anBlocks[i] = unshareBlock(m_Map, index + i, false, getFreeList());
+					}
+					
+					if (m_DataDevice.writeBlocks(m_anBlocks, count, src) < 0)
+						throw new FilesystemException("Could not write block " + index + " of the file");
+					
+					count *= blockSize;
+				}
+				else
+				{
+					// Only the bytes written change, the rest of the block is kept
+					readBlock(index, m_abBlock);
+					src.get(m_abBlock, inBlock, count);
+					m_DataDevice.writeBlock(unshareBlock(m_Map, index, false, getFreeList()), m_abBlock);
+				}
+				
+				position += count;
+			}
+		}
+		
+		@Override
+		public SeekableByteChannel truncate(long size) throws IOException
+		{
+			if (size < 0)
+				throw new IllegalArgumentException("Negative size");
+			
+			ensureOpen();
+			
+			beginChange();
+			INodeLocks.Guard guard = m_Locks.lock(NO_INODES, new int[] { m_nFileNum });
+			try
+			{
+				refresh();
+				
+				if (size < m_File.getSize() && m_File.isInline())
+				{
+					m_File.setSize((int) size);
+					writeINode(m_nFileNum, m_File);
+				}
+				else if (size < m_File.getSize())
+				{
+					FreeListNode free = getFreeList();
+					m_Map.truncate(blocksFor((int) size), free, m_RefCounts);
+					m_Map.store(m_File, m_Journal, free);
+					m_File.setSize((int) size);
+					
+					writeINode(m_nFileNum, m_File);
+					writeFreeList(free);
+				}
+			}
+			finally
+			{
+				guard.unlock();
+				endChange();
+			}
+			
+			m_nPosition = Math.min(m_nPosition, size);
+			return this;
 		}
-		
-		return res.toString();
 	}
-
+	
 	/**
 	 * Save this filesystem to a file in the real filesystem. 
 	 * 
@@ -378,18 +2123,46 @@ public class Filesystem
 	 */
 	public String save(String p_sPath)
 	{
-		if (currentDirectory == null)
+		FilesystemMetrics.Context context = m_Metrics.begin(FilesystemMetrics.Operation.SAVE, new String[] { p_sPath }, null);
+		try
+		{
+			return saveDevice(p_sPath);
+		}
+		finally
+		{
+			m_Metrics.end(context);
+		}
+	}
+	
+	private String saveDevice(String p_sPath)
+	{
+		if (m_Mount == null)
 			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
 		
+		m_TreeLock.writeLock().lock();
 		try
 		{
+			// Everything journaled must be in place, as the saved image has no use for the journal
+			m_Journal.flush();
+			
 			OutputStream output = null;
 			try
 			{
-				output = new BufferedOutputStream(new FileOutputStream(p_sPath));
-				for (int i = 0; i < BlockDevice.BLOCK_COUNT; ++i)
+				int blockSize = m_BlockDevice.getBlockSize();
+				int[] blockNrs = new int[BATCH_BLOCKS];
+				byte[] batch = new byte[BATCH_BLOCKS * blockSize];
+				
+				output = new FileOutputStream(p_sPath);
+				for (int i = 0; i < m_BlockDevice.getBlockCount(); i += BATCH_BLOCKS)
 				{
-					output.write(m_BlockDevice.readBlock(i));
+					int count = Math.min(BATCH_BLOCKS, m_BlockDevice.getBlockCount() - i);
+					for (int j = 0; j < count; ++j)
+					{
+						blockNrs[j] = i + j;
+					}
+					
+					m_BlockDevice.readBlocks(blockNrs, count, batch, 0);
+					output.write(batch, 0, count * blockSize);
 				}
 			}
 			finally
@@ -405,6 +2178,10 @@ public class Filesystem
 		{
 			return ex.toString();
 		}
+		finally
+		{
+			m_TreeLock.writeLock().unlock();
+		}
 		
 		return "Saved blockdevice to file " + p_sPath;
 	}
@@ -416,54 +2193,166 @@ public class Filesystem
 	 * @return A descriptive result from the operation, without final newline.
 	 */
 	public String read(String p_sPath)
+	{
+		FilesystemMetrics.Context context = m_Metrics.begin(FilesystemMetrics.Operation.READ, new String[] { p_sPath }, null);
+		try
+		{
+			return readDevice(p_sPath);
+		}
+		finally
+		{
+			m_Metrics.end(context);
+		}
+	}
+	
+	private String readDevice(String p_sPath)
 	{
 		File file = new File(p_sPath);
 		
-		if (file.length() != BlockDevice.BLOCK_COUNT * BlockDevice.BLOCK_SIZE)
+		if (file.length() != (long) m_BlockDevice.getBlockCount() * m_BlockDevice.getBlockSize())
 		{
 			return "Invalid file size";
 		}
 		
+		m_TreeLock.writeLock().lock();
 		try
 		{
-			InputStream input = null;
 			try
 			{
-				byte[] block = new byte[BlockDevice.BLOCK_SIZE];
-				
-				input = new BufferedInputStream(new FileInputStream(file));
-				for (int i = 0; i < BlockDevice.BLOCK_COUNT; ++i)
+				InputStream input = null;
+				try
 				{
-					int totalBytesRead = 0;
+					int blockSize = m_BlockDevice.getBlockSize();
+					int[] blockNrs = new int[BATCH_BLOCKS];
+					byte[] batch = new byte[BATCH_BLOCKS * blockSize];
 					
-					while (totalBytesRead < block.length)
+					input = new FileInputStream(file);
+					for (int i = 0; i < m_BlockDevice.getBlockCount(); i += BATCH_BLOCKS)
 					{
-						int bytesRemaining = block.length - totalBytesRead;
-						int bytesRead = input.read(block, totalBytesRead, bytesRemaining);
-						if (bytesRead > 0)
-							totalBytesRead += bytesRead;
+						int count = Math.min(BATCH_BLOCKS, m_BlockDevice.getBlockCount() - i);
+						int totalBytesRead = 0;
+						
+						while (totalBytesRead < count * blockSize)
+						{
+							int bytesRemaining = count * blockSize - totalBytesRead;
+							int bytesRead = input.read(batch, totalBytesRead, bytesRemaining);
+							if (bytesRead > 0)
+								totalBytesRead += bytesRead;
+						}
+						
+						for (int j = 0; j < count; ++j)
+						{
+							blockNrs[j] = i + j;
+						}
+						
+						m_BlockDevice.writeBlocks(blockNrs, count, batch, 0);
 					}
-					
-					m_BlockDevice.writeBlock(i, block);
+				}
+				finally
+				{
+					input.close();
 				}
 			}
-			finally
+			catch (FileNotFoundException ex)
 			{
-				input.close();
+				return "File not found";
+			}
+			catch (IOException ex)
+			{
+				return ex.toString();
 			}
+			
+			String error = load();
+			if (error != null)
+			{
+				m_Mount = null;
+				return error;
+			}
+			
+			m_Mount = new Object();
 		}
-		catch (FileNotFoundException ex)
+		finally
 		{
-			return "File not found";
+			m_TreeLock.writeLock().unlock();
 		}
-		catch (IOException ex)
+		
+		return "Read file " + p_sPath + " to blockdevice";
+	}
+
+	/**
+	 * Initialize this filesystem with the data already stored on the block device,
+	 * such as an image mapped by a {@link MappedBlockDevice}. Nothing is copied.
+	 * 
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String mount()
+	{
+		FilesystemMetrics.Context context = m_Metrics.begin(FilesystemMetrics.Operation.MOUNT, null, null);
+		try
 		{
-			return ex.toString();
+			return mountDevice();
+		}
+		finally
+		{
+			m_Metrics.end(context);
+		}
+	}
+	
+	private String mountDevice()
+	{
+		m_TreeLock.writeLock().lock();
+		try
+		{
+			String error = load();
+			if (error != null)
+				return error;
+			
+			m_Mount = new Object();
+		}
+		finally
+		{
+			m_TreeLock.writeLock().unlock();
+		}
+		
+		return "Mounted filesystem from blockdevice";
+	}
+
+	/**
+	 * Make sure all changes to the filesystem have reached the storage backing the block device.
+	 * For a {@link MappedBlockDevice} this saves the filesystem to its image file.
+	 * 
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String sync()
+	{
+		FilesystemMetrics.Context context = m_Metrics.begin(FilesystemMetrics.Operation.SYNC, null, null);
+		try
+		{
+			return syncDevice();
 		}
+		finally
+		{
+			m_Metrics.end(context);
+		}
+	}
+	
+	private String syncDevice()
+	{
+		if (m_Mount == null)
+			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
 		
-		currentDirectory = Collections.emptyList();
+		m_TreeLock.readLock().lock();
+		try
+		{
+			m_Journal.flush();
+			getFreeList().unpin(m_Journal.takeReusable());
+		}
+		finally
+		{
+			m_TreeLock.readLock().unlock();
+		}
 		
-		return "Read file " + p_sPath + " to blockdevice";
+		return "Synced blockdevice";
 	}
 
 	/**
@@ -476,98 +2365,143 @@ public class Filesystem
 	 */
 	public String rm(String[] p_asPath)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.rm(p_asPath);
+	}
+	
+	String rm(Session session, String[] p_asPath)
+	{
+		INode.Type type;
+		try
+		{
+			type = delete(session, p_asPath);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+		
+		if (type == INode.Type.Directory)
+			return "Deleted directory " + concatPath(p_asPath);
+		
+		return "Deleted file " + concatPath(p_asPath);
+	}
+	
+	/**
+	 * Remove target file or empty directory.
+	 * 
+	 * @param p_asPath the path to the file to be removed. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @return Whether a file or a directory was removed.
+	 * @throws NoSuchPathException Thrown if nothing exists at the path.
+	 * @throws DirectoryNotEmptyException Thrown if the path points to a directory that has entries.
+	 * @throws InvalidNameException Thrown if the path does not end with a name.
+	 * @throws FilesystemException Thrown if the path is the working directory,
+	 * or if the filesystem is not ready for use.
+	 */
+	public INode.Type delete(String[] p_asPath) throws NoSuchPathException, DirectoryNotEmptyException, InvalidNameException, FilesystemException
+	{
+		return m_Session.delete(p_asPath);
+	}
+	
+	INode.Type delete(Session session, String[] p_asPath) throws NoSuchPathException, DirectoryNotEmptyException, InvalidNameException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 		
 		if (p_asPath == null || p_asPath.length == 0)
-			return "Invalid path";
+			throw new NoSuchPathException("Invalid path");
 		
-		String[] absPath = toAbsolute(p_asPath);
+		String[] absPath = toAbsolute(cwd, p_asPath);
 		
 		String filename = absPath[absPath.length - 1];
 		if (filename == null || filename.isEmpty())
-			return "Invalid filename";
-		
-		short parentNum = findNode(Arrays.copyOfRange(absPath, 0, absPath.length - 1));
-		if (parentNum == -1)
-			return "Invalid path";
-		
-		INode parentNode = getINode(parentNum);
-		
-		short fileNum = findChildNode(parentNode, filename);
-		if (fileNum == -1)
-			return "File does not exist";
+			throw new InvalidNameException("Invalid filename");
 		
-		INode node = getINode(fileNum);
+		Resolved found = new Resolved(absPath, cwd, EXCLUSIVE, EXCLUSIVE);
 		
-		FreeListNode free = getFreeList();
-		
-		switch (node.getType())
+		beginChange();
+		INodeLocks.Guard guard = lock(found);
+		try
 		{
-		case File:
+			int parentNum = found.parent;
+			if (parentNum == -1)
+				throw new NoSuchPathException("Invalid path");
+			
+			int fileNum = found.node;
+			if (fileNum == -1)
+				throw new NoSuchPathException("File does not exist");
+			
+			INode parentNode = getINode(parentNum);
+			INode node = getINode(fileNum);
+			
+			FreeListNode free = getFreeList();
+			
+			switch (node.getType())
 			{
-				parentNode.removeChildByVal(fileNum);
-				
-				int childId = 0;
-				short blockNum = node.getChild(childId++);
-				while (blockNum != -1)
+			case File:
 				{
-					free.freeBlock(blockNum);
-					blockNum = node.getChild(childId++);
+					m_Directory.remove(parentNode, filename, free);
+					
+					new BlockMap(node, m_Journal).free(free, m_RefCounts);
+					freeINode(fileNum, free);
+					
+					// Finalize changes
+					writeINode(parentNum, parentNode);
+					writeFreeList(free);
+					m_Dentries.insert(absPath, absPath.length, parentNum, DentryCache.NEGATIVE);
+					
+					return INode.Type.File;
 				}
-
-				parentNode.setSize(parentNode.getSize() - 1);
-				
-				free.freeBlock(fileNum);
-				
-				// Finalize changes
-				writeINode(parentNum, parentNode);
-				writeFreeList(free);
-				
-				return "Deleted file " + concatPath(p_asPath);
-			}
-			
-		case Directory:
-			{
-				if (node.getSize() != 0)
-					return "Can not remove non-empty directory";
-				
-				if (currentDirectory.equals(Arrays.asList(absPath)))
-					return "Can not remove the working directory";
 				
-				parentNode.removeChildByVal(fileNum);
-				parentNode.setSize(parentNode.getSize() - 1);
-				
-				free.freeBlock(fileNum);
-				
-				// Finalize changes
-				writeINode(parentNum, parentNode);
-				writeFreeList(free);
+			case Directory:
+				{
+					if (node.getSize() != 0)
+						throw new DirectoryNotEmptyException("Can not remove non-empty directory");
+					
+					if (Arrays.equals(cwd.path, absPath))
+						throw new FilesystemException("Can not remove the working directory");
+					
+					m_Directory.remove(parentNode, filename, free);
+					
+					freeINode(fileNum, free);
+					
+					// Finalize changes
+					writeINode(parentNum, parentNode);
+					writeFreeList(free);
+					m_Dentries.insert(absPath, absPath.length, parentNum, DentryCache.NEGATIVE);
+					
+					return INode.Type.Directory;
+				}
 				
-				return "Deleted directory " + concatPath(p_asPath);
+			default:
+				throw new FilesystemException("Error: unknown type");
 			}
-			
-		default:
-			return "Error: unknown type";
+		}
+		finally
+		{
+			guard.unlock();
+			endChange();
 		}
 	}
 
-	private short copyFile(INode source, String destName, FreeListNode freeList)
+	private int copyFile(INode source, String destName, FreeListNode freeList, int parentNum)
 	{
-		short destFileNum = freeList.getNewBlock();
-		INode destFileNode = new INode(destName, INode.Type.File);
+		int destFileNum = freeList.getNewBlock(parentNum);
+		INode destFileNode = new INode(destName, INode.Type.File, m_Superblock.getBlockSize());
 		
-		int blockId = 0;
-		short blockNum = source.getChild(0);
-		while (blockNum != -1)
+		if (source.isInline())
 		{
-			short newBlockNum = freeList.getNewBlock();
-			
-			copyBlock(blockNum, newBlockNum);
-			
-			destFileNode.addChild(newBlockNum);
+			int offset = INode.childrenOffset();
+			System.arraycopy(source.getBlock(), offset, destFileNode.getBlock(), offset, source.getSize());
+			destFileNode.setInline(true);
+		}
+		else
+		{
+			BlockMap sourceMap = new BlockMap(source, m_Journal);
+			BlockMap destMap = new BlockMap(m_Superblock.getBlockSize());
+			shareBlocks(sourceMap, destMap, freeList);
 			
-			blockNum = source.getChild(++blockId);
+			destMap.store(destFileNode, m_Journal, freeList);
 		}
 		
 		destFileNode.setSize(source.getSize());
@@ -577,35 +2511,55 @@ public class Filesystem
 		return destFileNum;
 	}
 	
-	private short copyDir(INode source, String destName, FreeListNode freeList)
+	private int copyDir(INode source, String destName, FreeListNode freeList)
 	{
-		short destDirNum = freeList.getNewBlock();
-		INode destDirNode = new INode(destName, INode.Type.Directory);
+		// Directories go in the group of the thread, like new ones, with their files close to them
+		int destDirNum = freeList.getNewBlock();
+		INode destDirNode = new INode(destName, INode.Type.Directory, m_Superblock.getBlockSize());
+		Directory.initialize(destDirNode);
 		
-		int childId = 0;
-		short childNum = source.getChild(0);
-		while (childNum != -1)
+		Directory.Cursor entries = m_Directory.iterate(source);
+		while (entries.next())
 		{
-			INode childNode = getINode(childNum);
-			short childCopyNum = copy(childNode, childNode.getName(), freeList);
-			destDirNode.addChild(childCopyNum);
-			
-			childNum = source.getChild(++childId);
+			INode childNode = getINode(entries.getChild());
+			int childCopyNum = copy(childNode, entries.getName(), freeList, destDirNum);
+			m_Directory.add(destDirNode, entries.getName(), entries.getType(), childCopyNum, freeList);
 		}
 		
-		destDirNode.setSize(source.getSize());
-		
 		writeINode(destDirNum, destDirNode);
 		
 		return destDirNum;
 	}
 	
-	private short copy(INode source, String destName, FreeListNode freeList)
+	private int countBlocks(INode node)
+	{
+		int count = 1;
+		
+		if (node.getType() == INode.Type.Directory)
+		{
+			// Entries are added in hash order, which may leave the new index half as dense
+			count += 2 * m_Directory.countBlocks(node) + 2;
+			
+			Directory.Cursor entries = m_Directory.iterate(node);
+			while (entries.next())
+			{
+				count += countBlocks(getINode(entries.getChild()));
+			}
+			
+			return count;
+		}
+		
+		// The data blocks of files are shared with the copy
+		BlockMap map = new BlockMap(node, m_Journal);
+		return count + blocksNeededToShare(map, new BlockMap(m_Superblock.getBlockSize()));
+	}
+	
+	private int copy(INode source, String destName, FreeListNode freeList, int parentNum)
 	{
 		switch (source.getType())
 		{
 		case File:
-			return copyFile(source, destName, freeList);
+			return copyFile(source, destName, freeList, parentNum);
 			
 		case Directory:
 			return copyDir(source, destName, freeList);
@@ -629,123 +2583,262 @@ public class Filesystem
 	 */
 	public String copy(String[] p_asSource, String[] p_asDestination)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.copy(p_asSource, p_asDestination);
+	}
+	
+	String copy(Session session, String[] p_asSource, String[] p_asDestination)
+	{
+		try
+		{
+			copyTo(session, p_asSource, p_asDestination);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+
+		return concatPath(p_asSource) + " copied successfully to " + concatPath(p_asDestination);
+	}
+	
+	/**
+	 * Copy a file or directory. Will not overwrite files or directories.
+	 * 
+	 * @param p_asSource the path to the file or directory to be copied. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @param p_asDestination the path to the copy. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @throws NoSuchPathException Thrown if the source, or the directory of the destination, does not exist.
+	 * @throws NotADirectoryException Thrown if the directory of the destination is a file.
+	 * @throws PathExistsException Thrown if a file or directory with the destination name already exists.
+	 * @throws InvalidNameException Thrown if the destination name can not be used.
+	 * @throws OutOfSpaceException Thrown if there is not enough free space for the copy.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public void copyTo(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		m_Session.copyTo(p_asSource, p_asDestination);
+	}
+	
+	void copyTo(Session session, String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 
 		if (p_asSource == null || p_asSource.length == 0)
-			return "Invalid source path";
+			throw new NoSuchPathException("Invalid source path");
 		
-		String[] absSource = toAbsolute(p_asSource);
-		
-		INode sourceNode = findINode(absSource);
-		if (sourceNode == null)
-			return "Source does not exist";
+		String[] absSource = toAbsolute(cwd, p_asSource);
 		
 		if (p_asDestination == null || p_asDestination.length == 0)
-			return "Invalid destination path";
+			throw new NoSuchPathException("Invalid destination path");
 
-		String[] absDest = toAbsolute(p_asDestination);
+		String[] absDest = toAbsolute(cwd, p_asDestination);
 		
 		String destFilename = absDest[absDest.length - 1];
 		if (destFilename == null || destFilename.isEmpty())
-			return "Invalid destination filename";
-		
-		short destParentNum = findNode(Arrays.copyOfRange(absDest, 0, absDest.length - 1));
-		if (destParentNum == -1)
-			return "Invalid destination path";
-		
-		INode destParentNode = getINode(destParentNum);
-		if (findChildNode(destParentNode, destFilename) != -1)
-			return "A file or directory with the destination name already exists. Delete that file first or choose another name.";
-		
-		FreeListNode free = getFreeList();
-		
-		short copyNum = copy(sourceNode, destFilename, free);
-		if (copyNum == -1)
-			return "Could not copy file or directory";
+			throw new InvalidNameException("Invalid destination filename");
 		
-		destParentNode.addChild(copyNum);
-		destParentNode.setSize(destParentNode.getSize() + 1);
+		if (!copyLocked(cwd, absSource, absDest, false))
+		{
+			m_TreeLock.writeLock().lock();
+			try
+			{
+				copyLocked(cwd, absSource, absDest, true);
+			}
+			finally
+			{
+				m_TreeLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Copy with the source locked for reading and the destination directory for writing. Copying a
+	 * directory reads every <code>INode</code> below it, so that is only done with the whole tree locked.
+	 * 
+	 * @param wholeTree <code>true</code> if the caller has locked the whole tree for writing.
+	 * @return <code>true</code> if successful, <code>false</code> if the source is a directory and the
+	 * whole tree is not locked.
+	 */
+	private boolean copyLocked(WorkingDirectory cwd, String[] absSource, String[] absDest, boolean wholeTree) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		String destFilename = absDest[absDest.length - 1];
+		Resolved source = new Resolved(absSource, cwd, UNLOCKED, SHARED);
+		Resolved dest = new Resolved(absDest, cwd, EXCLUSIVE, UNLOCKED);
 		
-		// Finalize changes
-		writeINode(destParentNum, destParentNode);
-		writeFreeList(free);
+		beginChange();
+		INodeLocks.Guard guard = lock(source, dest);
+		try
+		{
+			if (source.node == -1)
+				throw new NoSuchPathException("Source does not exist");
+			
+			INode sourceNode = getINode(source.node);
+			if (sourceNode.getType() == INode.Type.Directory && !wholeTree)
+				return false;
+			
+			int destParentNum = dest.parent;
+			if (destParentNum == -1)
+				throw new NoSuchPathException("Invalid destination path");
+			
+			INode destParentNode = getINode(destParentNum);
+			if (destParentNode.getType() != INode.Type.Directory)
+				throw new NotADirectoryException("Can not copy into a file");
+			
+			if (findChildNode(destParentNode, destFilename) != -1)
+				throw new PathExistsException("A file or directory with the destination name already exists. Delete that file first or choose another name.");
 
-		return concatPath(p_asSource) + " copied successfully to " + concatPath(p_asDestination);
+			if (destFilename.length() > INode.MAX_FILENAME_LENGTH)
+				throw new InvalidNameException("Filename too long");
+			
+			FreeListNode free = getFreeList();
+			int needed = countBlocks(sourceNode) + m_Directory.blocksNeededToAdd(destParentNode);
+			if (!free.reserve(needed))
+				throw new OutOfSpaceException("Not enough free space");
+			
+			try
+			{
+				int copyNum = copy(sourceNode, destFilename, free, dest.parent);
+				if (copyNum == -1)
+					throw new FilesystemException("Could not copy file or directory");
+				
+				m_Directory.add(destParentNode, destFilename, sourceNode.getType(), copyNum, free);
+				
+				// Finalize changes
+				writeINode(destParentNum, destParentNode);
+				writeFreeList(free);
+				m_Dentries.insert(absDest, absDest.length, destParentNum, copyNum);
+			}
+			finally
+			{
+				free.unreserve(needed);
+			}
+		}
+		finally
+		{
+			guard.unlock();
+			endChange();
+		}
+		
+		return true;
 	}
 	
-	private void appendDirect(INode sourceFile, INode destFile, FreeListNode freeList)
+	/**
+	 * Add blocks to the end of a file, in as few runs of consecutive blocks as are free. The blocks
+	 * follow on from the last block of the file, or are taken close to a goal block if it has none.
+	 * 
+	 * @param near the number of a block related to the file, such as its directory.
+	 */
+	private void allocateBlocks(BlockMap map, int count, FreeListNode freeList, int near)
 	{
-		int blockId = 0;
-		short blockNum = sourceFile.getChild(0);
-		while (blockNum != -1)
+		// Runs are no longer than an allocation group, and are halved for as long as none is found
+		int run = Math.min(count, freeList.getMaxRun());
+		while (count > 0)
 		{
-			short newBlock = freeList.getNewBlock();
-			copyBlock(blockNum, newBlock);
-			destFile.addChild(newBlock);
+			int goal = map.getBlockCount() > 0 ? map.getBlock(map.getBlockCount() - 1) + 1 : near;
+			int start = run > 1 ? freeList.getNewBlocks(run, goal) : freeList.getNewBlock(goal);
+			if (start == -1 && run > 1)
+			{
+				run /= 2;
+				continue;
+			}
 			
-			blockNum = sourceFile.getChild(++blockId);
+			// Runs next to each other are merged into one extent
+			map.append(start, run);
+			count -= run;
+			run = Math.min(run, count);
 		}
 	}
 	
-	private void bufferedCopy(short source, short dest, byte[] buffer, int devideAt)
+	
+	private void bufferedCopy(int source, int dest, byte[] buffer, int devideAt)
 	{
-		byte[] sourceBlock = m_BlockDevice.readBlock(source);
+		byte[] sourceBlock = m_Scratch.get().entryBlock;
+		m_DataDevice.readBlock(source, sourceBlock, 0);
 		System.arraycopy(sourceBlock, 0, buffer, devideAt, buffer.length - devideAt);
 		
-		m_BlockDevice.writeBlock(dest, buffer);
+		m_DataDevice.writeBlock(dest, buffer);
 		
 		System.arraycopy(sourceBlock, buffer.length - devideAt, buffer, 0, devideAt);
 	}
 	
-	private void appendBuffered(INode sourceFile, INode destFile, FreeListNode freeList)
+	private void appendBuffered(INode sourceFile, BlockMap sourceMap, INode destFile, BlockMap destMap,
+			FreeListNode freeList)
 	{
 		int sourceSize = sourceFile.getSize();
 		if (sourceSize == 0)
 			return;
 		
-		int sourceLastPartSize = sourceSize % BlockDevice.BLOCK_SIZE;
+		int blockSize = m_Superblock.getBlockSize();
+		int sourceLastPartSize = (sourceSize - 1) % blockSize + 1;
 		
 		int destSize = destFile.getSize();
-		int destStartBlock = destSize / BlockDevice.BLOCK_SIZE;
-		int firstPartSize = destSize % BlockDevice.BLOCK_SIZE;
-		int sndPartSize = BlockDevice.BLOCK_SIZE - firstPartSize;
+		int destStartBlock = destSize / blockSize;
+		int firstPartSize = destSize % blockSize;
+		int sndPartSize = blockSize - firstPartSize;
+		
+		byte[] buffer = m_DataDevice.readBlock(destMap.getBlock(destStartBlock));
 		
-		short firstDestBlock = destFile.getChild(destStartBlock);
-		byte[] buffer = m_BlockDevice.readBlock(firstDestBlock);
+		// The last block of the destination is changed, so it can not stay shared with other files
+		int firstDestBlock = unshareBlock(destMap, destStartBlock, false, freeList);
 		
-		int blockId = 0;
-		short blockNum = sourceFile.getChild(0);
+		boolean remaining = sourceLastPartSize > sndPartSize;
+		int firstNew = destMap.getBlockCount();
+		allocateBlocks(destMap, sourceMap.getBlockCount() - 1 + (remaining ? 1 : 0), freeList, firstDestBlock);
 		
 		// Write back the existing first block
-		{
-			bufferedCopy(blockNum, firstDestBlock, buffer, firstPartSize);
-			
-			blockNum = sourceFile.getChild(++blockId);
-		}
+		bufferedCopy(sourceMap.getBlock(0), firstDestBlock, buffer, firstPartSize);
 		
 		// Write middle blocks
-		while (blockNum != -1)
+		for (int i = 1; i < sourceMap.getBlockCount(); ++i)
 		{
-			short newBlock = freeList.getNewBlock();
-			
-			bufferedCopy(blockNum, newBlock, buffer, firstPartSize);
-			
-			destFile.addChild(newBlock);
-			
-			blockNum = sourceFile.getChild(++blockId);
+			bufferedCopy(sourceMap.getBlock(i), destMap.getBlock(firstNew + i - 1), buffer, firstPartSize);
 		}
 		
 		// Write any potentially remaining data in the buffer
-		if (sourceLastPartSize > sndPartSize)
+		if (remaining)
+			m_DataDevice.writeBlock(destMap.getBlock(destMap.getBlockCount() - 1), buffer);
+	}
+
+	/**
+	 * Append when either file is stored inline, by copying the data through a channel
+	 * which moves the destination to blocks once it no longer fits in its <code>INode</code>.
+	 */
+	private void appendInline(INode sourceFile, int destFileNum, INode destFile) throws FilesystemException
+	{
+		int destSize = destFile.getSize();
+		int newSize = destSize + sourceFile.getSize();
+		
+		int newBlocks = blocksFor(newSize) - (destFile.isInline() ? 0 : blocksFor(destSize));
+		int needed = newBlocks + 1 + BlockMap.overflowBlocksFor(m_Superblock.getBlockSize(), blocksFor(newSize) + 2);
+		
+		FreeListNode free = getFreeList();
+		if (!free.reserve(needed))
+			throw new OutOfSpaceException("Not enough free space");
+		
+		INodeInputStream input = new INodeInputStream(sourceFile, m_Journal);
+		FileChannel output = new FileChannel(new FileHandle(destFileNum, destFile), needed);
+		try
 		{
-			short newBlock = freeList.getNewBlock();
-			m_BlockDevice.writeBlock(newBlock, buffer);
+			// The destination is already locked, so the channel is written to without locking it again
+			output.m_nPosition = destSize;
 			
-			destFile.addChild(newBlock);
+			byte[] buffer = new byte[m_Superblock.getBlockSize()];
+			int count;
+			while ((count = input.read(buffer, 0, buffer.length)) != -1)
+			{
+				output.writeLocked(ByteBuffer.wrap(buffer, 0, count));
+			}
+		}
+		finally
+		{
+			input.close();
+			output.close();
+			free.unreserve(needed);
 		}
 	}
-
+	
 	/**
 	 * Append one file to the end of another file.
 	 * 
@@ -759,53 +2852,126 @@ public class Filesystem
 	 */
 	public String append(String[] p_asSource, String[] p_asDestination)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.append(p_asSource, p_asDestination);
+	}
+	
+	String append(Session session, String[] p_asSource, String[] p_asDestination)
+	{
+		try
+		{
+			appendTo(session, p_asSource, p_asDestination);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+
+		return "Appended " + concatPath(p_asSource) + " to " + concatPath(p_asDestination);
+	}
+	
+	/**
+	 * Append one file to the end of another file.
+	 * 
+	 * @param p_asSource the path to the file to be appended to the other. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @param p_asDestination the path to the file to be appended to. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @throws NoSuchPathException Thrown if either file does not exist.
+	 * @throws NotAFileException Thrown if either path points to a directory.
+	 * @throws OutOfSpaceException Thrown if there is not enough free space, or the file would get too large.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public void appendTo(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotAFileException, OutOfSpaceException, FilesystemException
+	{
+		m_Session.appendTo(p_asSource, p_asDestination);
+	}
+	
+	void appendTo(Session session, String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotAFileException, OutOfSpaceException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 		
 		if (p_asSource == null || p_asSource.length == 0)
-			return "Invalid source path";
-		
-		String[] absSource = toAbsolute(p_asSource);
+			throw new NoSuchPathException("Invalid source path");
 		
-		INode sourceFileNode = findINode(absSource);
-		if (sourceFileNode == null)
-			return "Source does not exist";
-		
-		if (sourceFileNode.getType() != INode.Type.File)
-			return "Source is not a file";
+		String[] absSource = toAbsolute(cwd, p_asSource);
 		
 		if (p_asDestination == null || p_asDestination.length == 0)
-			return "Invalid destination path";
-		
-		String[] absDest = toAbsolute(p_asDestination);
-		
-		short destFileNum = findNode(absDest);
-		if (destFileNum == -1)
-			return "Destination does not exist";
-		
-		INode destFileNode = getINode(destFileNum);
-		if (destFileNode.getType() != INode.Type.File)
-			return "Destination is not a file";
+			throw new NoSuchPathException("Invalid destination path");
 		
-		int destStartSize = destFileNode.getSize();
-		int newSize = destStartSize + sourceFileNode.getSize();
+		String[] absDest = toAbsolute(cwd, p_asDestination);
 		
-		if (newSize > BlockDevice.BLOCK_SIZE * INode.NUM_CHILDREN)
-			return "Files to large, can not append";
+		Resolved source = new Resolved(absSource, cwd, UNLOCKED, SHARED);
+		Resolved dest = new Resolved(absDest, cwd, UNLOCKED, EXCLUSIVE);
 		
-		FreeListNode free = getFreeList();
-		
-		if (destStartSize % BlockDevice.BLOCK_SIZE == 0)
-			appendDirect(sourceFileNode, destFileNode, free);
-		else
-			appendBuffered(sourceFileNode, destFileNode, free);
-		
-		destFileNode.setSize(newSize);
-		
-		writeINode(destFileNum, destFileNode);
-		writeFreeList(free);
-
-		return "Appended " + concatPath(p_asSource) + " to " + concatPath(p_asDestination);
+		beginChange();
+		INodeLocks.Guard guard = lock(source, dest);
+		try
+		{
+			if (source.node == -1)
+				throw new NoSuchPathException("Source does not exist");
+			
+			INode sourceFileNode = getINode(source.node);
+			if (sourceFileNode.getType() != INode.Type.File)
+				throw new NotAFileException("Source is not a file");
+			
+			int destFileNum = dest.node;
+			if (destFileNum == -1)
+				throw new NoSuchPathException("Destination does not exist");
+			
+			INode destFileNode = getINode(destFileNum);
+			if (destFileNode.getType() != INode.Type.File)
+				throw new NotAFileException("Destination is not a file");
+			
+			int destStartSize = destFileNode.getSize();
+			long newSize = (long) destStartSize + sourceFileNode.getSize();
+			
+			if (newSize > Integer.MAX_VALUE)
+				throw new OutOfSpaceException("Files to large, can not append");
+			
+			if (sourceFileNode.isInline() || destFileNode.isInline())
+			{
+				appendInline(sourceFileNode, destFileNum, destFileNode);
+				return;
+			}
+			
+			BlockMap sourceMap = new BlockMap(sourceFileNode, m_Journal);
+			BlockMap destMap = new BlockMap(destFileNode, m_Journal);
+			boolean direct = destStartSize % m_Superblock.getBlockSize() == 0;
+			
+			// Whole blocks are shared, otherwise the data is shifted into new blocks
+			int newBlocks = blocksFor((int) newSize) - blocksFor(destStartSize);
+			int neededBlocks = direct ? blocksNeededToShare(sourceMap, destMap)
+					: newBlocks + 1 + destMap.overflowBlocksNeeded(newBlocks + 2);
+			
+			FreeListNode free = getFreeList();
+			if (!free.reserve(neededBlocks))
+				throw new OutOfSpaceException("Not enough free space");
+			
+			try
+			{
+				if (direct)
+					shareBlocks(sourceMap, destMap, free);
+				else
+					appendBuffered(sourceFileNode, sourceMap, destFileNode, destMap, free);
+				
+				destMap.store(destFileNode, m_Journal, free);
+				destFileNode.setSize((int) newSize);
+				
+				writeINode(destFileNum, destFileNode);
+				writeFreeList(free);
+			}
+			finally
+			{
+				free.unreserve(neededBlocks);
+			}
+		}
+		finally
+		{
+			guard.unlock();
+			endChange();
+		}
 	}
 
 	/**
@@ -822,67 +2988,158 @@ public class Filesystem
 	 */
 	public String rename(String[] p_asSource, String[] p_asDestination)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.rename(p_asSource, p_asDestination);
+	}
+	
+	String rename(Session session, String[] p_asSource, String[] p_asDestination)
+	{
+		try
+		{
+			move(session, p_asSource, p_asDestination);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+
+		return concatPath(p_asSource) + " renamed successfully to " + concatPath(p_asDestination);
+	}
+	
+	/**
+	 * Rename a file or directory. Will also move the file if different
+	 * parent directories are specified. Will not overwrite files or directories.
+	 * 
+	 * @param p_asSource the path to the file or directory to rename. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @param p_asDestination the new name and/or location. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @throws NoSuchPathException Thrown if the source, or the directory of the destination, does not exist.
+	 * @throws NotADirectoryException Thrown if the directory of the destination is a file.
+	 * @throws PathExistsException Thrown if a file or directory with the destination name already exists.
+	 * @throws InvalidNameException Thrown if either path does not end with a name, or the new name can not be used.
+	 * @throws OutOfSpaceException Thrown if the destination directory has no room for another entry.
+	 * @throws FilesystemException Thrown if a directory would be moved into itself,
+	 * or if the filesystem is not ready for use.
+	 */
+	public void move(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		m_Session.move(p_asSource, p_asDestination);
+	}
+	
+	void move(Session session, String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 
 		if (p_asSource == null || p_asSource.length == 0)
-			return "Invalid source path";
+			throw new NoSuchPathException("Invalid source path");
 
 		if (p_asDestination == null || p_asDestination.length == 0)
-			return "Invalid destination path";
-		
-		String[] absSource = toAbsolute(p_asSource);
-		String[] absDest = toAbsolute(p_asDestination);
-		
-		short sourceParentNum = findNode(Arrays.copyOfRange(absSource, 0, absSource.length - 1));
-		if (sourceParentNum == -1)
-			return "Invalid source path";
-		
-		short destParentNum = findNode(Arrays.copyOfRange(absDest, 0, absDest.length - 1));
-		if (destParentNum == -1)
-			return "Invalid destination path";
-		
-		String sourceFilename = absSource[absSource.length - 1];
-		if (sourceFilename == null || sourceFilename.isEmpty())
-			return "Invalid source filename";
-		
-		String destFilename = absDest[absDest.length - 1];
-		if (destFilename == null || destFilename.isEmpty())
-			return "Invalid destination filename";
-		
+			throw new NoSuchPathException("Invalid destination path");
 		
-		INode sourceParentNode = getINode(sourceParentNum);
-		short sourceNum = findChildNode(sourceParentNode, sourceFilename);
-		if (sourceNum == -1)
-			return "Source does not exist";
-		INode sourceNode = getINode(sourceNum);
+		String[] absSource = toAbsolute(cwd, p_asSource);
+		String[] absDest = toAbsolute(cwd, p_asDestination);
 		
-		INode destParentNode = getINode(destParentNum);
-		if (findChildNode(destParentNode, destFilename) != -1)
-			return "A file or directory with the destination name already exists. Delete that file first or choose another name.";
+		Resolved source = new Resolved(absSource, cwd, EXCLUSIVE, EXCLUSIVE);
+		Resolved dest = new Resolved(absDest, cwd, EXCLUSIVE, UNLOCKED);
 		
-		// Rename if names different
-		if (!sourceFilename.equals(destFilename))
+		beginChange();
+		INodeLocks.Guard guard = lock(source, dest);
+		boolean moving = source.parent != dest.parent;
+		if (moving)
 		{
-			sourceNode.setName(destFilename);
-			writeINode(sourceNum, sourceNode);
+			// Moves between directories are made one at a time, so the directories
+			// above the destination stay put while checking that none is being moved
+			guard.unlock();
+			m_RenameLock.lock();
+			guard = lock(source, dest);
 		}
 		
-		// Move file if in different places
-		if (sourceParentNum != destParentNum)
+		try
 		{
-			sourceParentNode.removeChildByVal(sourceNum);
-			sourceParentNode.setSize(sourceParentNode.getSize() - 1);
+			int sourceParentNum = source.parent;
+			if (sourceParentNum == -1)
+				throw new NoSuchPathException("Invalid source path");
+			
+			int destParentNum = dest.parent;
+			if (destParentNum == -1)
+				throw new NoSuchPathException("Invalid destination path");
+			
+			String sourceFilename = absSource[absSource.length - 1];
+			if (sourceFilename == null || sourceFilename.isEmpty())
+				throw new InvalidNameException("Invalid source filename");
+			
+			String destFilename = absDest[absDest.length - 1];
+			if (destFilename == null || destFilename.isEmpty())
+				throw new InvalidNameException("Invalid destination filename");
+			
+			
+			INode sourceParentNode = getINode(sourceParentNum);
+			int sourceNum = source.node;
+			if (sourceNum == -1)
+				throw new NoSuchPathException("Source does not exist");
+			INode sourceNode = getINode(sourceNum);
+			
+			INode destParentNode = getINode(destParentNum);
+			if (destParentNode.getType() != INode.Type.Directory)
+				throw new NotADirectoryException("Can not move into a file");
+			
+			if (findChildNode(destParentNode, destFilename) != -1)
+				throw new PathExistsException("A file or directory with the destination name already exists. Delete that file first or choose another name.");
+	
+			if (destFilename.length() > INode.MAX_FILENAME_LENGTH)
+				throw new InvalidNameException("Filename too long");
+			
+			// The destination directory and those above it must not include the source
+			for (int i = 0; i < absDest.length; ++i)
+			{
+				if (dest.chain[i] == sourceNum)
+					throw new FilesystemException("Can not move a directory into itself");
+			}
 			
-			destParentNode.addChild(sourceNum);
-			destParentNode.setSize(destParentNode.getSize() + 1);
+			FreeListNode free = getFreeList();
+			int needed = m_Directory.blocksNeededToAdd(destParentNode);
+			if (!free.reserve(needed))
+				throw new OutOfSpaceException("Not enough free space");
 			
-			// Finalize changes
-			writeINode(destParentNum, destParentNode);
-			writeINode(sourceParentNum, sourceParentNode);
+			try
+			{
+				// Rename if names different
+				if (!sourceFilename.equals(destFilename))
+				{
+					sourceNode.setName(destFilename);
+					writeINode(sourceNum, sourceNode);
+				}
+				
+				// Entries are indexed by name, so the entry is moved even within the same directory
+				if (sourceParentNum == destParentNum)
+					destParentNode = sourceParentNode;
+				
+				m_Directory.remove(sourceParentNode, sourceFilename, free);
+				m_Directory.add(destParentNode, destFilename, sourceNode.getType(), sourceNum, free);
+				
+				// Finalize changes
+				writeINode(destParentNum, destParentNode);
+				if (sourceParentNum != destParentNum)
+					writeINode(sourceParentNum, sourceParentNode);
+				writeFreeList(free);
+				
+				m_Dentries.insert(absSource, absSource.length, sourceParentNum, DentryCache.NEGATIVE);
+				m_Dentries.insert(absDest, absDest.length, destParentNum, sourceNum);
+			}
+			finally
+			{
+				free.unreserve(needed);
+			}
+		}
+		finally
+		{
+			guard.unlock();
+			if (moving)
+				m_RenameLock.unlock();
+			endChange();
 		}
-
-		return concatPath(p_asSource) + " renamed successfully to " + concatPath(p_asDestination);
 	}
 
 	/**
@@ -895,41 +3152,111 @@ public class Filesystem
 	 */
 	public String mkdir(String[] p_asPath)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.mkdir(p_asPath);
+	}
+	
+	String mkdir(Session session, String[] p_asPath)
+	{
+		try
+		{
+			createDirectory(session, p_asPath);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+
+		return concatPath(p_asPath) + " created successfully";
+	}
+	
+	/**
+	 * Create a directory.
+	 * 
+	 * @param p_asPath the path to the new directory. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @throws NoSuchPathException Thrown if the directory to create the directory in does not exist.
+	 * @throws NotADirectoryException Thrown if the directory to create the directory in is a file.
+	 * @throws PathExistsException Thrown if a file or directory with the name already exists.
+	 * @throws InvalidNameException Thrown if the name can not be used.
+	 * @throws OutOfSpaceException Thrown if there is not enough free space.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public void createDirectory(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		m_Session.createDirectory(p_asPath);
+	}
+	
+	void createDirectory(Session session, String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 
 		if (p_asPath == null || p_asPath.length == 0)
-			return "Invalid path";
+			throw new NoSuchPathException("Invalid path");
 		
-		String[] absPath = toAbsolute(p_asPath);
+		String[] absPath = toAbsolute(cwd, p_asPath);
 		
 		String dirname = absPath[absPath.length - 1];
 		if (dirname == null || dirname.isEmpty())
-			return "Invalid filename";
-		
-		short parentNum = findNode(Arrays.copyOfRange(absPath, 0, absPath.length - 1));
-		if (parentNum == -1)
-			return "Invalid path";
+			throw new InvalidNameException("Invalid filename");
 		
-		INode parentNode = getINode(parentNum);
-		if (findChildNode(parentNode, dirname) != -1)
-			return "A file or directory with that name already exists. Delete that file first or choose another name.";
+		Resolved found = new Resolved(absPath, cwd, EXCLUSIVE, UNLOCKED);
 		
-		FreeListNode free = getFreeList();
-		
-		short dirNum = free.getNewBlock();
-		INode dirNode = new INode(dirname, INode.Type.Directory);
-		
-		parentNode.addChild(dirNum);
-		parentNode.setSize(parentNode.getSize() + 1);
-		
-		writeINode(dirNum, dirNode);
-		
-		// Finalize changes
-		writeINode(parentNum, parentNode);
-		writeFreeList(free);
-
-		return concatPath(p_asPath) + " created successfully";
+		beginChange();
+		INodeLocks.Guard guard = lock(found);
+		try
+		{
+			int parentNum = found.parent;
+			if (parentNum == -1)
+				throw new NoSuchPathException("Invalid path");
+			
+			INode parentNode = getINode(parentNum);
+			if (parentNode.getType() != INode.Type.Directory)
+				throw new NotADirectoryException("Can not create a directory inside a file");
+			
+			if (findChildNode(parentNode, dirname) != -1)
+				throw new PathExistsException("A file or directory with that name already exists. Delete that file first or choose another name.");
+	
+			INode dirNode;
+			try
+			{
+				dirNode = new INode(dirname, INode.Type.Directory, m_Superblock.getBlockSize());
+				Directory.initialize(dirNode);
+			}
+			catch (IllegalArgumentException ex)
+			{
+				throw new InvalidNameException(ex.getMessage());
+			}
+			
+			FreeListNode free = getFreeList();
+			int needed = 1 + m_Directory.blocksNeededToAdd(parentNode);
+			if (!free.reserve(needed))
+				throw new OutOfSpaceException("Not enough free space");
+			
+			try
+			{
+				// New directories spread over the groups of the threads making them, and their files follow
+				int dirNum = free.getNewBlock();
+				
+				m_Directory.add(parentNode, dirname, INode.Type.Directory, dirNum, free);
+				
+				writeINode(dirNum, dirNode);
+				
+				// Finalize changes
+				writeINode(parentNum, parentNode);
+				writeFreeList(free);
+				m_Dentries.insert(absPath, absPath.length, parentNum, dirNum);
+			}
+			finally
+			{
+				free.unreserve(needed);
+			}
+		}
+		finally
+		{
+			guard.unlock();
+			endChange();
+		}
 	}
 
 	/**
@@ -942,24 +3269,55 @@ public class Filesystem
 	 */
 	public String cd(String[] p_asPath)
 	{
-		if (currentDirectory == null)
-			return "Invalid filesystem. Use format or read to prepare the filesystem before use.";
+		return m_Session.cd(p_asPath);
+	}
+	
+	String cd(Session session, String[] p_asPath)
+	{
+		try
+		{
+			changeDirectory(session, p_asPath);
+		}
+		catch (FilesystemException ex)
+		{
+			return ex.getMessage();
+		}
+		
+		return "Changed directory to /" + concatPath(session.getDirectory().path);
+	}
+	
+	/**
+	 * Changes the working directory.
+	 * 
+	 * @param p_asPath the path to the new working directory. Can be either relative or absolute.
+	 * Absolute paths are marked by a leading empty string.
+	 * 
+	 * @throws NoSuchPathException Thrown if the directory does not exist.
+	 * @throws NotADirectoryException Thrown if the path points to a file.
+	 * @throws FilesystemException Thrown if the filesystem is not ready for use.
+	 */
+	public void changeDirectory(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
+	{
+		m_Session.changeDirectory(p_asPath);
+	}
+	
+	void changeDirectory(Session session, String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
+	{
+		WorkingDirectory cwd = readyDirectory(session);
 		
 		if (p_asPath == null || p_asPath.length == 0)
-			return "Invalid path";
+			throw new NoSuchPathException("Invalid path");
 		
-		String[] absPath = toAbsolute(p_asPath);
+		String[] absPath = toAbsolute(cwd, p_asPath);
 		
-		INode dir = findINode(absPath);
+		INode dir = lockedINode(new Resolved(absPath, cwd, UNLOCKED, SHARED));
 		if (dir == null)
-			return "Directory does not exist";
+			throw new NoSuchPathException("Directory does not exist");
 		
 		if (dir.getType() != INode.Type.Directory)
-			return "Can not navigate to path, as path is not a directory";
+			throw new NotADirectoryException("Can not navigate to path, as path is not a directory");
 		
-		currentDirectory = Arrays.asList(absPath);
-		
-		return "Changed directory to /" + concatPath(absPath);
+		session.setDirectory(new WorkingDirectory(cwd.mount, absPath));
 	}
 
 	/**
@@ -969,10 +3327,16 @@ public class Filesystem
 	 */
 	public String pwd()
 	{
-		if (currentDirectory == null)
+		return m_Session.pwd();
+	}
+	
+	String pwd(Session session)
+	{
+		WorkingDirectory cwd = workingDirectory(session);
+		if (cwd == null)
 			return "Unformatted filesystem";
 		
-		return "/" + concatPath(currentDirectory);
+		return "/" + concatPath(cwd.path);
 	}
 	
 	private String concatPath(String[] path)
@@ -999,5 +3363,23 @@ public class Filesystem
 		
 		return res.toString();
 	}
+	
+	private static void padRight(StringBuilder res, String text, int width)
+	{
+		res.append(text);
+		for (int i = text.length(); i < width; ++i)
+		{
+			res.append(' ');
+		}
+	}
+	
+	private static void padLeft(StringBuilder res, String text, int width)
+	{
+		for (int i = text.length(); i < width; ++i)
+		{
+			res.append(' ');
+		}
+		res.append(text);
+	}
 
 }
@@ -0,0 +1,25 @@
+package se.jereq.filesystem;
+
+import java.io.IOException;
+
+/**
+ * An operation of a {@link Filesystem} failed. The message describes the error in the words of the
+ * methods returning a <code>String</code>, which return it in place of their result.
+ * <br><br>
+ * The subclasses tell the common errors apart. Every error of the methods returning a typed result
+ * is one, so catching this catches them all.
+ */
+public class FilesystemException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public FilesystemException(String message)
+	{
+		super(message);
+	}
+}
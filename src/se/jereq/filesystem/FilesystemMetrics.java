@@ -0,0 +1,681 @@
+package se.jereq.filesystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a {@link Filesystem}, kept from the moment it is created.
+ * Every filesystem has one, see {@link Filesystem#getMetrics}.
+ * <br><br>
+ * Each operation run through the filesystem or a {@link Session} is timed, and the blocks it
+ * reads and writes, and the time it spends waiting for the device, are counted for that kind of
+ * operation. Comparing the device time to the whole latency of an operation tells how much of it
+ * went to the device, and how much to finding and changing metadata in memory. Transfers made
+ * outside of any operation, such as by streams and channels after they were opened, are counted
+ * for {@link Operation#OTHER}.
+ * <br><br>
+ * Each operation is also a Flight Recorder event, and each device request made through a
+ * {@link MeteredBlockDevice} another, for recording the individual operations that took long.
+ * <br><br>
+ * The values are read as a whole with {@link #snapshot}, or through JMX once {@link #register}ed.
+ * Counting is done per thread where possible, so it adds little to the operations themselves.
+ */
+public class FilesystemMetrics implements FilesystemMetricsMXBean
+{
+	/**
+	 * The JMX domain of the registered metrics.
+	 */
+	public static final String DOMAIN = "se.jereq.filesystem";
+
+	/**
+	 * The kinds of operations counted.
+	 */
+	public enum Operation
+	{
+		LS, CREATE, OPEN_WRITE, CAT, OPEN_READ, OPEN_CHANNEL, RM, COPY, APPEND, RENAME, MKDIR, CD, STAT,
+		FORMAT, SAVE, READ, MOUNT, SYNC,
+		/**
+		 * Device transfers made outside of any operation. Has no count or latency.
+		 */
+		OTHER
+	}
+
+	/**
+	 * The totals of one kind of operation.
+	 */
+	private static class Totals
+	{
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		final LongAdder deviceNanos = new LongAdder();
+		final LongAdder blockReads = new LongAdder();
+		final LongAdder blockWrites = new LongAdder();
+		final LatencyHistogram latency = new LatencyHistogram();
+	}
+
+	/**
+	 * The operation a thread is running, and what it has done so far. Operations started
+	 * while another is running on the same thread are counted as part of the first one.
+	 */
+	static class Context
+	{
+		Operation operation;
+		String[] path;
+		String[] destination;
+		// Only while recording operations
+		OperationEvent event;
+		int depth;
+		long start;
+		long deviceNanos;
+		long blockReads;
+		long blockWrites;
+	}
+
+	private final Filesystem m_Filesystem;
+	private final BlockDevice m_Device;
+	private final Totals[] m_Totals = new Totals[Operation.values().length];
+	private final ThreadLocal<Context> m_Context = ThreadLocal.withInitial(Context::new);
+
+	private final LongAdder m_PathResolutions = new LongAdder();
+	private final LongAdder m_PathComponents = new LongAdder();
+	private final LongAccumulator m_MaxPathDepth = new LongAccumulator(Math::max, 0);
+	private final LongAdder m_DentryHits = new LongAdder();
+	private final LongAdder m_DentryMisses = new LongAdder();
+
+	private ObjectName m_Name;
+
+	/**
+	 * The counters and latencies of one kind of operation at the time of a snapshot.
+	 */
+	public static class OperationSnapshot
+	{
+		private final long m_nCount;
+		private final long m_nNanos;
+		private final long m_nMaxNanos;
+		private final long m_nDeviceNanos;
+		private final long m_nBlockReads;
+		private final long m_nBlockWrites;
+		private final long[] m_anLatency;
+
+		private OperationSnapshot(Totals totals)
+		{
+			m_anLatency = totals.latency.getCounts();
+			m_nCount = totals.count.sum();
+			m_nNanos = totals.nanos.sum();
+			m_nMaxNanos = totals.maxNanos.get();
+			m_nDeviceNanos = totals.deviceNanos.sum();
+			m_nBlockReads = totals.blockReads.sum();
+			m_nBlockWrites = totals.blockWrites.sum();
+		}
+
+		/**
+		 * @return The number of operations completed.
+		 */
+		public long getCount()
+		{
+			return m_nCount;
+		}
+
+		/**
+		 * @return The time spent in the operations, in nanoseconds.
+		 */
+		public long getTotalNanos()
+		{
+			return m_nNanos;
+		}
+
+		/**
+		 * @return The average latency of the operations in nanoseconds, or 0 if none have completed.
+		 */
+		public double getMeanNanos()
+		{
+			return m_nCount > 0 ? (double) m_nNanos / m_nCount : 0;
+		}
+
+		/**
+		 * @return The highest latency of an operation, in nanoseconds.
+		 */
+		public long getMaxNanos()
+		{
+			return m_nMaxNanos;
+		}
+
+		/**
+		 * @return The median latency in nanoseconds, see {@link #getPercentileNanos}.
+		 */
+		public long getMedianNanos()
+		{
+			return getPercentileNanos(50);
+		}
+
+		/**
+		 * @return The 90th percentile of the latencies in nanoseconds, see {@link #getPercentileNanos}.
+		 */
+		public long getP90Nanos()
+		{
+			return getPercentileNanos(90);
+		}
+
+		/**
+		 * @return The 99th percentile of the latencies in nanoseconds, see {@link #getPercentileNanos}.
+		 */
+		public long getP99Nanos()
+		{
+			return getPercentileNanos(99);
+		}
+
+		/**
+		 * Get a percentile of the latencies. The latencies are kept in a {@link LatencyHistogram},
+		 * so the result may be up to a quarter larger than the actual latency, but never larger than the highest one.
+		 *
+		 * @param percentile the percentile to get, in the range [0, 100].
+		 * @return The latency in nanoseconds, or 0 if no operations have completed.
+		 */
+		public long getPercentileNanos(double percentile)
+		{
+			return Math.min(LatencyHistogram.percentile(m_anLatency, percentile), m_nMaxNanos);
+		}
+
+		/**
+		 * @return The time spent waiting for the device during the operations, in nanoseconds.
+		 */
+		public long getDeviceNanos()
+		{
+			return m_nDeviceNanos;
+		}
+
+		/**
+		 * @return The number of blocks read from the device by the operations.
+		 */
+		public long getBlockReads()
+		{
+			return m_nBlockReads;
+		}
+
+		/**
+		 * @return The number of blocks written to the device by the operations.
+		 */
+		public long getBlockWrites()
+		{
+			return m_nBlockWrites;
+		}
+	}
+
+	/**
+	 * The metrics of a filesystem at one point in time. Counters are read one after the other
+	 * while operations may be running, so they may not all add up exactly.
+	 */
+	public static class Snapshot
+	{
+		private final long m_nFreeBlocks;
+		private final long m_nPathResolutions;
+		private final long m_nPathComponents;
+		private final long m_nMaxPathDepth;
+		private final long m_nDentryHits;
+		private final long m_nDentryMisses;
+		private final long m_nBlockCacheHits;
+		private final long m_nBlockCacheMisses;
+		private final Map<Operation, OperationSnapshot> m_Operations = new EnumMap<Operation, OperationSnapshot>(Operation.class);
+
+		private Snapshot(FilesystemMetrics metrics)
+		{
+			m_nFreeBlocks = metrics.m_Filesystem.getFreeBlocks();
+			m_nPathResolutions = metrics.m_PathResolutions.sum();
+			m_nPathComponents = metrics.m_PathComponents.sum();
+			m_nMaxPathDepth = metrics.m_MaxPathDepth.get();
+			m_nDentryHits = metrics.m_DentryHits.sum();
+			m_nDentryMisses = metrics.m_DentryMisses.sum();
+
+			if (metrics.m_Device instanceof CachingBlockDevice)
+			{
+				CachingBlockDevice cache = (CachingBlockDevice) metrics.m_Device;
+				m_nBlockCacheHits = cache.getHits();
+				m_nBlockCacheMisses = cache.getMisses();
+			}
+			else
+			{
+				m_nBlockCacheHits = 0;
+				m_nBlockCacheMisses = 0;
+			}
+
+			for (Operation operation : Operation.values())
+			{
+				m_Operations.put(operation, new OperationSnapshot(metrics.m_Totals[operation.ordinal()]));
+			}
+		}
+
+		private static double ratio(long hits, long misses)
+		{
+			return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+		}
+
+		/**
+		 * @return The number of blocks that could be taken from the free list, 0 if the filesystem is not ready for use.
+		 */
+		public long getFreeBlocks()
+		{
+			return m_nFreeBlocks;
+		}
+
+		/**
+		 * @return The number of blocks read from the device by all operations.
+		 */
+		public long getBlockReads()
+		{
+			long reads = 0;
+			for (OperationSnapshot operation : m_Operations.values())
+			{
+				reads += operation.getBlockReads();
+			}
+
+			return reads;
+		}
+
+		/**
+		 * @return The number of blocks written to the device by all operations.
+		 */
+		public long getBlockWrites()
+		{
+			long writes = 0;
+			for (OperationSnapshot operation : m_Operations.values())
+			{
+				writes += operation.getBlockWrites();
+			}
+
+			return writes;
+		}
+
+		/**
+		 * @return The time all operations spent waiting for the device, in nanoseconds.
+		 */
+		public long getDeviceNanos()
+		{
+			long nanos = 0;
+			for (OperationSnapshot operation : m_Operations.values())
+			{
+				nanos += operation.getDeviceNanos();
+			}
+
+			return nanos;
+		}
+
+		/**
+		 * @return The number of path components found in the path cache.
+		 */
+		public long getDentryHits()
+		{
+			return m_nDentryHits;
+		}
+
+		/**
+		 * @return The number of path components looked up by searching a directory.
+		 */
+		public long getDentryMisses()
+		{
+			return m_nDentryMisses;
+		}
+
+		/**
+		 * @return The share of path components found in the path cache, 0 if no paths have been resolved.
+		 */
+		public double getDentryCacheHitRatio()
+		{
+			return ratio(m_nDentryHits, m_nDentryMisses);
+		}
+
+		/**
+		 * @return The number of blocks found in the block cache, 0 unless the device is a {@link CachingBlockDevice}.
+		 */
+		public long getBlockCacheHits()
+		{
+			return m_nBlockCacheHits;
+		}
+
+		/**
+		 * @return The number of blocks loaded into the block cache, 0 unless the device is a {@link CachingBlockDevice}.
+		 */
+		public long getBlockCacheMisses()
+		{
+			return m_nBlockCacheMisses;
+		}
+
+		/**
+		 * @return The share of blocks found in the block cache, 0 unless the device is a {@link CachingBlockDevice}.
+		 */
+		public double getBlockCacheHitRatio()
+		{
+			return ratio(m_nBlockCacheHits, m_nBlockCacheMisses);
+		}
+
+		/**
+		 * @return The number of paths resolved.
+		 */
+		public long getPathResolutions()
+		{
+			return m_nPathResolutions;
+		}
+
+		/**
+		 * @return The average number of components of the paths resolved, 0 if none have been.
+		 */
+		public double getAveragePathDepth()
+		{
+			return m_nPathResolutions > 0 ? (double) m_nPathComponents / m_nPathResolutions : 0;
+		}
+
+		/**
+		 * @return The largest number of components of a path resolved.
+		 */
+		public long getMaxPathDepth()
+		{
+			return m_nMaxPathDepth;
+		}
+
+		/**
+		 * Get the counters and latencies of one kind of operation.
+		 *
+		 * @param operation the kind of operation.
+		 * @return The snapshot of the operation.
+		 */
+		public OperationSnapshot getOperation(Operation operation)
+		{
+			return m_Operations.get(operation);
+		}
+
+		/**
+		 * @return The counters and latencies of each kind of operation, by the name of the operation.
+		 */
+		public Map<String, OperationSnapshot> getOperations()
+		{
+			Map<String, OperationSnapshot> res = new LinkedHashMap<String, OperationSnapshot>();
+			for (Map.Entry<Operation, OperationSnapshot> entry : m_Operations.entrySet())
+			{
+				res.put(entry.getKey().name(), entry.getValue());
+			}
+
+			return Collections.unmodifiableMap(res);
+		}
+	}
+
+	/**
+	 * constructor.
+	 *
+	 * @param filesystem the filesystem to read the free block count from.
+	 * @param device the device given to the filesystem, to read the block cache counters from if it has them.
+	 */
+	FilesystemMetrics(Filesystem filesystem, BlockDevice device)
+	{
+		m_Filesystem = filesystem;
+		m_Device = device;
+
+		for (int i = 0; i < m_Totals.length; ++i)
+		{
+			m_Totals[i] = new Totals();
+		}
+	}
+
+	/**
+	 * Start timing an operation on the calling thread. Must be followed by {@link #end} on the same thread.
+	 *
+	 * @param path the path operated on as given, or <code>null</code>.
+	 * @param destination the second path of the operation as given, or <code>null</code>.
+	 * @return The context of the thread, to pass to {@link #end}.
+	 */
+	Context begin(Operation operation, String[] path, String[] destination)
+	{
+		Context context = m_Context.get();
+		if (context.depth++ == 0)
+		{
+			OperationEvent event = new OperationEvent();
+			if (event.isEnabled())
+			{
+				event.begin();
+				context.event = event;
+			}
+
+			context.operation = operation;
+			context.path = path;
+			context.destination = destination;
+			context.deviceNanos = 0;
+			context.blockReads = 0;
+			context.blockWrites = 0;
+			context.start = System.nanoTime();
+		}
+
+		return context;
+	}
+
+	/**
+	 * Stop timing an operation, and add what it did to the totals of its kind.
+	 */
+	void end(Context context)
+	{
+		if (--context.depth > 0)
+			return;
+
+		long nanos = System.nanoTime() - context.start;
+		Totals totals = m_Totals[context.operation.ordinal()];
+		totals.count.increment();
+		totals.nanos.add(nanos);
+		totals.maxNanos.accumulate(nanos);
+		totals.latency.record(nanos);
+		totals.deviceNanos.add(context.deviceNanos);
+		totals.blockReads.add(context.blockReads);
+		totals.blockWrites.add(context.blockWrites);
+
+		OperationEvent event = context.event;
+		if (event != null && event.shouldCommit())
+		{
+			// The paths are only joined for the operations recorded
+			event.operation = context.operation.name();
+			event.path = context.path != null ? String.join("/", context.path) : null;
+			event.destination = context.destination != null ? String.join("/", context.destination) : null;
+			event.blockReads = context.blockReads;
+			event.blockWrites = context.blockWrites;
+			event.bytesRead = context.blockReads * m_Device.getBlockSize();
+			event.bytesWritten = context.blockWrites * m_Device.getBlockSize();
+			event.deviceTime = context.deviceNanos;
+			event.commit();
+		}
+
+		context.operation = null;
+		context.path = null;
+		context.destination = null;
+		context.event = null;
+	}
+
+	/**
+	 * Count blocks read from the device by the calling thread.
+	 */
+	void deviceRead(int blocks, long nanos)
+	{
+		Context context = m_Context.get();
+		if (context.depth > 0)
+		{
+			context.blockReads += blocks;
+			context.deviceNanos += nanos;
+		}
+		else
+		{
+			Totals totals = m_Totals[Operation.OTHER.ordinal()];
+			totals.blockReads.add(blocks);
+			totals.deviceNanos.add(nanos);
+		}
+	}
+
+	/**
+	 * Count blocks written to the device by the calling thread.
+	 */
+	void deviceWrite(int blocks, long nanos)
+	{
+		Context context = m_Context.get();
+		if (context.depth > 0)
+		{
+			context.blockWrites += blocks;
+			context.deviceNanos += nanos;
+		}
+		else
+		{
+			Totals totals = m_Totals[Operation.OTHER.ordinal()];
+			totals.blockWrites.add(blocks);
+			totals.deviceNanos.add(nanos);
+		}
+	}
+
+	/**
+	 * Count a resolved path.
+	 *
+	 * @param depth the number of components of the path.
+	 * @param hits the number of components found in the path cache.
+	 * @param misses the number of components looked up by searching a directory.
+	 */
+	void pathResolved(int depth, int hits, int misses)
+	{
+		m_PathResolutions.increment();
+		m_PathComponents.add(depth);
+		m_MaxPathDepth.accumulate(depth);
+		m_DentryHits.add(hits);
+		m_DentryMisses.add(misses);
+	}
+
+	/**
+	 * Read all metrics at once.
+	 *
+	 * @return The current values of the metrics.
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server, as
+	 * <code>se.jereq.filesystem:type=Filesystem,name=&lt;name&gt;</code>.
+	 * Metrics already registered are unregistered first.
+	 *
+	 * @param name the name to tell the filesystem apart from others, such as the file backing its device.
+	 * @return The name the metrics were registered as.
+	 * @throws JMException Thrown if the metrics can not be registered, such as when the name is taken.
+	 */
+	public synchronized ObjectName register(String name) throws JMException
+	{
+		unregister();
+
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=Filesystem,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		m_Name = objectName;
+
+		return objectName;
+	}
+
+	/**
+	 * Unregister the metrics from the platform MBean server, if registered.
+	 *
+	 * @throws JMException Thrown if the metrics can not be unregistered.
+	 */
+	public synchronized void unregister() throws JMException
+	{
+		if (m_Name == null)
+			return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(m_Name))
+			server.unregisterMBean(m_Name);
+		m_Name = null;
+	}
+
+	// The attributes read their own counters, rather than taking a whole snapshot for each
+
+	@Override
+	public long getFreeBlocks()
+	{
+		return m_Filesystem.getFreeBlocks();
+	}
+
+	@Override
+	public long getBlockReads()
+	{
+		long reads = 0;
+		for (Totals totals : m_Totals)
+		{
+			reads += totals.blockReads.sum();
+		}
+
+		return reads;
+	}
+
+	@Override
+	public long getBlockWrites()
+	{
+		long writes = 0;
+		for (Totals totals : m_Totals)
+		{
+			writes += totals.blockWrites.sum();
+		}
+
+		return writes;
+	}
+
+	@Override
+	public long getDeviceNanos()
+	{
+		long nanos = 0;
+		for (Totals totals : m_Totals)
+		{
+			nanos += totals.deviceNanos.sum();
+		}
+
+		return nanos;
+	}
+
+	@Override
+	public double getDentryCacheHitRatio()
+	{
+		return Snapshot.ratio(m_DentryHits.sum(), m_DentryMisses.sum());
+	}
+
+	@Override
+	public double getBlockCacheHitRatio()
+	{
+		if (!(m_Device instanceof CachingBlockDevice))
+			return 0;
+
+		CachingBlockDevice cache = (CachingBlockDevice) m_Device;
+		return Snapshot.ratio(cache.getHits(), cache.getMisses());
+	}
+
+	@Override
+	public long getPathResolutions()
+	{
+		return m_PathResolutions.sum();
+	}
+
+	@Override
+	public double getAveragePathDepth()
+	{
+		long resolutions = m_PathResolutions.sum();
+		return resolutions > 0 ? (double) m_PathComponents.sum() / resolutions : 0;
+	}
+
+	@Override
+	public long getMaxPathDepth()
+	{
+		return m_MaxPathDepth.get();
+	}
+
+	@Override
+	public Map<String, OperationSnapshot> getOperations()
+	{
+		return snapshot().getOperations();
+	}
+}
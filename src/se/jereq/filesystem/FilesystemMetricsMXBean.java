@@ -0,0 +1,60 @@
+package se.jereq.filesystem;
+
+import java.util.Map;
+
+/**
+ * The metrics of a {@link Filesystem} as seen through JMX, once registered with
+ * {@link FilesystemMetrics#register}. Every attribute is read from a new {@link FilesystemMetrics.Snapshot}.
+ */
+public interface FilesystemMetricsMXBean
+{
+	/**
+	 * @return The number of blocks that can currently be taken from the free list.
+	 */
+	long getFreeBlocks();
+
+	/**
+	 * @return The number of blocks read from the device.
+	 */
+	long getBlockReads();
+
+	/**
+	 * @return The number of blocks written to the device.
+	 */
+	long getBlockWrites();
+
+	/**
+	 * @return The time spent waiting for the device, in nanoseconds.
+	 */
+	long getDeviceNanos();
+
+	/**
+	 * @return The share of path components found in the path cache rather than by searching a directory.
+	 */
+	double getDentryCacheHitRatio();
+
+	/**
+	 * @return The share of block reads answered from memory, if the device is a {@link CachingBlockDevice}.
+	 */
+	double getBlockCacheHitRatio();
+
+	/**
+	 * @return The number of paths resolved.
+	 */
+	long getPathResolutions();
+
+	/**
+	 * @return The average number of components of the paths resolved.
+	 */
+	double getAveragePathDepth();
+
+	/**
+	 * @return The largest number of components of a path resolved.
+	 */
+	long getMaxPathDepth();
+
+	/**
+	 * @return The counters and latencies of each kind of operation, by the name of the operation.
+	 */
+	Map<String, FilesystemMetrics.OperationSnapshot> getOperations();
+}
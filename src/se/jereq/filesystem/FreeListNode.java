@@ -1,84 +1,203 @@
 package se.jereq.filesystem;
 
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
- * Represents a list of free blocks accessible with the filesystem, using an underlying block.
- * Changes must be saved externally.
+ * Represents a list of free blocks accessible with the filesystem, stored as a bitmap
+ * spanning one or more underlying blocks. Changes must be saved externally, which only
+ * needs to be done for the blocks reported by {@link FreeListNode#isDirty}.
+ * <br><br>
+ * The blocks are divided into allocation groups, one for each block of the stored bitmap, see
+ * {@link AllocationGroup}. Each group has its own lock, so threads taking blocks in different
+ * groups do not wait for each other. Blocks are taken from the group of a goal block when there
+ * is one, so that related blocks end up close together, and otherwise from a group chosen by the
+ * calling thread, so that threads spread over the groups. Other groups are only used once the
+ * chosen one is full.
+ * <br><br>
+ * Freed blocks are pinned: they are free in the stored free list at once, but are not handed out
+ * again until {@link FreeListNode#unpin} is called, once the transaction freeing them is committed.
+ * Otherwise another thread could fill a block while the operation that freed it could still be lost.
+ * The blocks freed since they were last taken are also remembered as released, see {@link FreeListNode#takeReleased}.
+ * <br><br>
+ * All methods are safe for use by several threads. A group must be locked by the caller while its
+ * block is being stored, so that it is stored along with the blocks it released.
  */
 public class FreeListNode {
 
-	private static final int FREE_LIST_START = 2;
-	
-	private byte[] block;
+	private byte[] bitmap;
+	private AllocationGroup[] groups;
+	private int blockSize;
+	private final AtomicInteger freeCount = new AtomicInteger();
+	// One bit for each group, set while it is full, so that full groups are passed over 64 at a time
+	private AtomicLongArray full;
+	// Blocks held back for operations in progress, see reserve
+	private int reserved = 0;
 	
 	/**
-	 * constructor. Creates the default free list block.
+	 * constructor. Creates the default free list for a new filesystem.
+	 * 
+	 * @param blockSize the size of each block in bytes, a multiple of 8.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @param reservedBlocks the number of blocks at the start of the filesystem to mark as taken.
+	 * @throws IllegalArgumentException Exception thrown if <code>blockSize</code> is not a multiple of 8.
 	 */
-	public FreeListNode()
+	public FreeListNode(int blockSize, int blockCount, int reservedBlocks)
 	{
-		block = new byte[BlockDevice.BLOCK_SIZE];
-		block[FREE_LIST_START] = (byte) 0xc0;
-		setFirstFree(Filesystem.BLOCK_START);
+		this(new byte[storageBlocksFor(blockSize, blockCount) * blockSize], blockSize);
+		
+		// Blocks past the end of the filesystem are never handed out
+		take(blockCount, bitmap.length * 8 - blockCount);
+		take(0, reservedBlocks);
 	}
 	
 	/**
-	 * constructor. Creates a <code>FreeListNode</code> for an existing block.
+	 * constructor. Creates a <code>FreeListNode</code> for existing blocks.
 	 * 
-	 * @param data byte array of the size specified by the {@link BlockDevice}.
-	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null or of incorrect size.
+	 * @param data byte array holding the free list blocks back to back.
+	 * @param blockSize the size of each block in bytes, a multiple of 8.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null or of incorrect size,
+	 * or if <code>blockSize</code> is not a multiple of 8.
 	 */
-	public FreeListNode(byte[] data)
+	public FreeListNode(byte[] data, int blockSize, int blockCount)
+	{
+		this(checkData(data, blockSize, blockCount), blockSize);
+	}
+	
+	private FreeListNode(byte[] data, int blockSize)
+	{
+		if (blockSize % 8 != 0)
+			throw new IllegalArgumentException("Block size must be a multiple of 8");
+		
+		this.blockSize = blockSize;
+		bitmap = data;
+		groups = new AllocationGroup[bitmap.length / blockSize];
+		full = new AtomicLongArray((groups.length + 63) / 64);
+		for (int i = 0; i < groups.length; ++i)
+		{
+			groups[i] = new AllocationGroup(bitmap, i, blockSize, freeCount, full);
+		}
+	}
+	
+	private static byte[] checkData(byte[] data, int blockSize, int blockCount)
 	{
-		if (data == null || data.length != BlockDevice.BLOCK_SIZE)
-			throw new IllegalArgumentException("Only standard sized blocks supported");
+		if (data == null || data.length != storageBlocksFor(blockSize, blockCount) * blockSize)
+			throw new IllegalArgumentException("Invalid free list size");
 		
-		if ((data[FREE_LIST_START] & 0xc0) != 0xc0)
+		// The superblock is always taken
+		if ((data[0] & 0x80) == 0)
 			throw new IllegalArgumentException("Invalid data");
 		
-		block = data;
+		return data;
+	}
+	
+	/**
+	 * Get the number of blocks needed to store the free list of a filesystem.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @return The number of blocks to reserve for the free list.
+	 */
+	public static int storageBlocksFor(int blockSize, int blockCount)
+	{
+		int bitsPerBlock = blockSize * 8;
+		return (blockCount + bitsPerBlock - 1) / bitsPerBlock;
+	}
+	
+	private int groupOf(int num)
+	{
+		return num / (blockSize * 8);
+	}
+	
+	/**
+	 * Mark a range of blocks as taken, for a new free list.
+	 */
+	private void take(int start, int count)
+	{
+		int end = start + count;
+		while (start < end)
+		{
+			AllocationGroup group = groups[groupOf(start)];
+			int length = Math.min(end, group.getFirstBlock() + group.getBlockCount()) - start;
+			group.take(start, length);
+			start += length;
+		}
+	}
+	
+	/**
+	 * Get the group to look in first: the one of the goal block if there is one,
+	 * otherwise one picked for the calling thread.
+	 */
+	private int firstGroup(int goal)
+	{
+		if (goal >= 0 && goal < bitmap.length * 8)
+			return groupOf(goal);
+		
+		return (int) (Thread.currentThread().getId() % groups.length);
 	}
 	
-	private void setFirstFree(short free)
+	/**
+	 * Find the first group at or after a group that is not full, going on from the first group after the last.
+	 * 
+	 * @return The index of the group, or -1 if all groups are full.
+	 */
+	private int nextGroup(int from)
 	{
-		block[0] = (byte) (free >>> 8);
-		block[1] = (byte) (free);
+		for (int i = 0; i <= full.length(); ++i)
+		{
+			int index = (from / 64 + i) % full.length();
+			
+			// Ignore the groups before the position in its word, and past the last group
+			long word = full.get(index);
+			if (i == 0)
+				word |= ~(-1L >>> (from % 64));
+			if (index == full.length() - 1 && groups.length % 64 != 0)
+				word |= -1L >>> (groups.length % 64);
+			
+			if (word != -1L)
+				return index * 64 + Long.numberOfLeadingZeros(~word);
+		}
+		
+		return -1;
 	}
 	
 	/**
-	 * This is only a hint as to where to start searching for the next free block.
-	 * Earlier blocks are guaranteed to be taken, but the actual first free block
-	 * may be quite a bit later.
+	 * Get the number of a free block and mark it as taken.
 	 * 
-	 * @return A hint as to where to start searching for a free block.
+	 * @return The number of the taken free block, or -1 if none could be found.
 	 */
-	private short getFirstFree()
+	public int getNewBlock()
 	{
-		return (short) ((block[0] & 0xff) << 8 |
-				block[1] & 0xff);
+		return getNewBlock(-1);
 	}
 	
 	/**
-	 * Get the number of a free block and mark it as taken. May return block numbers not
-	 * supported by the filesystem when the filesystem is out of space.
+	 * Get the number of a free block and mark it as taken, as close after a goal block as possible.
 	 * 
+	 * @param goal the number of a block the new block is related to, such as the previous block of
+	 * the same file, or -1 to take a block from the group of the calling thread.
 	 * @return The number of the taken free block, or -1 if none could be found.
 	 */
-	public short getNewBlock()
+	public int getNewBlock(int goal)
 	{
-		int i = getFirstFree() / 8;
+		int first = firstGroup(goal);
 		
-		for (; i < BlockDevice.BLOCK_SIZE - FREE_LIST_START; ++i)
+		// Blocks may be unpinned in a group already passed while others are taken, so look again
+		while (freeCount.get() > 0)
 		{
-			byte freeByte = block[FREE_LIST_START + i];
-			
-			if (freeByte != -1)
+			for (int i = 0; i < groups.length; )
 			{
-				int firstFreeInByte = Integer.numberOfLeadingZeros(~((freeByte & 0xff) << 24));
-				block[FREE_LIST_START + i] |= 1 << (7 - firstFreeInByte);
+				int index = nextGroup((first + i) % groups.length);
+				if (index == -1)
+					break;
 				
-				short res = (short) (i * 8 + firstFreeInByte);
-				setFirstFree(res);
+				int num = groups[index].getNewBlock(goal);
+				if (num != -1)
+					return num;
 				
-				return res;
+				i += Math.floorMod(index - first - i, groups.length) + 1;
 			}
 		}
 		
@@ -86,32 +205,226 @@ public class FreeListNode {
 	}
 	
 	/**
-	 * Mark the target block as free. Not checked if it is already free.
+	 * Find a run of consecutive free blocks and mark them as taken.
+	 * 
+	 * @param count the number of blocks to take.
+	 * @return The number of the first taken block, or -1 if there is no run of <code>count</code> free blocks.
+	 */
+	public int getNewBlocks(int count)
+	{
+		return getNewBlocks(count, -1);
+	}
+	
+	/**
+	 * Find a run of consecutive free blocks and mark them as taken. Runs do not cross from
+	 * one allocation group to another, so no run is longer than a group.
+	 * 
+	 * @param count the number of blocks to take.
+	 * @param goal the number of a block the new blocks are related to, see {@link #getNewBlock(int)}.
+	 * @return The number of the first taken block, or -1 if there is no run of <code>count</code> free blocks.
+	 */
+	public int getNewBlocks(int count, int goal)
+	{
+		if (count <= 0 || count > freeCount.get())
+			return -1;
+		
+		int first = firstGroup(goal);
+		for (int i = 0; i < groups.length; )
+		{
+			int index = nextGroup((first + i) % groups.length);
+			if (index == -1)
+				break;
+			
+			AllocationGroup group = groups[index];
+			int start = group.getFreeCount() >= count ? group.getNewBlocks(count, goal) : -1;
+			if (start != -1)
+				return start;
+			
+			i += Math.floorMod(index - first - i, groups.length) + 1;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Get the largest number of blocks {@link #getNewBlocks} can take as one run.
+	 * 
+	 * @return The number of blocks in an allocation group.
+	 */
+	public int getMaxRun()
+	{
+		return blockSize * 8;
+	}
+	
+	/**
+	 * Mark the target block as free. The block stays pinned until {@link #unpin} is called.
+	 * Blocks already free are left alone.
 	 * 
 	 * @param num the number of the block to free. All block numbers supported
 	 * by the filesystem should be valid.
 	 */
-	public void freeBlock(short num)
+	public void freeBlock(int num)
 	{
-		int byteNum = num / 8;
-		int bitInByte = num % 8;
-		
-		block[FREE_LIST_START + byteNum] &= ~(0x80 >>> bitInByte);
+		freeBlocks(num, 1);
+	}
+	
+	/**
+	 * Mark a run of consecutive blocks as free. The blocks stay pinned until {@link #unpin} is called.
+	 * Blocks already free are left alone.
+	 * 
+	 * @param start the number of the first block to free.
+	 * @param count the number of blocks to free.
+	 */
+	public void freeBlocks(int start, int count)
+	{
+		int end = start + count;
+		while (start < end)
+		{
+			AllocationGroup group = groups[groupOf(start)];
+			int length = Math.min(end, group.getFirstBlock() + group.getBlockCount()) - start;
+			group.freeBlocks(start, length);
+			start += length;
+		}
+	}
+	
+	/**
+	 * Let pinned blocks be handed out again, now that freeing them can no longer be undone.
+	 * Blocks not pinned are left alone.
+	 * 
+	 * @param blocks the numbers of the blocks to unpin, usually blocks released earlier.
+	 */
+	public void unpin(BitSet blocks)
+	{
+		for (int num = blocks.nextSetBit(0); num != -1 && num < bitmap.length * 8; )
+		{
+			AllocationGroup group = groups[groupOf(num)];
+			group.unpin(blocks);
+			num = blocks.nextSetBit(group.getFirstBlock() + group.getBlockCount());
+		}
+	}
+	
+	/**
+	 * Get the number of blocks currently free, not counting pinned blocks.
+	 * 
+	 * @return The number of blocks that can still be taken.
+	 */
+	public int getFreeCount()
+	{
+		return freeCount.get();
+	}
+	
+	/**
+	 * Hold back free blocks for an operation, so that blocks taken by other threads in the meantime
+	 * can not make the operation run out of space halfway. The blocks are not taken, and must be
+	 * given back with {@link #unreserve} when the operation is done, whether it used them or not.
+	 * 
+	 * @param count the largest number of blocks the operation will take.
+	 * @return <code>false</code> if there are not enough free blocks that are not already held back.
+	 */
+	public synchronized boolean reserve(int count)
+	{
+		// Blocks taken by an operation still count as held back, so this errs on the safe side
+		if (freeCount.get() - reserved < count)
+			return false;
 		
-		if (getFirstFree() > num)
+		reserved += count;
+		return true;
+	}
+	
+	/**
+	 * Give back blocks held back with {@link #reserve}.
+	 * 
+	 * @param count the number of blocks reserved.
+	 */
+	public synchronized void unreserve(int count)
+	{
+		reserved -= count;
+	}
+	
+	/**
+	 * Get the number of blocks used to store the free list.
+	 * 
+	 * @return The number of blocks in the array returned by {@link FreeListNode#getBlocks},
+	 * which is also the number of allocation groups.
+	 */
+	public int getStorageBlockCount()
+	{
+		return groups.length;
+	}
+	
+	/**
+	 * Get the allocation group stored in one of the blocks of the free list.
+	 * 
+	 * @param storageBlock the index of the block within the free list, in the range
+	 * [0, <code>getStorageBlockCount()</code>).
+	 * @return The group of the blocks described by the block.
+	 */
+	public AllocationGroup getGroup(int storageBlock)
+	{
+		return groups[storageBlock];
+	}
+	
+	/**
+	 * Check if one of the blocks storing the free list has changed since it was last stored.
+	 * 
+	 * @param storageBlock the index of the block within the free list, in the range
+	 * [0, <code>getStorageBlockCount()</code>).
+	 * @return <code>true</code> if the block needs to be stored.
+	 */
+	public boolean isDirty(int storageBlock)
+	{
+		return groups[storageBlock].isDirty();
+	}
+	
+	/**
+	 * Mark all blocks as stored.
+	 */
+	public void clearDirty()
+	{
+		for (AllocationGroup group : groups)
+		{
+			group.clearDirty();
+		}
+	}
+	
+	/**
+	 * Get and forget the blocks freed since the released blocks were last taken. These may still be
+	 * in use on the device until the change to the free list has been stored.
+	 * 
+	 * @return The set of released block numbers.
+	 */
+	public BitSet takeReleased()
+	{
+		BitSet res = new BitSet();
+		for (AllocationGroup group : groups)
 		{
-			setFirstFree(num);
+			res.or(group.takeReleased());
 		}
+		
+		return res;
 	}
 
 	/**
-	 * Get the underlying block, usually in order to store it.
+	 * Get the underlying blocks, in which pinned blocks are still taken.
+	 * 
+	 * @return Byte array holding all free list blocks back to back. If the returned array is modified,
+	 * there is no guarantee that this <code>FreeListNode</code> remain valid. 
+	 */
+	public byte[] getBlocks()
+	{
+		return bitmap;
+	}
+	
+	/**
+	 * Copy one of the blocks storing the free list, in order to store it. Pinned blocks are free in the copy.
 	 * 
-	 * @return Byte array of the size defined by {@link BlockDevice}. If the returned array is modified,
-	 * there is no guarantee that this <code>INode</code> remain valid. 
+	 * @param storageBlock the index of the block within the free list, in the range
+	 * [0, <code>getStorageBlockCount()</code>).
+	 * @param dest the array to copy the block to.
+	 * @param offset the index in <code>dest</code> where the block should be placed.
 	 */
-	public byte[] getBlock()
+	public void copyStorageBlock(int storageBlock, byte[] dest, int offset)
 	{
-		return block;
+		groups[storageBlock].copyStorageBlock(dest, offset);
 	}
 }
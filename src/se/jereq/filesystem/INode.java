@@ -13,12 +13,10 @@ public class INode
 	
 	private static final int TYPE_OFFSET = MAX_FILENAME_LENGTH;
 	private static final int SIZE_OFFSET = TYPE_OFFSET + 1;
-	private static final int CHILDREN_OFFSET = SIZE_OFFSET + 4;
+	private static final int FLAGS_OFFSET = SIZE_OFFSET + 4;
+	private static final int CHILDREN_OFFSET = FLAGS_OFFSET + 1;
 	
-	/**
-	 * The number of children in each node (files/directories in directories, blocks in files).
-	 */
-	public static final int NUM_CHILDREN = (BlockDevice.BLOCK_SIZE - CHILDREN_OFFSET) / 2;
+	private static final int FLAG_INLINE = 0x01;
 	
 	private byte[] block;
 	
@@ -28,11 +26,11 @@ public class INode
 	public enum Type
 	{
 		/**
-		 * Simple file, containing references to a number of blocks.
+		 * Simple file, mapping its contents to extents of blocks, see {@link BlockMap}.
 		 */
 		File,
 		/**
-		 * Directory entry, containing references to other INodes.
+		 * Directory entry, containing references to other INodes, see {@link Directory}.
 		 */
 		Directory,
 		/**
@@ -44,13 +42,13 @@ public class INode
 	/**
 	 * constructor. Creates an <code>INode</code> for an existing block.
 	 * 
-	 * @param data byte array of the size specified by the {@link BlockDevice}.
-	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null or of incorrect size.
+	 * @param data byte array of the block size of the filesystem.
+	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null or too small to hold an <code>INode</code>.
 	 */
 	public INode(byte[] data)
 	{
-		if (data == null || data.length != BlockDevice.BLOCK_SIZE)
-			throw new IllegalArgumentException("Only standard sized blocks supported");
+		if (data == null || data.length < CHILDREN_OFFSET)
+			throw new IllegalArgumentException("Block too small");
 		
 		block = data;
 	}
@@ -60,17 +58,60 @@ public class INode
 	 * 
 	 * @param name the filename for this <code>INode</code>. Maximum length is given by {@link INode#MAX_FILENAME_LENGTH}.
 	 * @param nodeType the type of node to create.
+	 * @param blockSize the block size of the filesystem.
 	 */
-	public INode(String name, Type nodeType)
+	public INode(String name, Type nodeType, int blockSize)
 	{
-		block = new byte[BlockDevice.BLOCK_SIZE];
+		block = new byte[blockSize];
 		setName(name);
 		setType(nodeType);
-		
-		for (int i = CHILDREN_OFFSET; i < block.length; i += 2)
-		{
-			putShort(i, (short) -1);
-		}
+	}
+	
+	/**
+	 * Get the index in the underlying block where the children are stored. The rest of the block
+	 * from this index is interpreted according to the type of the node.
+	 * 
+	 * @return The offset of the first child.
+	 */
+	public static int childrenOffset()
+	{
+		return CHILDREN_OFFSET;
+	}
+	
+	/**
+	 * Get the number of bytes a file can store inline, in the children area of its <code>INode</code>.
+	 * 
+	 * @param blockSize the block size of the filesystem.
+	 * @return The size of the largest inline file.
+	 */
+	public static int inlineCapacity(int blockSize)
+	{
+		return blockSize - CHILDREN_OFFSET;
+	}
+	
+	/**
+	 * Check if the contents of a file are stored inline, starting at {@link #childrenOffset}
+	 * of the underlying block, instead of in a {@link BlockMap}.
+	 * 
+	 * @return <code>true</code> if the file is stored inline.
+	 */
+	public boolean isInline()
+	{
+		return (block[FLAGS_OFFSET] & FLAG_INLINE) != 0;
+	}
+	
+	/**
+	 * Set whether the contents of a file are stored inline. The children area must be
+	 * filled in by the caller to match.
+	 * 
+	 * @param inline <code>true</code> if the file is stored inline.
+	 */
+	public void setInline(boolean inline)
+	{
+		if (inline)
+			block[FLAGS_OFFSET] |= FLAG_INLINE;
+		else
+			block[FLAGS_OFFSET] &= ~FLAG_INLINE;
 	}
 	
 	/**
@@ -91,13 +132,19 @@ public class INode
 	 */
 	public String getName()
 	{
-		int charCount = 0;
-		for (; charCount < MAX_FILENAME_LENGTH; ++charCount)
-		{
-			if (block[charCount] == '\0')
-				break;
-		}
-		return new String(block, 0, charCount);
+		return decodeName(block, 0);
+	}
+	
+	/**
+	 * Check if the node has the given name, without decoding the stored name
+	 * when the name only contains ASCII characters.
+	 * 
+	 * @param name the name to compare with.
+	 * @return <code>true</code> if the stored name equals <code>name</code>.
+	 */
+	public boolean hasName(String name)
+	{
+		return nameEquals(block, 0, name);
 	}
 	
 	/**
@@ -115,16 +162,73 @@ public class INode
 		if (name.isEmpty())
 			throw new IllegalArgumentException("Filename can not be empty");
 		
-		byte[] bName = name.getBytes();
+		encodeName(block, 0, name);
+	}
+	
+	/**
+	 * Decode a name stored in the same format as the name of an <code>INode</code>.
+	 * 
+	 * @param data the array holding the name.
+	 * @param offset the index in <code>data</code> where the name starts.
+	 * @return The stored name.
+	 */
+	static String decodeName(byte[] data, int offset)
+	{
+		int charCount = 0;
+		for (; charCount < MAX_FILENAME_LENGTH; ++charCount)
+		{
+			if (data[offset + charCount] == '\0')
+				break;
+		}
+		return new String(data, offset, charCount);
+	}
+	
+	/**
+	 * Compare a name stored in the same format as the name of an <code>INode</code>,
+	 * without decoding it when the name only contains ASCII characters.
+	 * 
+	 * @param data the array holding the stored name.
+	 * @param offset the index in <code>data</code> where the stored name starts.
+	 * @param name the name to compare with.
+	 * @return <code>true</code> if the stored name equals <code>name</code>.
+	 */
+	static boolean nameEquals(byte[] data, int offset, String name)
+	{
+		int length = name.length();
+		if (length > MAX_FILENAME_LENGTH)
+			return false;
 		
-		for (int i = 0; i < bName.length; ++i)
+		for (int i = 0; i < length; ++i)
 		{
-			block[i] = bName[i];
+			char c = name.charAt(i);
+			if (c >= 0x80)
+				return decodeName(data, offset).equals(name);
+			
+			if (data[offset + i] != c)
+				return false;
 		}
 		
-		for (int i = bName.length; i < MAX_FILENAME_LENGTH; ++i)
+		return length == MAX_FILENAME_LENGTH || data[offset + length] == '\0';
+	}
+	
+	/**
+	 * Store a name in the format used for the name of an <code>INode</code>,
+	 * using <code>MAX_FILENAME_LENGTH</code> bytes. Longer encodings are cut short.
+	 * 
+	 * @param data the array to store the name in.
+	 * @param offset the index in <code>data</code> where the name starts.
+	 * @param name the name to store.
+	 */
+	static void encodeName(byte[] data, int offset, String name)
+	{
+		byte[] bName = name.getBytes();
+		int length = Math.min(bName.length, MAX_FILENAME_LENGTH);
+		
+		System.arraycopy(bName, 0, data, offset, length);
+		
+		for (int i = length; i < MAX_FILENAME_LENGTH; ++i)
 		{
-			block[i] = '\0';
+			data[offset + i] = '\0';
 		}
 	}
 
@@ -135,7 +239,24 @@ public class INode
 	 */
 	public Type getType()
 	{
-		switch (block[TYPE_OFFSET])
+		return decodeType(block[TYPE_OFFSET]);
+	}
+	
+	private void setType(Type type)
+	{
+		if (type != Type.Unknown)
+			block[TYPE_OFFSET] = encodeType(type);
+	}
+	
+	/**
+	 * Decode a type stored in the same format as the type of an <code>INode</code>.
+	 * 
+	 * @param type the stored type.
+	 * @return The type. <code>Unknown</code> if the type is not recognized.
+	 */
+	static Type decodeType(byte type)
+	{
+		switch (type)
 		{
 		case 1:
 			return Type.File;
@@ -148,20 +269,24 @@ public class INode
 		}
 	}
 	
-	private void setType(Type type)
+	/**
+	 * Encode a type in the format used for the type of an <code>INode</code>.
+	 * 
+	 * @param type the type to encode.
+	 * @return The stored type, 0 for <code>Unknown</code>.
+	 */
+	static byte encodeType(Type type)
 	{
 		switch (type)
 		{
 		case File:
-			block[TYPE_OFFSET] = 1;
-			break;
+			return 1;
 			
 		case Directory:
-			block[TYPE_OFFSET] = 2;
-			break;
+			return 2;
 			
 		default:
-			return;
+			return 0;
 		}
 	}
 	
@@ -185,23 +310,6 @@ public class INode
 		putInt(SIZE_OFFSET, size);
 	}
 	
-	private int toIndex(int num)
-	{
-		return CHILDREN_OFFSET + 2 * num;
-	}
-	
-	private short getShort(int index)
-	{
-		return (short) ((block[index] & 0xff) << 8 |
-				(block[index + 1] & 0xff));
-	}
-	
-	private void putShort(int index, short val)
-	{
-		block[index] = (byte) (val >>> 8);
-		block[index + 1] = (byte) val;
-	}
-	
 	private int getInt(int index)
 	{
 		return (block[index] & 0xff) << 24 |
@@ -217,90 +325,4 @@ public class INode
 		block[index + 2] = (byte) (val >>> 8);
 		block[index + 3] = (byte) val;
 	}
-
-	/**
-	 * Get the node's child with the given index.
-	 * 
-	 * @param num the index of the requested child.
-	 * Must be in the range [0, <code>NUM_CHILDREN</code>).
-	 * 
-	 * @return The child value with the given index,
-	 * with -1 representing an empty child.
-	 * Return -1 if the index is invalid. 
-	 */
-	public short getChild(int num)
-	{
-		if (num < 0 || num >= NUM_CHILDREN)
-			return -1;
-
-		int start = toIndex(num);
-		return getShort(start);
-	}
-	
-	/**
-	 * Add another child to the node.
-	 * 
-	 * @param val the child value to be added.
-	 * @throws RuntimeException Thrown if there is no room for for the new child value.
-	 */
-	public void addChild(short val)
-	{
-		for (int i = 0; i < NUM_CHILDREN; ++i)
-		{
-			short currentVal = getChild(i);
-			if (currentVal == -1)
-			{
-				putShort(toIndex(i), val);
-				return;
-			}
-		}
-		
-		throw new RuntimeException("Max size reached");
-	}
-	
-	/**
-	 * Remove a child by index and shift any following children to remove the empty space.
-	 * 
-	 * @param num the index of the child to remove.
-	 */
-	public void removeChild(int num)
-	{
-		if (num < 0 || num >= NUM_CHILDREN)
-			return;
-		
-		int curInd = toIndex(num);
-		for (; curInd < block.length - 3; curInd += 2)
-		{
-			if (getShort(curInd + 2) == -1)
-				break;
-			
-			block[curInd] = block[curInd + 2];
-			block[curInd + 1] = block[curInd + 3];
-		}
-		
-		putShort(curInd, (short) -1);
-	}
-	
-	/**
-	 * Remove a child by value if it exists and shift any following children to
-	 * remove the empty space. Only one child will be removed even if duplicates exists.
-	 * 
-	 * @param val the value of the child to remove.
-	 */
-	public void removeChildByVal(short val)
-	{
-		int curInd = 0;
-		short curVal = getChild(0);
-		
-		while (curVal != -1)
-		{
-			if (curVal == val)
-			{
-				removeChild(curInd);
-				return;
-			}
-			
-			curVal = getChild(++curInd);
-		}
-	}
 }
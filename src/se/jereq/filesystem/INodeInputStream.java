@@ -0,0 +1,197 @@
+package se.jereq.filesystem;
+
+import java.io.InputStream;
+
+/**
+ * An <code>InputStream</code> reading the contents of a file, one block at a time as the data is
+ * needed, or from the <code>INode</code> if the file is stored inline. Whole blocks are read directly
+ * into the array of the caller when possible, several with each request to the device,
+ * so the memory used does not depend on the size of the file.
+ * <br><br>
+ * The stream does not lock the file. It must not be changed or removed while the stream is open,
+ * unless whoever does so calls {@link #reload} with the <code>INode</code> as it is afterwards.
+ */
+public class INodeInputStream extends InputStream
+{
+	// The largest number of whole blocks read with a single request to the device
+	private static final int BATCH_BLOCKS = 64;
+	
+	private BlockDevice m_Device;
+	private BlockMap m_Map;
+	private int m_nBlockSize;
+	private long m_nSize;
+	private long m_nPosition = 0;
+
+	private byte[] m_abBlock;
+	// Block numbers of whole blocks read at once
+	private int[] m_anBlocks;
+	// The index within the file of the block held by m_abBlock, or -1 if none
+	private int m_nBufferedBlock = -1;
+	private boolean m_bClosed = false;
+
+	/**
+	 * constructor.
+	 *
+	 * @param file the <code>INode</code> of the file to read.
+	 * @param device the device storing the file.
+	 */
+	public INodeInputStream(INode file, BlockDevice device)
+	{
+		m_Device = device;
+		m_nBlockSize = file.getBlock().length;
+		m_abBlock = new byte[m_nBlockSize];
+		m_anBlocks = new int[BATCH_BLOCKS];
+
+		load(file);
+	}
+
+	private void load(INode file)
+	{
+		m_Map = new BlockMap(file, m_Device);
+		m_nSize = file.getSize();
+		m_nBufferedBlock = -1;
+
+		// Inline data is already at hand, as if the first block had been read
+		if (file.isInline())
+		{
+			System.arraycopy(file.getBlock(), INode.childrenOffset(), m_abBlock, 0, (int) m_nSize);
+			m_nBufferedBlock = 0;
+		}
+	}
+
+	/**
+	 * Continue reading from the same position in the file as it is after a change, such as
+	 * after being appended to. Any data buffered from the file as it was is dropped.
+	 *
+	 * @param file the <code>INode</code> of the file as it is now.
+	 * @throws FilesystemException Thrown if the stream has been closed.
+	 */
+	public void reload(INode file) throws FilesystemException
+	{
+		ensureOpen();
+
+		load(file);
+	}
+
+	private void ensureOpen() throws FilesystemException
+	{
+		if (m_bClosed)
+			throw new FilesystemException("Stream closed");
+	}
+
+	private void readBlock(int index, byte[] dest, int offset) throws FilesystemException
+	{
+		if (m_Device.readBlock(m_Map.getBlock(index), dest, offset) < 0)
+			throw new FilesystemException("Could not read block " + index + " of the file");
+	}
+	
+	private void readBlocks(int index, int count, byte[] dest, int offset) throws FilesystemException
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			m_anBlocks[i] = m_Map.getBlock(index + i);
+		}
+		
+		if (m_Device.readBlocks(m_anBlocks, count, dest, offset) < 0)
+			throw new FilesystemException("Could not read block " + index + " of the file");
+	}
+
+	private void bufferBlock(int index) throws FilesystemException
+	{
+		if (index == m_nBufferedBlock)
+			return;
+
+		m_nBufferedBlock = -1;
+		readBlock(index, m_abBlock, 0);
+		m_nBufferedBlock = index;
+	}
+
+	@Override
+	public int read() throws FilesystemException
+	{
+		ensureOpen();
+
+		if (m_nPosition >= m_nSize)
+			return -1;
+
+		bufferBlock((int) (m_nPosition / m_nBlockSize));
+		int res = m_abBlock[(int) (m_nPosition % m_nBlockSize)] & 0xff;
+		++m_nPosition;
+
+		return res;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws FilesystemException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+
+		ensureOpen();
+
+		if (len == 0)
+			return 0;
+
+		if (m_nPosition >= m_nSize)
+			return -1;
+
+		int total = 0;
+		while (len > 0 && m_nPosition < m_nSize)
+		{
+			int index = (int) (m_nPosition / m_nBlockSize);
+			int inBlock = (int) (m_nPosition % m_nBlockSize);
+			int count = (int) Math.min(Math.min(len, m_nBlockSize - inBlock), m_nSize - m_nPosition);
+
+			if (count == m_nBlockSize && index != m_nBufferedBlock)
+			{
+				count = (int) Math.min(Math.min(len, m_nSize - m_nPosition) / m_nBlockSize, BATCH_BLOCKS);
+				readBlocks(index, count, b, off);
+				count *= m_nBlockSize;
+			}
+			else
+			{
+				bufferBlock(index);
+				System.arraycopy(m_abBlock, inBlock, b, off, count);
+			}
+
+			m_nPosition += count;
+			off += count;
+			len -= count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	@Override
+	public long skip(long n) throws FilesystemException
+	{
+		ensureOpen();
+
+		if (n <= 0)
+			return 0;
+
+		long skipped = Math.min(n, Math.max(0, m_nSize - m_nPosition));
+		m_nPosition += skipped;
+
+		return skipped;
+	}
+
+	/**
+	 * Get the number of bytes left in the file. Reading from a <code>BlockDevice</code> never blocks.
+	 */
+	@Override
+	public int available() throws FilesystemException
+	{
+		ensureOpen();
+
+		return (int) Math.min(Math.max(0, m_nSize - m_nPosition), Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void close()
+	{
+		m_bClosed = true;
+		m_abBlock = null;
+	}
+}
@@ -0,0 +1,195 @@
+package se.jereq.filesystem;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks for the <code>INode</code>s of a filesystem, keyed by the block of each
+ * <code>INode</code>. Rather than a lock for every block, a fixed number of locks are striped
+ * over the blocks, so <code>INode</code>s sharing a stripe also share a lock.
+ * <br><br>
+ * Several <code>INode</code>s are always locked together with {@link #lock}, which takes the
+ * stripes in increasing order, so threads locking overlapping sets can not deadlock.
+ * <br><br>
+ * Each stripe has a version, changed when the stripe is locked and unlocked for writing, and odd
+ * while it is held. A version read while an <code>INode</code> was known to be in the tree, such
+ * as while its directory was locked, tells after locking the <code>INode</code> whether anyone
+ * could have changed or removed it in the meantime, see {@link #isCurrent}.
+ */
+public class INodeLocks
+{
+	/**
+	 * The number of stripes used if none is given.
+	 */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final ReentrantReadWriteLock[] m_Stripes;
+	private final AtomicIntegerArray m_Versions;
+
+	/**
+	 * A set of stripes locked by {@link INodeLocks#lock}, to be unlocked by the same thread.
+	 */
+	public class Guard
+	{
+		// Stripes in locking order, each with the mode it was taken in
+		private final int[] m_anStripes;
+		private final boolean[] m_abExclusive;
+
+		private Guard(int[] stripes, boolean[] exclusive)
+		{
+			m_anStripes = stripes;
+			m_abExclusive = exclusive;
+		}
+
+		/**
+		 * Unlock all stripes, in the reverse order they were locked in.
+		 */
+		public void unlock()
+		{
+			for (int i = m_anStripes.length - 1; i >= 0; --i)
+			{
+				if (m_abExclusive[i])
+					unlockExclusive(m_anStripes[i]);
+				else
+					m_Stripes[m_anStripes[i]].readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * constructor. Uses <code>DEFAULT_STRIPES</code> stripes.
+	 */
+	public INodeLocks()
+	{
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * constructor.
+	 *
+	 * @param stripes the number of locks to stripe the blocks over.
+	 * @throws IllegalArgumentException Thrown if the number of stripes is not positive.
+	 */
+	public INodeLocks(int stripes)
+	{
+		if (stripes <= 0)
+			throw new IllegalArgumentException("Invalid stripe count");
+
+		m_Stripes = new ReentrantReadWriteLock[stripes];
+		for (int i = 0; i < stripes; ++i)
+		{
+			m_Stripes[i] = new ReentrantReadWriteLock();
+		}
+
+		m_Versions = new AtomicIntegerArray(stripes);
+	}
+
+	private int stripeOf(int block)
+	{
+		// INodes allocated one after the other land in different stripes
+		return Math.floorMod(block, m_Stripes.length);
+	}
+
+	/**
+	 * Get the version of the stripe of an <code>INode</code>.
+	 *
+	 * @param block the block of the <code>INode</code>.
+	 * @return The current version, odd if the stripe is locked for writing.
+	 */
+	public int getVersion(int block)
+	{
+		return m_Versions.get(stripeOf(block));
+	}
+
+	/**
+	 * Check that the stripe of an <code>INode</code> has not been locked for writing since a version was read.
+	 * Only meaningful while the stripe is locked by the caller.
+	 *
+	 * @param block the block of the <code>INode</code>.
+	 * @param version the version read earlier with {@link #getVersion}.
+	 * @return <code>true</code> if nobody but the caller has locked the stripe for writing since the version was read.
+	 */
+	public boolean isCurrent(int block, int version)
+	{
+		int stripe = stripeOf(block);
+		int current = m_Versions.get(stripe);
+
+		// Locking for writing changed the version, which is only one step ahead if nobody else held the stripe
+		if (m_Stripes[stripe].isWriteLockedByCurrentThread())
+			return current == version + 1 || current == version;
+
+		return (version & 1) == 0 && current == version;
+	}
+
+	/**
+	 * Lock the stripes of several <code>INode</code>s. Each stripe is locked once, for writing if
+	 * any of its <code>INode</code>s is to be changed. A thread may lock stripes it already holds,
+	 * but never for writing when it only holds them for reading.
+	 *
+	 * @param shared the blocks of the <code>INode</code>s to read.
+	 * @param exclusive the blocks of the <code>INode</code>s to change.
+	 * @return The locks taken, to be unlocked when done.
+	 */
+	public Guard lock(int[] shared, int[] exclusive)
+	{
+		// One entry per block, the stripe in the high bits and whether it is exclusive in the lowest bit
+		long[] order = new long[shared.length + exclusive.length];
+		for (int i = 0; i < shared.length; ++i)
+		{
+			order[i] = (long) stripeOf(shared[i]) << 1;
+		}
+		for (int i = 0; i < exclusive.length; ++i)
+		{
+			order[shared.length + i] = ((long) stripeOf(exclusive[i]) << 1) | 1;
+		}
+		Arrays.sort(order);
+
+		int count = 0;
+		int[] stripes = new int[order.length];
+		boolean[] modes = new boolean[order.length];
+		for (int i = 0; i < order.length; ++i)
+		{
+			int stripe = (int) (order[i] >> 1);
+			boolean write = (order[i] & 1) != 0;
+
+			// The exclusive entry of a stripe sorts last, and covers the shared ones
+			if (count > 0 && stripes[count - 1] == stripe)
+				modes[count - 1] |= write;
+			else
+			{
+				stripes[count] = stripe;
+				modes[count] = write;
+				++count;
+			}
+		}
+
+		stripes = Arrays.copyOf(stripes, count);
+		modes = Arrays.copyOf(modes, count);
+		for (int i = 0; i < count; ++i)
+		{
+			if (modes[i])
+				lockExclusive(stripes[i]);
+			else
+				m_Stripes[stripes[i]].readLock().lock();
+		}
+
+		return new Guard(stripes, modes);
+	}
+
+	private void lockExclusive(int stripe)
+	{
+		ReentrantReadWriteLock lock = m_Stripes[stripe];
+		lock.writeLock().lock();
+		if (lock.getWriteHoldCount() == 1)
+			m_Versions.incrementAndGet(stripe);
+	}
+
+	private void unlockExclusive(int stripe)
+	{
+		ReentrantReadWriteLock lock = m_Stripes[stripe];
+		if (lock.getWriteHoldCount() == 1)
+			m_Versions.incrementAndGet(stripe);
+		lock.writeLock().unlock();
+	}
+}
@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A path or name is empty, too long or otherwise can not be used.
+ */
+public class InvalidNameException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public InvalidNameException(String message)
+	{
+		super(message);
+	}
+}
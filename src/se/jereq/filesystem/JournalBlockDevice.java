@@ -0,0 +1,804 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal in front of another {@link BlockDevice}, making the metadata updates
+ * of each filesystem operation atomic. Blocks written through this device belong to the current
+ * transaction until {@link #commit} is called. Committed transactions are gathered into a group,
+ * and the whole group is written to the journal region as one sequential record once enough
+ * transactions have been gathered or {@link #flush} is called. The blocks only reach their place
+ * on the device when the journal runs out of space, at a checkpoint.
+ * <br><br>
+ * After an unclean stop {@link #recover} replays the records written since the last checkpoint,
+ * which is all that is needed to make the metadata consistent again. Transactions not yet
+ * written to the journal are lost as a whole.
+ * <br><br>
+ * File contents are not journaled, and are written through the device returned by
+ * {@link #getDataDevice}. The device is flushed before each record is written, so the contents
+ * of a file are always on the device before the metadata referring to them. Blocks freed by a transaction,
+ * as noted by {@link #release}, are still in use on the device until the transaction is in the journal,
+ * so file contents written to one of them first cause the gathered transactions to be written. A group too large
+ * for the whole journal is written in place, without the protection of the journal.
+ * <br><br>
+ * Several threads may change the metadata at once, each within a handle opened by {@link #begin}
+ * and closed by {@link #commit}. All open handles share the running transaction, which is only
+ * committed when the last of them is closed. If the running transaction grows too large, or a
+ * {@link #flush} is waiting, new handles wait in <code>begin</code> until it has been committed.
+ * As blocks are journaled whole, this keeps the changes of an operation from being committed
+ * together with half of the changes of another operation. Blocks freed by the running transaction
+ * must not be reused by anyone until it is committed, see {@link FreeListNode#unpin}.
+ * <br><br>
+ * The device journaled to must allow blocks to be read and written by several threads at once,
+ * as reading blocks not in the journal and writing file contents is done without locking.
+ * <br><br>
+ * Layout of the journal region: the first block holds <code>JOURNAL_MAGIC</code> and the sequence
+ * number of the next record. Each record starts with a block holding <code>RECORD_MAGIC</code>,
+ * its sequence number, its block count and a CRC-32 of the record, followed by the numbers of the
+ * journaled blocks and then their contents.
+ */
+public class JournalBlockDevice extends BlockDevice
+{
+	/**
+	 * Identifies the first block of the journal region, the bytes "JQJL".
+	 */
+	public static final int JOURNAL_MAGIC = 0x4a514a4c;
+
+	/**
+	 * Identifies the first block of a record in the journal, the bytes "JQJR".
+	 */
+	public static final int RECORD_MAGIC = 0x4a514a52;
+
+	/**
+	 * The number of transactions gathered before a group is written to the journal.
+	 */
+	public static final int GROUP_COMMIT_TRANSACTIONS = 32;
+
+	private static final int SEQUENCE_OFFSET = 4;
+	private static final int COUNT_OFFSET = 8;
+	private static final int CRC_OFFSET = 12;
+
+	private final BlockDevice m_Device;
+	private final BlockDevice m_DataDevice;
+	private final int m_nStart;
+	private final int m_nBlocks;
+
+	// The latest contents of every block not yet written in place
+	private final Map<Integer, byte[]> m_Overlay = new HashMap<Integer, byte[]>();
+	// Blocks written by the running transaction
+	private final Set<Integer> m_Transaction = new HashSet<Integer>();
+	// Blocks freed by the running transaction
+	private final BitSet m_TransactionReleased = new BitSet();
+	// Contents of committed transactions waiting to be written to the journal
+	private final Map<Integer, byte[]> m_Group = new HashMap<Integer, byte[]>();
+	// Contents written to the journal but not yet in place, in block order for the checkpoint
+	private final TreeMap<Integer, byte[]> m_Logged = new TreeMap<Integer, byte[]>();
+	// Blocks freed by the transactions waiting to be written
+	private final BitSet m_Released = new BitSet();
+	// Blocks freed by committed transactions, not yet taken by takeReusable
+	private BitSet m_Reusable = new BitSet();
+
+	// The number of handles each thread has open
+	private final ThreadLocal<int[]> m_HandleDepth = ThreadLocal.withInitial(() -> new int[1]);
+	private int m_nHandles = 0;
+	// The number of handles that changed something since the running transaction started
+	private int m_nTransactionHandles = 0;
+	// Set while new handles must wait for the running transaction to be committed
+	private boolean m_bBarrier = false;
+	// The number of threads in flush, which new handles also wait for
+	private int m_nFlushes = 0;
+
+	private int m_nGroupTransactions = 0;
+	private int m_nSequence = 0;
+	// The journal block where the next record starts
+	private int m_nHead;
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device to journal writes to.
+	 * @param start the first block of the journal region.
+	 * @param blocks the number of blocks in the journal region, at least 3.
+	 * @throws IllegalArgumentException Thrown if the journal region does not fit on the device.
+	 */
+	public JournalBlockDevice(BlockDevice device, int start, int blocks)
+	{
+		super(device.getBlockSize(), device.getBlockCount());
+
+		if (blocks < 3 || start < 0 || start > device.getBlockCount() - blocks)
+			throw new IllegalArgumentException("Invalid journal region");
+
+		m_Device = device;
+		m_nStart = start;
+		m_nBlocks = blocks;
+		m_nHead = start + 1;
+		m_DataDevice = new DataDevice();
+	}
+
+	/**
+	 * Get the device writes are journaled to.
+	 *
+	 * @return The device given to the constructor.
+	 */
+	public BlockDevice getDevice()
+	{
+		return m_Device;
+	}
+
+	/**
+	 * Get a view of the device for file contents. Reads see the journaled blocks, while writes
+	 * go straight to the device without becoming part of a transaction. A block reused for file
+	 * contents after being journaled is dropped from the journal first.
+	 *
+	 * @return The device to read and write file contents through.
+	 */
+	public BlockDevice getDataDevice()
+	{
+		return m_DataDevice;
+	}
+
+	/**
+	 * Prepare an empty journal region for a new filesystem, discarding anything journaled.
+	 */
+	public synchronized void format()
+	{
+		reset();
+		m_nSequence = 0;
+
+		// An empty first record keeps old records from being replayed
+		m_Device.writeBlock(m_nStart + 1, new byte[getBlockSize()]);
+		writeHeader();
+		m_Device.flush();
+	}
+
+	/**
+	 * Replay the records written to the journal since the last checkpoint, writing their
+	 * blocks in place. Replay stops at the first record that is missing or incomplete.
+	 *
+	 * @return The number of records replayed, or -1 if the journal region is not valid.
+	 */
+	public synchronized int recover()
+	{
+		ByteBuffer header = ByteBuffer.wrap(m_Device.readBlock(m_nStart));
+		if (header.capacity() != getBlockSize() || header.getInt(0) != JOURNAL_MAGIC)
+			return -1;
+
+		reset();
+		m_nSequence = header.getInt(SEQUENCE_OFFSET);
+
+		int replayed = 0;
+		int pos = m_nStart + 1;
+		while (pos < m_nStart + m_nBlocks)
+		{
+			int length = replayRecord(pos);
+			if (length == 0)
+				break;
+
+			pos += length;
+			++m_nSequence;
+			++replayed;
+		}
+
+		m_Device.flush();
+		m_nHead = m_nStart + 1;
+		writeHeader();
+		m_Device.flush();
+
+		return replayed;
+	}
+
+	/**
+	 * Forget everything journaled, before the journal region is prepared or replayed.
+	 */
+	private void reset()
+	{
+		m_Overlay.clear();
+		m_Transaction.clear();
+		m_TransactionReleased.clear();
+		m_Group.clear();
+		m_Logged.clear();
+		m_Released.clear();
+		m_Reusable = new BitSet();
+		m_nTransactionHandles = 0;
+		m_nGroupTransactions = 0;
+	}
+
+	/**
+	 * Replay a single record if it is valid.
+	 *
+	 * @param pos the block where the record starts.
+	 * @return The number of blocks in the record, or 0 if there is no valid record.
+	 */
+	private int replayRecord(int pos)
+	{
+		int blockSize = getBlockSize();
+		int end = m_nStart + m_nBlocks;
+
+		ByteBuffer header = ByteBuffer.wrap(m_Device.readBlock(pos));
+		if (header.getInt(0) != RECORD_MAGIC || header.getInt(SEQUENCE_OFFSET) != m_nSequence)
+			return 0;
+
+		int count = header.getInt(COUNT_OFFSET);
+		int tagBlocks = tagBlocksFor(count);
+		if (count <= 0 || count > end - pos - 1 - tagBlocks)
+			return 0;
+
+		int length = recordBlocksFor(count);
+		byte[] record = new byte[length * blockSize];
+		System.arraycopy(header.array(), 0, record, 0, blockSize);
+		m_Device.readBlocks(consecutive(pos + 1, length - 1), length - 1, record, blockSize);
+
+		if (header.getInt(CRC_OFFSET) != checksum(record))
+			return 0;
+
+		int[] blockNrs = new int[count];
+		ByteBuffer.wrap(record, blockSize, tagBlocks * blockSize).asIntBuffer().get(blockNrs);
+		m_Device.writeBlocks(blockNrs, count, record, (1 + tagBlocks) * blockSize);
+
+		return length;
+	}
+
+	/**
+	 * Note blocks freed by the running transaction, before the handle freeing them is closed. File
+	 * contents must not reach these blocks before the transaction is in the journal, as a replay
+	 * without it still finds them in use.
+	 *
+	 * @param blocks the numbers of the freed blocks.
+	 */
+	public synchronized void release(BitSet blocks)
+	{
+		m_TransactionReleased.or(blocks);
+	}
+
+	/**
+	 * Get and forget the blocks noted by {@link #release} for transactions committed since the last call.
+	 * These may be reused, as file contents written to them first cause the transactions to be written.
+	 *
+	 * @return The set of block numbers.
+	 */
+	public synchronized BitSet takeReusable()
+	{
+		BitSet res = m_Reusable;
+		m_Reusable = new BitSet();
+		return res;
+	}
+
+	/**
+	 * Open a handle on the running transaction, before changing anything. Handles may be nested,
+	 * each must be closed by {@link #commit}. Waits while the running transaction is being closed,
+	 * so the calling thread must not hold any lock other threads need to close their handles.
+	 * Writing a block without an open handle opens one without waiting.
+	 */
+	public synchronized void begin()
+	{
+		int[] depth = m_HandleDepth.get();
+		if (depth[0] == 0)
+		{
+			while (m_bBarrier || m_nFlushes > 0)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ex)
+				{
+					// The handle must be opened anyway, so the interrupt is kept for later
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			++m_nHandles;
+		}
+
+		++depth[0];
+	}
+
+	/**
+	 * Close a handle of the calling thread. When no handles are left open the running transaction
+	 * is committed, and its blocks are written to the journal together with other transactions,
+	 * at the latest when {@link #flush} is called. Does nothing if the thread has no handle open.
+	 */
+	public synchronized void commit()
+	{
+		int[] depth = m_HandleDepth.get();
+		if (depth[0] == 0 || --depth[0] > 0)
+			return;
+
+		--m_nHandles;
+		if (!m_Transaction.isEmpty())
+			++m_nTransactionHandles;
+
+		if (m_nHandles == 0)
+			commitTransaction();
+		else if (m_nTransactionHandles >= GROUP_COMMIT_TRANSACTIONS || recordBlocksFor(m_Transaction.size()) > (m_nBlocks - 1) / 2)
+			m_bBarrier = true;
+	}
+
+	/**
+	 * Move the running transaction to the group, once no handles are open.
+	 */
+	private void commitTransaction()
+	{
+		m_bBarrier = false;
+		notifyAll();
+
+		m_Released.or(m_TransactionReleased);
+		m_Reusable.or(m_TransactionReleased);
+		m_TransactionReleased.clear();
+
+		if (m_Transaction.isEmpty())
+			return;
+
+		for (int block : m_Transaction)
+		{
+			m_Group.put(block, m_Overlay.get(block).clone());
+		}
+		m_Transaction.clear();
+
+		m_nGroupTransactions += m_nTransactionHandles;
+		m_nTransactionHandles = 0;
+		if (m_nGroupTransactions >= GROUP_COMMIT_TRANSACTIONS || recordBlocksFor(m_Group.size()) > (m_nBlocks - 1) / 2)
+			writeGroup();
+	}
+
+	/**
+	 * Commit the running transaction, write the gathered transactions to the journal and then
+	 * write all journaled blocks in place, leaving nothing to replay. Any handles of the calling
+	 * thread are closed first, then handles of other threads are waited for.
+	 */
+	@Override
+	public synchronized void flush()
+	{
+		int[] depth = m_HandleDepth.get();
+		if (depth[0] > 0)
+		{
+			depth[0] = 1;
+			commit();
+		}
+
+		++m_nFlushes;
+		try
+		{
+			boolean interrupted = false;
+			while (m_nHandles > 0)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ex)
+				{
+					// Flushing can not be given up halfway, so the interrupt is kept for later
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			commitTransaction();
+			writeGroup();
+			checkpoint();
+			m_Device.flush();
+		}
+		finally
+		{
+			--m_nFlushes;
+			notifyAll();
+		}
+	}
+
+	private int tagBlocksFor(int count)
+	{
+		return (count * 4 + getBlockSize() - 1) / getBlockSize();
+	}
+
+	private int recordBlocksFor(int count)
+	{
+		return 1 + tagBlocksFor(count) + count;
+	}
+
+	/**
+	 * Get the checksum of a record, covering everything but the checksum itself and the rest of the first block.
+	 */
+	private int checksum(byte[] record)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, CRC_OFFSET);
+		crc.update(record, getBlockSize(), record.length - getBlockSize());
+
+		return (int) crc.getValue();
+	}
+
+	private static int[] consecutive(int first, int count)
+	{
+		int[] blockNrs = new int[count];
+		for (int i = 0; i < count; ++i)
+		{
+			blockNrs[i] = first + i;
+		}
+
+		return blockNrs;
+	}
+
+	/**
+	 * Write blocks in place with a single request to the device.
+	 */
+	private void writeInPlace(Map<Integer, byte[]> blocks)
+	{
+		int blockSize = getBlockSize();
+		int[] blockNrs = new int[blocks.size()];
+		byte[] contents = new byte[blocks.size() * blockSize];
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : blocks.entrySet())
+		{
+			blockNrs[i] = entry.getKey();
+			System.arraycopy(entry.getValue(), 0, contents, i * blockSize, blockSize);
+			++i;
+		}
+
+		m_Device.writeBlocks(blockNrs, blockNrs.length, contents, 0);
+	}
+
+	private void writeHeader()
+	{
+		ByteBuffer header = ByteBuffer.allocate(getBlockSize());
+		header.putInt(0, JOURNAL_MAGIC);
+		header.putInt(SEQUENCE_OFFSET, m_nSequence);
+		m_Device.writeBlock(m_nStart, header.array());
+	}
+
+	/**
+	 * Write the gathered transactions to the journal as a single record.
+	 */
+	private void writeGroup()
+	{
+		// Blocks are released as their transaction commits, so all of them are freed by the group
+		m_nGroupTransactions = 0;
+		m_Released.clear();
+		if (m_Group.isEmpty())
+			return;
+
+		int blockSize = getBlockSize();
+		int count = m_Group.size();
+		int length = recordBlocksFor(count);
+
+		if (length > m_nStart + m_nBlocks - m_nHead)
+			checkpoint();
+
+		if (length > m_nBlocks - 1)
+		{
+			// Too large for the journal, so the blocks can only be written in place
+			m_Device.flush();
+			writeInPlace(new TreeMap<Integer, byte[]>(m_Group));
+			m_Device.flush();
+
+			for (int block : m_Group.keySet())
+			{
+				if (!m_Transaction.contains(block))
+					m_Overlay.remove(block);
+			}
+			m_Group.clear();
+			return;
+		}
+
+		// The header, block numbers and contents are laid out back to back, to be written at once
+		int tagBlocks = tagBlocksFor(count);
+		ByteBuffer record = ByteBuffer.allocate(length * blockSize);
+		record.position(blockSize);
+		int imageOffset = (1 + tagBlocks) * blockSize;
+		for (Map.Entry<Integer, byte[]> entry : m_Group.entrySet())
+		{
+			record.putInt(entry.getKey());
+			System.arraycopy(entry.getValue(), 0, record.array(), imageOffset, blockSize);
+			imageOffset += blockSize;
+		}
+
+		record.putInt(0, RECORD_MAGIC);
+		record.putInt(SEQUENCE_OFFSET, m_nSequence);
+		record.putInt(COUNT_OFFSET, count);
+		record.putInt(CRC_OFFSET, checksum(record.array()));
+
+		// File contents written so far must be in place before any metadata referring to them
+		m_Device.flush();
+
+		m_Device.writeBlocks(consecutive(m_nHead, length), length, record.array(), 0);
+		m_Device.flush();
+
+		m_nHead += length;
+		++m_nSequence;
+		m_Logged.putAll(m_Group);
+		m_Group.clear();
+	}
+
+	/**
+	 * Write the blocks in the journal in place and start over from the beginning of the journal.
+	 */
+	private void checkpoint()
+	{
+		if (m_Logged.isEmpty())
+			return;
+
+		writeInPlace(m_Logged);
+		m_Device.flush();
+
+		m_nHead = m_nStart + 1;
+		writeHeader();
+		m_Device.flush();
+
+		for (int block : m_Logged.keySet())
+		{
+			if (!m_Transaction.contains(block) && !m_Group.containsKey(block))
+				m_Overlay.remove(block);
+		}
+		m_Logged.clear();
+	}
+
+	/**
+	 * Drop a block from the journal before it is reused for file contents, so that the
+	 * old contents are neither written in place nor replayed over the new contents.
+	 */
+	private void revoke(int blockNr)
+	{
+		if (!m_Overlay.containsKey(blockNr))
+			return;
+
+		if (m_Logged.containsKey(blockNr))
+			checkpoint();
+
+		m_Overlay.remove(blockNr);
+		m_Transaction.remove(blockNr);
+		m_Group.remove(blockNr);
+	}
+
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+	{
+		if (p_abContents.length != getBlockSize())
+		{
+			// Block size out-of-range
+			return -2;
+		}
+
+		return writeBlock(p_nBlockNr, p_abContents, 0);
+	}
+
+	public byte[] readBlock(int p_nBlockNr)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return new byte[0];
+		}
+
+		byte[] abBlock = new byte[getBlockSize()];
+		readBlock(p_nBlockNr, abBlock, 0);
+
+		return abBlock;
+	}
+
+	@Override
+	public synchronized int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_nOffset < 0 || p_nOffset > p_abContents.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+
+		int[] depth = m_HandleDepth.get();
+		if (depth[0] == 0)
+		{
+			depth[0] = 1;
+			++m_nHandles;
+		}
+
+		byte[] abBlock = m_Overlay.get(p_nBlockNr);
+		if (abBlock == null)
+		{
+			abBlock = new byte[getBlockSize()];
+			m_Overlay.put(p_nBlockNr, abBlock);
+		}
+
+		// Committed contents are copies, so the latest contents can be changed in place
+		System.arraycopy(p_abContents, p_nOffset, abBlock, 0, getBlockSize());
+		m_Transaction.add(p_nBlockNr);
+
+		return 1;
+	}
+
+	@Override
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+
+		if (p_nOffset < 0 || p_nOffset > p_abBuffer.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+
+		if (readJournaled(p_nBlockNr, p_abBuffer, p_nOffset))
+			return 1;
+
+		// Blocks not journaled are only written by whoever has them locked, so no lock is needed here
+		return m_Device.readBlock(p_nBlockNr, p_abBuffer, p_nOffset);
+	}
+
+	/**
+	 * Copy the latest contents of a block if it is journaled.
+	 *
+	 * @return <code>false</code> if the block is not journaled.
+	 */
+	private synchronized boolean readJournaled(int blockNr, byte[] buffer, int offset)
+	{
+		byte[] abBlock = m_Overlay.get(blockNr);
+		if (abBlock == null)
+			return false;
+
+		System.arraycopy(abBlock, 0, buffer, offset, getBlockSize());
+		return true;
+	}
+
+	/**
+	 * Blocks that are not journaled are read from the device with a single request.
+	 */
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abBuffer.length, p_nOffset);
+		if (res < 0)
+			return res;
+
+		if (isJournaled(p_anBlockNrs, p_nCount))
+			return super.readBlocks(p_anBlockNrs, p_nCount, p_abBuffer, p_nOffset);
+
+		return m_Device.readBlocks(p_anBlockNrs, p_nCount, p_abBuffer, p_nOffset);
+	}
+
+	private synchronized boolean isJournaled(int[] blockNrs, int count)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			if (m_Overlay.containsKey(blockNrs[i]))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * The view returned by {@link JournalBlockDevice#getDataDevice}.
+	 */
+	private class DataDevice extends BlockDevice
+	{
+		DataDevice()
+		{
+			super(JournalBlockDevice.this.getBlockSize(), JournalBlockDevice.this.getBlockCount());
+		}
+
+		public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+		{
+			if (p_abContents.length != getBlockSize())
+			{
+				// Block size out-of-range
+				return -2;
+			}
+
+			return writeBlock(p_nBlockNr, p_abContents, 0);
+		}
+
+		public byte[] readBlock(int p_nBlockNr)
+		{
+			return JournalBlockDevice.this.readBlock(p_nBlockNr);
+		}
+
+		@Override
+		public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+		{
+			if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+			{
+				// Block out-of-range
+				return -1;
+			}
+
+			prepareWrite(p_nBlockNr);
+			return m_Device.writeBlock(p_nBlockNr, p_abContents, p_nOffset);
+		}
+
+		@Override
+		public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+		{
+			return JournalBlockDevice.this.readBlock(p_nBlockNr, p_abBuffer, p_nOffset);
+		}
+
+		@Override
+		public int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+		{
+			if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+			{
+				// Block out-of-range
+				return -1;
+			}
+
+			prepareWrite(p_nBlockNr);
+			return m_Device.writeBlock(p_nBlockNr, p_Buffer);
+		}
+
+		@Override
+		public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+		{
+			int res = checkBlocks(p_anBlockNrs, p_nCount, p_abContents.length, p_nOffset);
+			if (res < 0)
+				return res;
+
+			prepareWrites(p_anBlockNrs, p_nCount);
+			return m_Device.writeBlocks(p_anBlockNrs, p_nCount, p_abContents, p_nOffset);
+		}
+
+		@Override
+		public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+		{
+			return JournalBlockDevice.this.readBlocks(p_anBlockNrs, p_nCount, p_abBuffer, p_nOffset);
+		}
+
+		@Override
+		public int writeBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+		{
+			int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+			if (res < 0)
+				return res;
+
+			prepareWrites(p_anBlockNrs, p_nCount);
+			return m_Device.writeBlocks(p_anBlockNrs, p_nCount, p_Buffer);
+		}
+
+		private void prepareWrite(int blockNr)
+		{
+			synchronized (JournalBlockDevice.this)
+			{
+				if (m_Released.get(blockNr))
+					writeGroup();
+
+				revoke(blockNr);
+			}
+		}
+
+		private void prepareWrites(int[] blockNrs, int count)
+		{
+			synchronized (JournalBlockDevice.this)
+			{
+				for (int i = 0; i < count; ++i)
+				{
+					if (m_Released.get(blockNrs[i]))
+						writeGroup();
+
+					revoke(blockNrs[i]);
+				}
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			JournalBlockDevice.this.flush();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package se.jereq.filesystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, which any number of threads can record to at once.
+ * <br><br>
+ * Each power of two is split into four buckets, so a latency is known to within a quarter of
+ * its magnitude, while the whole range of a <code>long</code> fits in a fixed number of buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram
+{
+	// Buckets in each power of two, as a number of bits
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * The number of buckets of a histogram.
+	 */
+	public static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray m_Counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Get the bucket a latency is counted in.
+	 *
+	 * @param nanos the latency, negative latencies count as 0.
+	 * @return The index of the bucket.
+	 */
+	public static int bucketOf(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Get the smallest latency counted in a bucket.
+	 *
+	 * @param bucket the index of the bucket.
+	 * @return The lower bound of the bucket in nanoseconds.
+	 */
+	public static long lowerBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Get the largest latency counted in a bucket.
+	 *
+	 * @param bucket the index of the bucket.
+	 * @return The upper bound of the bucket in nanoseconds.
+	 */
+	public static long upperBound(int bucket)
+	{
+		return bucket + 1 < BUCKETS ? lowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Get a percentile of the latencies counted in a set of buckets.
+	 *
+	 * @param counts the count of each bucket, as returned by {@link #getCounts}.
+	 * @param percentile the percentile to get, in the range [0, 100].
+	 * @return The upper bound of the bucket holding the percentile, or 0 if nothing was counted.
+	 */
+	public static long percentile(long[] counts, double percentile)
+	{
+		long total = 0;
+		for (long count : counts)
+		{
+			total += count;
+		}
+
+		if (total == 0)
+			return 0;
+
+		// The rank of the latency sought, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+
+		return upperBound(counts.length - 1);
+	}
+
+	/**
+	 * Count a latency.
+	 *
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		m_Counts.incrementAndGet(bucketOf(nanos));
+	}
+
+	/**
+	 * Get the number of latencies counted in each bucket. Latencies recorded while the
+	 * buckets are copied may or may not be included.
+	 *
+	 * @return A copy of the counts, <code>BUCKETS</code> long.
+	 */
+	public long[] getCounts()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i)
+		{
+			counts[i] = m_Counts.get(i);
+		}
+
+		return counts;
+	}
+}
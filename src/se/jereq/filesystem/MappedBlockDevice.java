@@ -0,0 +1,77 @@
+package se.jereq.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implements {@link BlockDevice} on top of a memory mapped image file.
+ * Blocks are read and written in place, so the image never has to be copied
+ * to or from the device, and saving is done by {@link MappedBlockDevice#flush}.
+ */
+public class MappedBlockDevice extends ByteBufferBlockDevice
+{
+	/**
+	 * constructor. Maps an image file with the default geometry, creating it if it does not exist.
+	 * 
+	 * @param file the image file to map. Must either be empty or have the size of a complete device.
+	 * @throws IOException Thrown if the file has an invalid size or can not be mapped.
+	 */
+	public MappedBlockDevice(File file) throws IOException
+	{
+		this(file, BLOCK_SIZE, BLOCK_COUNT);
+	}
+	
+	/**
+	 * constructor. Maps an image file, creating it if it does not exist.
+	 * 
+	 * @param file the image file to map. Must either be empty or have the size of a complete device.
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 * @throws IOException Thrown if the file has an invalid size or can not be mapped.
+	 */
+	public MappedBlockDevice(File file, int blockSize, int blockCount) throws IOException
+	{
+		super(blockSize, blockCount, map(file, blockSize, blockCount));
+	}
+	
+	private static ByteBuffer[] map(File file, int blockSize, int blockCount) throws IOException
+	{
+		long deviceSize = (long) blockCount * blockSize;
+		
+		RandomAccessFile image = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (image.length() != 0 && image.length() != deviceSize)
+				throw new IOException("Invalid file size");
+			
+			ByteBuffer[] chunks = new ByteBuffer[chunkCount(blockSize, blockCount)];
+			long position = 0;
+			for (int i = 0; i < chunks.length; ++i)
+			{
+				int size = chunkSize(blockSize, blockCount, i);
+				chunks[i] = image.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size);
+				position += size;
+			}
+			
+			return chunks;
+		}
+		finally
+		{
+			// The mappings stay valid after the file is closed
+			image.close();
+		}
+	}
+	
+	@Override
+	public void flush()
+	{
+		for (ByteBuffer chunk : getChunks())
+		{
+			((MappedByteBuffer) chunk).force();
+		}
+	}
+}
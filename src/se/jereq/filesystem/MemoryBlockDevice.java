@@ -1,50 +1,203 @@
 package se.jereq.filesystem;
 
+import java.nio.ByteBuffer;
+
 /**
  * Implements {@link BlockDevice} as a memory mapped disk.
  */
 public class MemoryBlockDevice extends BlockDevice
 {
-	private byte[][] m_abContents = new byte[BLOCK_COUNT][BLOCK_SIZE];
+	private byte[][] m_abContents;
+	
+	/**
+	 * constructor. Creates a device with the default geometry.
+	 */
+	public MemoryBlockDevice()
+	{
+		this(BLOCK_SIZE, BLOCK_COUNT);
+	}
+	
+	/**
+	 * constructor.
+	 * 
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks on the device.
+	 */
+	public MemoryBlockDevice(int blockSize, int blockCount)
+	{
+		super(blockSize, blockCount);
+		
+		m_abContents = new byte[blockCount][blockSize];
+	}
 
 	public int writeBlock(int p_nBlockNr,byte[] p_abContents)
 	{
-		if (p_nBlockNr >= BLOCK_COUNT || p_nBlockNr < 0)
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
 		{
 			// Block out-of-range
 			return -1;
 		}
 
-		if (p_abContents.length != BLOCK_SIZE)
+		if (p_abContents.length != getBlockSize())
 		{
 			// Block size out-of-range
 			return -2;
 		}
-
-		for (int nIndex = 0; nIndex < BLOCK_SIZE; nIndex++)
-		{
-			m_abContents[p_nBlockNr][nIndex] = p_abContents[nIndex];
-		}
-		
-		return 1;
 		
+		return writeBlock(p_nBlockNr, p_abContents, 0);
 	}
 
 	public byte[] readBlock(int p_nBlockNr)
 	{
-		if(p_nBlockNr >= BLOCK_COUNT || p_nBlockNr < 0)
+		if(p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
 		{
 			// Block out-of-range
 			return new byte[0];
 		}
 
-		byte[] abBlock = new byte[BLOCK_SIZE];
+		byte[] abBlock = new byte[getBlockSize()];
+		System.arraycopy(m_abContents[p_nBlockNr], 0, abBlock, 0, abBlock.length);
 
-		for(int nIndex=0; nIndex < BLOCK_SIZE; nIndex++)
+		return abBlock; 
+	}
+	
+	@Override
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
 		{
-			abBlock[nIndex] = m_abContents[p_nBlockNr][nIndex];
+			// Block out-of-range
+			return -1;
 		}
-
-		return abBlock; 
+		
+		if (p_nOffset < 0 || p_nOffset > p_abContents.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+		
+		System.arraycopy(p_abContents, p_nOffset, m_abContents[p_nBlockNr], 0, getBlockSize());
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_nOffset < 0 || p_nOffset > p_abBuffer.length - getBlockSize())
+		{
+			// Array range out-of-range
+			return -2;
+		}
+		
+		System.arraycopy(m_abContents[p_nBlockNr], 0, p_abBuffer, p_nOffset, getBlockSize());
+		
+		return 1;
+	}
+	
+	@Override
+	public int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+		
+		p_Buffer.get(m_abContents[p_nBlockNr]);
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		if (p_nBlockNr >= getBlockCount() || p_nBlockNr < 0)
+		{
+			// Block out-of-range
+			return -1;
+		}
+		
+		if (p_Buffer.remaining() < getBlockSize())
+		{
+			// Buffer too small
+			return -2;
+		}
+		
+		p_Buffer.put(m_abContents[p_nBlockNr]);
+		
+		return 1;
+	}
+	
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abContents.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			System.arraycopy(p_abContents, p_nOffset + i * getBlockSize(), m_abContents[p_anBlockNrs[i]], 0, getBlockSize());
+		}
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_abBuffer.length, p_nOffset);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			System.arraycopy(m_abContents[p_anBlockNrs[i]], 0, p_abBuffer, p_nOffset + i * getBlockSize(), getBlockSize());
+		}
+		
+		return 1;
+	}
+	
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			p_Buffer.get(m_abContents[p_anBlockNrs[i]]);
+		}
+		
+		return 1;
+	}
+	
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		int res = checkBlocks(p_anBlockNrs, p_nCount, p_Buffer.remaining(), 0);
+		if (res < 0)
+			return res;
+		
+		for (int i = 0; i < p_nCount; ++i)
+		{
+			p_Buffer.put(m_abContents[p_anBlockNrs[i]]);
+		}
+		
+		return 1;
 	}
 }
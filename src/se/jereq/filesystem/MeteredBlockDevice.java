@@ -0,0 +1,197 @@
+package se.jereq.filesystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Passes every request on to another {@link BlockDevice}, counting the blocks transferred and the
+ * time spent waiting for the device in a {@link FilesystemMetrics}. The transfers are counted for
+ * the operation the calling thread is running, see {@link FilesystemMetrics#getOperations}.
+ * Every request is also a Flight Recorder event, recorded if it takes longer than the event threshold.
+ * <br><br>
+ * A {@link Filesystem} puts one in front of the device it is given, so all its reads and writes are counted.
+ */
+public class MeteredBlockDevice extends BlockDevice
+{
+	private final BlockDevice m_Device;
+	private final FilesystemMetrics m_Metrics;
+	private final String m_sDevice;
+
+	/**
+	 * constructor.
+	 *
+	 * @param device the device to pass requests on to.
+	 * @param metrics the metrics to count transfers in.
+	 */
+	public MeteredBlockDevice(BlockDevice device, FilesystemMetrics metrics)
+	{
+		super(device.getBlockSize(), device.getBlockCount());
+
+		m_Device = device;
+		m_Metrics = metrics;
+		m_sDevice = device.getClass().getName();
+	}
+
+	/**
+	 * Get the device requests are passed on to.
+	 *
+	 * @return The device given to the constructor.
+	 */
+	public BlockDevice getDevice()
+	{
+		return m_Device;
+	}
+
+	private void read(BlockReadEvent event, long start, int blockNr, int count)
+	{
+		m_Metrics.deviceRead(count, System.nanoTime() - start);
+
+		if (event.shouldCommit())
+		{
+			event.device = m_sDevice;
+			event.block = blockNr;
+			event.blocks = count;
+			event.bytes = (long) count * getBlockSize();
+			event.commit();
+		}
+	}
+
+	private void write(BlockWriteEvent event, long start, int blockNr, int count)
+	{
+		m_Metrics.deviceWrite(count, System.nanoTime() - start);
+
+		if (event.shouldCommit())
+		{
+			event.device = m_sDevice;
+			event.block = blockNr;
+			event.blocks = count;
+			event.bytes = (long) count * getBlockSize();
+			event.commit();
+		}
+	}
+
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents)
+	{
+		BlockWriteEvent event = new BlockWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.writeBlock(p_nBlockNr, p_abContents);
+		write(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	public byte[] readBlock(int p_nBlockNr)
+	{
+		BlockReadEvent event = new BlockReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		byte[] res = m_Device.readBlock(p_nBlockNr);
+		read(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	@Override
+	public int writeBlock(int p_nBlockNr, byte[] p_abContents, int p_nOffset)
+	{
+		BlockWriteEvent event = new BlockWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.writeBlock(p_nBlockNr, p_abContents, p_nOffset);
+		write(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	@Override
+	public int readBlock(int p_nBlockNr, byte[] p_abBuffer, int p_nOffset)
+	{
+		BlockReadEvent event = new BlockReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.readBlock(p_nBlockNr, p_abBuffer, p_nOffset);
+		read(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	@Override
+	public int writeBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		BlockWriteEvent event = new BlockWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.writeBlock(p_nBlockNr, p_Buffer);
+		write(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	@Override
+	public int readBlock(int p_nBlockNr, ByteBuffer p_Buffer)
+	{
+		BlockReadEvent event = new BlockReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.readBlock(p_nBlockNr, p_Buffer);
+		read(event, start, p_nBlockNr, 1);
+
+		return res;
+	}
+
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abContents, int p_nOffset)
+	{
+		BlockWriteEvent event = new BlockWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.writeBlocks(p_anBlockNrs, p_nCount, p_abContents, p_nOffset);
+		write(event, start, p_nCount > 0 ? p_anBlockNrs[0] : -1, p_nCount);
+
+		return res;
+	}
+
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, byte[] p_abBuffer, int p_nOffset)
+	{
+		BlockReadEvent event = new BlockReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.readBlocks(p_anBlockNrs, p_nCount, p_abBuffer, p_nOffset);
+		read(event, start, p_nCount > 0 ? p_anBlockNrs[0] : -1, p_nCount);
+
+		return res;
+	}
+
+	@Override
+	public int writeBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		BlockWriteEvent event = new BlockWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.writeBlocks(p_anBlockNrs, p_nCount, p_Buffer);
+		write(event, start, p_nCount > 0 ? p_anBlockNrs[0] : -1, p_nCount);
+
+		return res;
+	}
+
+	@Override
+	public int readBlocks(int[] p_anBlockNrs, int p_nCount, ByteBuffer p_Buffer)
+	{
+		BlockReadEvent event = new BlockReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int res = m_Device.readBlocks(p_anBlockNrs, p_nCount, p_Buffer);
+		read(event, start, p_nCount > 0 ? p_anBlockNrs[0] : -1, p_nCount);
+
+		return res;
+	}
+
+	@Override
+	public void flush()
+	{
+		long start = System.nanoTime();
+		m_Device.flush();
+		m_Metrics.deviceWrite(0, System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A path, or the directory it is in, does not exist.
+ */
+public class NoSuchPathException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public NoSuchPathException(String message)
+	{
+		super(message);
+	}
+}
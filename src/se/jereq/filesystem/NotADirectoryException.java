@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A path leads to a file where a directory is needed, such as when listing it.
+ */
+public class NotADirectoryException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public NotADirectoryException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A path leads to a directory where a file is needed, such as when reading it.
+ */
+public class NotAFileException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public NotAFileException(String message)
+	{
+		super(message);
+	}
+}
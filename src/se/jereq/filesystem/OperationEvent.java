@@ -0,0 +1,53 @@
+package se.jereq.filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for an operation of a {@link Filesystem} or {@link Session}, committed
+ * by {@link FilesystemMetrics} when the operation ends. Carries the device transfers of the
+ * operation, telling apart time spent on the device from time spent on metadata. Only operations
+ * taking longer than the threshold are recorded unless the recording asks for more.
+ */
+@Name("se.jereq.filesystem.Operation")
+@Label("Filesystem Operation")
+@Category("Filesystem")
+@Description("An operation run on a filesystem")
+@Threshold("10 ms")
+final class OperationEvent extends jdk.jfr.Event
+{
+	@Label("Operation")
+	String operation;
+
+	@Label("Path")
+	@Description("The path operated on, as given")
+	String path;
+
+	@Label("Destination")
+	@Description("The path copied, appended or renamed to, as given")
+	String destination;
+
+	@Label("Blocks Read")
+	long blockReads;
+
+	@Label("Blocks Written")
+	long blockWrites;
+
+	@Label("Bytes Read")
+	@DataAmount
+	long bytesRead;
+
+	@Label("Bytes Written")
+	@DataAmount
+	long bytesWritten;
+
+	@Label("Device Time")
+	@Description("The time spent waiting for the device")
+	@Timespan(Timespan.NANOSECONDS)
+	long deviceTime;
+}
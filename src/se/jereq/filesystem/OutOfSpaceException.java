@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * There are not enough free blocks for the operation, or the file would grow too large.
+ */
+public class OutOfSpaceException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public OutOfSpaceException(String message)
+	{
+		super(message);
+	}
+}
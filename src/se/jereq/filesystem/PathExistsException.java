@@ -0,0 +1,19 @@
+package se.jereq.filesystem;
+
+/**
+ * A file or directory with the name to create already exists. Nothing is ever overwritten.
+ */
+public class PathExistsException extends FilesystemException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * constructor.
+	 *
+	 * @param message the description of the error, as returned by the methods of {@link Filesystem} returning a <code>String</code>.
+	 */
+	public PathExistsException(String message)
+	{
+		super(message);
+	}
+}
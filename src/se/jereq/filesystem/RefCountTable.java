@@ -0,0 +1,211 @@
+package se.jereq.filesystem;
+
+/**
+ * Counts the references to data blocks shared between files, stored as one byte for each block
+ * of the filesystem spanning one or more underlying blocks. The count is the number of files
+ * sharing the block besides the first, so blocks with a single owner, and free blocks, count 0.
+ * A shared block must be copied before one of the files writes to it.
+ * <br><br>
+ * Changes must be saved externally, which only needs to be done for the blocks reported by
+ * {@link RefCountTable#isDirty}.
+ * <br><br>
+ * All methods are synchronized on the <code>RefCountTable</code>, except that blocks are
+ * returned to the free list after leaving it, so the two locks are never held together.
+ */
+public class RefCountTable
+{
+	/**
+	 * The largest number of extra references a block can have.
+	 */
+	public static final int MAX_SHARES = 255;
+
+	private byte[] m_abCounts;
+	private boolean[] m_abDirty;
+
+	/**
+	 * constructor. Creates the table for a new filesystem, where no blocks are shared.
+	 *
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks in the filesystem.
+	 */
+	public RefCountTable(int blockSize, int blockCount)
+	{
+		m_abCounts = new byte[storageBlocksFor(blockSize, blockCount) * blockSize];
+		m_abDirty = new boolean[m_abCounts.length / blockSize];
+
+		for (int i = 0; i < m_abDirty.length; ++i)
+		{
+			m_abDirty[i] = true;
+		}
+	}
+
+	/**
+	 * constructor. Creates a <code>RefCountTable</code> for existing blocks.
+	 *
+	 * @param data byte array holding the table blocks back to back.
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null or of incorrect size.
+	 */
+	public RefCountTable(byte[] data, int blockSize, int blockCount)
+	{
+		if (data == null || data.length != storageBlocksFor(blockSize, blockCount) * blockSize)
+			throw new IllegalArgumentException("Invalid reference count table size");
+
+		m_abCounts = data;
+		m_abDirty = new boolean[m_abCounts.length / blockSize];
+	}
+
+	/**
+	 * Get the number of blocks needed to store the reference counts of a filesystem.
+	 *
+	 * @param blockSize the size of each block in bytes.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @return The number of blocks to reserve for the table.
+	 */
+	public static int storageBlocksFor(int blockSize, int blockCount)
+	{
+		return (blockCount + blockSize - 1) / blockSize;
+	}
+
+	private int getCount(int block)
+	{
+		return m_abCounts[block] & 0xff;
+	}
+
+	private void setCount(int block, int count)
+	{
+		m_abCounts[block] = (byte) count;
+		m_abDirty[block / (m_abCounts.length / m_abDirty.length)] = true;
+	}
+
+	/**
+	 * Check if a block is used by more than one file.
+	 *
+	 * @param block the number of the block.
+	 * @return <code>true</code> if the block must be copied before it is changed.
+	 */
+	public synchronized boolean isShared(int block)
+	{
+		return getCount(block) != 0;
+	}
+
+	/**
+	 * Add a reference to a block in use.
+	 *
+	 * @param block the number of the block.
+	 * @return <code>false</code> if the block already has <code>MAX_SHARES</code> extra references,
+	 * in which case it has to be copied instead.
+	 */
+	public synchronized boolean share(int block)
+	{
+		int count = getCount(block);
+		if (count == MAX_SHARES)
+			return false;
+
+		setCount(block, count + 1);
+		return true;
+	}
+
+	/**
+	 * Get the number of blocks in a run that can not take another reference.
+	 *
+	 * @param start the number of the first block.
+	 * @param length the number of blocks.
+	 * @return The number of blocks with <code>MAX_SHARES</code> extra references.
+	 */
+	public synchronized int countSaturated(int start, int length)
+	{
+		int saturated = 0;
+		for (int i = start; i < start + length; ++i)
+		{
+			if (getCount(i) == MAX_SHARES)
+				++saturated;
+		}
+
+		return saturated;
+	}
+
+	/**
+	 * Remove a reference to each block in a run. Blocks without any references left
+	 * are returned to the free list.
+	 *
+	 * @param start the number of the first block.
+	 * @param length the number of blocks.
+	 * @param freeList the free list to return unused blocks to.
+	 */
+	public void release(int start, int length, FreeListNode freeList)
+	{
+		int runStart = start;
+		for (int i = start; i < start + length; ++i)
+		{
+			if (!unshare(i))
+				continue;
+
+			// Blocks with a single owner are freed in runs
+			freeList.freeBlocks(runStart, i - runStart);
+			runStart = i + 1;
+		}
+
+		freeList.freeBlocks(runStart, start + length - runStart);
+	}
+
+	/**
+	 * Remove an extra reference to a block.
+	 *
+	 * @return <code>false</code> if the block has a single owner, and no references were removed.
+	 */
+	private synchronized boolean unshare(int block)
+	{
+		int count = getCount(block);
+		if (count == 0)
+			return false;
+
+		setCount(block, count - 1);
+		return true;
+	}
+
+	/**
+	 * Get the number of blocks used to store the table.
+	 *
+	 * @return The number of blocks in the array returned by {@link RefCountTable#getBlocks}.
+	 */
+	public int getStorageBlockCount()
+	{
+		return m_abDirty.length;
+	}
+
+	/**
+	 * Check if one of the blocks storing the table has changed since it was last stored.
+	 *
+	 * @param storageBlock the index of the block within the table, in the range
+	 * [0, <code>getStorageBlockCount()</code>).
+	 * @return <code>true</code> if the block needs to be stored.
+	 */
+	public synchronized boolean isDirty(int storageBlock)
+	{
+		return m_abDirty[storageBlock];
+	}
+
+	/**
+	 * Mark all blocks as stored.
+	 */
+	public synchronized void clearDirty()
+	{
+		for (int i = 0; i < m_abDirty.length; ++i)
+		{
+			m_abDirty[i] = false;
+		}
+	}
+
+	/**
+	 * Get the underlying blocks, usually in order to store them.
+	 *
+	 * @return Byte array holding all table blocks back to back. If the returned array is modified,
+	 * there is no guarantee that this <code>RefCountTable</code> remain valid.
+	 */
+	public byte[] getBlocks()
+	{
+		return m_abCounts;
+	}
+}
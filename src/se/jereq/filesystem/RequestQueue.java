@@ -0,0 +1,96 @@
+package se.jereq.filesystem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the number of requests of an {@link AsyncBlockDevice} in flight within its queue depth,
+ * without ever blocking the thread making a request. Requests beyond the queue depth wait in
+ * order, and are started by whichever thread completes the request making room for them, so that
+ * requests may be made from the completion of others, including on the thread of the device.
+ * <br><br>
+ * A request may take several slots. One taking all of them, such as a flush, starts once every
+ * request made before it has completed, and those made after it wait for it to complete.
+ */
+final class RequestQueue
+{
+	/**
+	 * A request waiting for room in the queue.
+	 */
+	private static class Waiting
+	{
+		final int slots;
+		final Runnable start;
+
+		Waiting(int slots, Runnable start)
+		{
+			this.slots = slots;
+			this.start = start;
+		}
+	}
+
+	private final int m_nDepth;
+	private int m_nInFlight = 0;
+	private final ArrayDeque<Waiting> m_Waiting = new ArrayDeque<Waiting>();
+
+	/**
+	 * constructor.
+	 *
+	 * @param depth the largest number of slots in use at once.
+	 */
+	RequestQueue(int depth)
+	{
+		m_nDepth = depth;
+	}
+
+	/**
+	 * Start a request at once if there is room for it, otherwise once the requests ahead of it have
+	 * made room. The request must call {@link #done} with the same number of slots once it completes,
+	 * whether it succeeds or not.
+	 *
+	 * @param slots the number of slots the request takes, at most the queue depth.
+	 * @param start starts the request. Must not throw.
+	 */
+	void submit(int slots, Runnable start)
+	{
+		synchronized (this)
+		{
+			// Requests never overtake those waiting, so one taking every slot gets its turn
+			if (!m_Waiting.isEmpty() || m_nInFlight + slots > m_nDepth)
+			{
+				m_Waiting.add(new Waiting(slots, start));
+				return;
+			}
+
+			m_nInFlight += slots;
+		}
+
+		start.run();
+	}
+
+	/**
+	 * Give back the slots of a completed request, starting the waiting requests that now fit.
+	 *
+	 * @param slots the number of slots the request took.
+	 */
+	void done(int slots)
+	{
+		List<Runnable> ready = new ArrayList<Runnable>();
+		synchronized (this)
+		{
+			m_nInFlight -= slots;
+			while (!m_Waiting.isEmpty() && m_nInFlight + m_Waiting.peek().slots <= m_nDepth)
+			{
+				Waiting next = m_Waiting.poll();
+				m_nInFlight += next.slots;
+				ready.add(next.start);
+			}
+		}
+
+		for (Runnable start : ready)
+		{
+			start.run();
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package se.jereq.filesystem;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * A client of a {@link Filesystem}, with a working directory of its own that relative paths are
+ * resolved from. Sessions are opened with {@link Filesystem#openSession}, and any number of them
+ * can use the same filesystem at once, such as one for each thread serving a client.
+ * <br><br>
+ * The operations are those of the filesystem, which runs its own in a session of its own. Once
+ * a directory has been resolved, the session keeps it anchored in the path cache of the filesystem,
+ * so relative paths are looked up from the working directory rather than from the root.
+ * A session goes back to the root when the filesystem is formatted, read or mounted again.
+ * <br><br>
+ * Each operation is timed in the {@link FilesystemMetrics} of the filesystem, which also records it
+ * as a Flight Recorder event.
+ */
+public class Session
+{
+	private final Filesystem m_Filesystem;
+	// Replaced as a whole when it changes, so that it is always read in one piece
+	private volatile Filesystem.WorkingDirectory m_Directory;
+
+	/**
+	 * constructor.
+	 *
+	 * @param filesystem the filesystem to run operations on.
+	 */
+	Session(Filesystem filesystem)
+	{
+		m_Filesystem = filesystem;
+	}
+
+	/**
+	 * Get the filesystem the session runs operations on.
+	 *
+	 * @return The filesystem the session was opened on.
+	 */
+	public Filesystem getFilesystem()
+	{
+		return m_Filesystem;
+	}
+
+	Filesystem.WorkingDirectory getDirectory()
+	{
+		return m_Directory;
+	}
+
+	void setDirectory(Filesystem.WorkingDirectory directory)
+	{
+		m_Directory = directory;
+	}
+
+	/**
+	 * List the contents of a directory. See {@link Filesystem#ls}.
+	 *
+	 * @param p_asPath the directory to list content from, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String ls(String[] p_asPath)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.LS, p_asPath, null);
+		try
+		{
+			return m_Filesystem.ls(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Get the entries of a directory. See {@link Filesystem#list}.
+	 *
+	 * @param p_asPath the directory to list, relative to the working directory of the session unless absolute.
+	 * @return The entries of the directory, empty if it has none.
+	 * @throws FilesystemException Thrown if the path does not point to a directory.
+	 */
+	public List<DirectoryEntry> list(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.LS, p_asPath, null);
+		try
+		{
+			return m_Filesystem.list(this, p_asPath, false);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Get the entries of a directory along with their sizes. See {@link Filesystem#listWithSizes}.
+	 *
+	 * @param p_asPath the directory to list, relative to the working directory of the session unless absolute.
+	 * @return The entries of the directory, empty if it has none.
+	 * @throws FilesystemException Thrown if the path does not point to a directory.
+	 */
+	public List<DirectoryEntry> listWithSizes(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.LS, p_asPath, null);
+		try
+		{
+			return m_Filesystem.list(this, p_asPath, true);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Get the type, size and storage of a file or directory. See {@link Filesystem#stat}.
+	 *
+	 * @param p_asPath the path to the file or directory, relative to the working directory of the session unless absolute.
+	 * @return What was found at the path.
+	 * @throws FilesystemException Thrown if nothing exists at the path.
+	 */
+	public FileStat stat(String[] p_asPath) throws NoSuchPathException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.STAT, p_asPath, null);
+		try
+		{
+			return m_Filesystem.stat(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Create a new file with the provided content. See {@link Filesystem#create}.
+	 *
+	 * @param p_asPath the path to the file to be created, relative to the working directory of the session unless absolute.
+	 * @param p_abContents a byte array containing the data to initialize the file with.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String create(String[] p_asPath, byte[] p_abContents)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CREATE, p_asPath, null);
+		try
+		{
+			return m_Filesystem.create(this, p_asPath, p_abContents);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Create a new file with the provided content. See {@link Filesystem#createFile}.
+	 *
+	 * @param p_asPath the path to the file to be created, relative to the working directory of the session unless absolute.
+	 * @param p_abContents a byte array containing the data to initialize the file with.
+	 * @throws FilesystemException Thrown if the file can not be created.
+	 */
+	public void createFile(String[] p_asPath, byte[] p_abContents) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CREATE, p_asPath, null);
+		try
+		{
+			m_Filesystem.createFile(this, p_asPath, p_abContents);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Create a new file, writing the content as it arrives. See {@link Filesystem#openWrite}.
+	 *
+	 * @param p_asPath the path to the file to be created, relative to the working directory of the session unless absolute.
+	 * @return A stream to write the content of the file to. Must be closed to create the file.
+	 * @throws FilesystemException Thrown if the file can not be created.
+	 */
+	public OutputStream openWrite(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.OPEN_WRITE, p_asPath, null);
+		try
+		{
+			return m_Filesystem.openWrite(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Get the contents of a file. See {@link Filesystem#cat}.
+	 *
+	 * @param p_asPath the path to the file, relative to the working directory of the session unless absolute.
+	 * @return The contents of the file, or a descriptive error string. No final newline added.
+	 */
+	public String cat(String[] p_asPath)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CAT, p_asPath, null);
+		try
+		{
+			return m_Filesystem.cat(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Read the whole content of a file. See {@link Filesystem#readAllBytes}.
+	 *
+	 * @param p_asPath the path to the file, relative to the working directory of the session unless absolute.
+	 * @return The content of the file.
+	 * @throws FilesystemException Thrown if the path does not point to a file.
+	 */
+	public byte[] readAllBytes(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CAT, p_asPath, null);
+		try
+		{
+			return m_Filesystem.readAllBytes(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Open a file for reading. See {@link Filesystem#openRead}.
+	 *
+	 * @param p_asPath the path to the file to read, relative to the working directory of the session unless absolute.
+	 * @return A stream of the contents of the file.
+	 * @throws FilesystemException Thrown if the path does not point to a file.
+	 */
+	public InputStream openRead(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.OPEN_READ, p_asPath, null);
+		try
+		{
+			return m_Filesystem.openRead(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Open an existing file for reading and writing at any position. See {@link Filesystem#openChannel}.
+	 *
+	 * @param p_asPath the path to the file to open, relative to the working directory of the session unless absolute.
+	 * @return A channel positioned at the start of the file.
+	 * @throws FilesystemException Thrown if the path does not point to a file.
+	 */
+	public SeekableByteChannel openChannel(String[] p_asPath) throws NoSuchPathException, NotAFileException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.OPEN_CHANNEL, p_asPath, null);
+		try
+		{
+			return m_Filesystem.openChannel(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Remove a file or empty directory. See {@link Filesystem#rm}. The working
+	 * directory of the session can not be removed.
+	 *
+	 * @param p_asPath the path to remove, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String rm(String[] p_asPath)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.RM, p_asPath, null);
+		try
+		{
+			return m_Filesystem.rm(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Remove a file or empty directory. See {@link Filesystem#delete}. The working
+	 * directory of the session can not be removed.
+	 *
+	 * @param p_asPath the path to remove, relative to the working directory of the session unless absolute.
+	 * @return Whether a file or a directory was removed.
+	 * @throws FilesystemException Thrown if the path can not be removed.
+	 */
+	public INode.Type delete(String[] p_asPath) throws NoSuchPathException, DirectoryNotEmptyException, InvalidNameException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.RM, p_asPath, null);
+		try
+		{
+			return m_Filesystem.delete(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Copy a file or directory. See {@link Filesystem#copy}.
+	 *
+	 * @param p_asSource the path to copy, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the path of the copy, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String copy(String[] p_asSource, String[] p_asDestination)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.COPY, p_asSource, p_asDestination);
+		try
+		{
+			return m_Filesystem.copy(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Copy a file or directory. See {@link Filesystem#copyTo}.
+	 *
+	 * @param p_asSource the path to copy, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the path of the copy, relative to the working directory of the session unless absolute.
+	 * @throws FilesystemException Thrown if the copy can not be made.
+	 */
+	public void copyTo(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.COPY, p_asSource, p_asDestination);
+		try
+		{
+			m_Filesystem.copyTo(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Append the contents of a file to another. See {@link Filesystem#append}.
+	 *
+	 * @param p_asSource the path of the file to append, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the path of the file to append to, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String append(String[] p_asSource, String[] p_asDestination)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.APPEND, p_asSource, p_asDestination);
+		try
+		{
+			return m_Filesystem.append(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Append the contents of a file to another. See {@link Filesystem#appendTo}.
+	 *
+	 * @param p_asSource the path of the file to append, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the path of the file to append to, relative to the working directory of the session unless absolute.
+	 * @throws FilesystemException Thrown if the file can not be appended.
+	 */
+	public void appendTo(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotAFileException, OutOfSpaceException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.APPEND, p_asSource, p_asDestination);
+		try
+		{
+			m_Filesystem.appendTo(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Rename or move a file or directory. See {@link Filesystem#rename}.
+	 *
+	 * @param p_asSource the path to rename, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the new path, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String rename(String[] p_asSource, String[] p_asDestination)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.RENAME, p_asSource, p_asDestination);
+		try
+		{
+			return m_Filesystem.rename(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Rename or move a file or directory. See {@link Filesystem#move}.
+	 *
+	 * @param p_asSource the path to rename, relative to the working directory of the session unless absolute.
+	 * @param p_asDestination the new path, relative to the working directory of the session unless absolute.
+	 * @throws FilesystemException Thrown if the path can not be renamed.
+	 */
+	public void move(String[] p_asSource, String[] p_asDestination) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.RENAME, p_asSource, p_asDestination);
+		try
+		{
+			m_Filesystem.move(this, p_asSource, p_asDestination);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Create a new directory. See {@link Filesystem#mkdir}.
+	 *
+	 * @param p_asPath the path to the new directory, relative to the working directory of the session unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String mkdir(String[] p_asPath)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.MKDIR, p_asPath, null);
+		try
+		{
+			return m_Filesystem.mkdir(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Create a new directory. See {@link Filesystem#createDirectory}.
+	 *
+	 * @param p_asPath the path to the new directory, relative to the working directory of the session unless absolute.
+	 * @throws FilesystemException Thrown if the directory can not be created.
+	 */
+	public void createDirectory(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, PathExistsException, InvalidNameException, OutOfSpaceException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.MKDIR, p_asPath, null);
+		try
+		{
+			m_Filesystem.createDirectory(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Change the working directory of the session. Other sessions are not affected.
+	 *
+	 * @param p_asPath the path to the new working directory, relative to the current one unless absolute.
+	 * @return A descriptive result from the operation, without final newline.
+	 */
+	public String cd(String[] p_asPath)
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CD, p_asPath, null);
+		try
+		{
+			return m_Filesystem.cd(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Change the working directory of the session. Other sessions are not affected.
+	 *
+	 * @param p_asPath the path to the new working directory, relative to the current one unless absolute.
+	 * @throws FilesystemException Thrown if the path does not point to a directory.
+	 */
+	public void changeDirectory(String[] p_asPath) throws NoSuchPathException, NotADirectoryException, FilesystemException
+	{
+		FilesystemMetrics metrics = m_Filesystem.getMetrics();
+		FilesystemMetrics.Context context = metrics.begin(FilesystemMetrics.Operation.CD, p_asPath, null);
+		try
+		{
+			m_Filesystem.changeDirectory(this, p_asPath);
+		}
+		finally
+		{
+			metrics.end(context);
+		}
+	}
+
+	/**
+	 * Get the working directory of the session as an absolute path.
+	 *
+	 * @return A string representing the working directory.
+	 */
+	public String pwd()
+	{
+		return m_Filesystem.pwd(this);
+	}
+}
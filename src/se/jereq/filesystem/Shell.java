@@ -41,7 +41,7 @@ public class Shell
 	{
 		String[] asCommands =
 			{ "quit", "format", "ls", "create", "cat", "save", "read",
-				"rm", "copy", "append", "rename", "mkdir", "cd", "pwd", "help" };
+				"rm", "copy", "append", "rename", "mkdir", "cd", "pwd", "help", "sync" };
 
 		boolean bRun = true;
 		String	sCommand;
@@ -222,6 +222,17 @@ public class Shell
 					printHelp();
 					break;
 
+				case 15: // sync
+					if (asCommandArray.length != 1)
+					{
+						System.out.println("Usage: sync");
+					}
+					else
+					{
+						System.out.println(m_Filesystem.sync());
+					}
+					break;
+
 				default:
 					System.out.println("Unknown command " + asCommandArray[0]);
 				}
@@ -248,6 +259,7 @@ public class Shell
 		System.out.println("* cd     <directory>:               Changes current working directory to <directory>");
 		System.out.println("* pwd:                              Get current working directory");
 		System.out.println("* help:                             Prints this help screen");
+		System.out.println("* sync:                             Writes all changes to the mapped image, if any");
 	}
 
 	// With compliments to: Christoffer Nilsson (chna01) for fixing
@@ -0,0 +1,225 @@
+package se.jereq.filesystem;
+
+/**
+ * The first block of a filesystem, describing the geometry chosen when the filesystem
+ * was formatted and where the other structures are placed on the device.
+ * Changes must be saved externally by storing the underlying block returned by {@link Superblock#getBlock}.
+ */
+public class Superblock
+{
+	/**
+	 * Identifies a block as a superblock, the bytes "JQFS".
+	 */
+	public static final int MAGIC = 0x4a514653;
+	
+	/**
+	 * The version of the on-disk format described by this class.
+	 */
+	public static final int VERSION = 7;
+	
+	/**
+	 * The smallest block size supported by the filesystem.
+	 */
+	public static final int MIN_BLOCK_SIZE = 128;
+	
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = MAGIC_OFFSET + 4;
+	private static final int BLOCK_SIZE_OFFSET = VERSION_OFFSET + 4;
+	private static final int BLOCK_COUNT_OFFSET = BLOCK_SIZE_OFFSET + 4;
+	private static final int ROOT_BLOCK_OFFSET = BLOCK_COUNT_OFFSET + 4;
+	private static final int FREE_LIST_START_OFFSET = ROOT_BLOCK_OFFSET + 4;
+	private static final int FREE_LIST_BLOCKS_OFFSET = FREE_LIST_START_OFFSET + 4;
+	private static final int REF_COUNT_START_OFFSET = FREE_LIST_BLOCKS_OFFSET + 4;
+	private static final int REF_COUNT_BLOCKS_OFFSET = REF_COUNT_START_OFFSET + 4;
+	private static final int JOURNAL_START_OFFSET = REF_COUNT_BLOCKS_OFFSET + 4;
+	private static final int JOURNAL_BLOCKS_OFFSET = JOURNAL_START_OFFSET + 4;
+	
+	// Bounds of the journal, which otherwise takes a sixteenth of the device
+	private static final int MIN_JOURNAL_BLOCKS = 8;
+	private static final int MAX_JOURNAL_BLOCKS = 1024;
+	
+	private byte[] block;
+	
+	/**
+	 * constructor. Creates the superblock for a new filesystem, placing the free list
+	 * directly after the superblock, followed by the reference counts, the journal and the root directory.
+	 * 
+	 * @param blockSize the size of each block in bytes, at least <code>MIN_BLOCK_SIZE</code> and a multiple of 8.
+	 * @param blockCount the number of blocks in the filesystem.
+	 * @throws IllegalArgumentException Thrown if the block size is too small or not a multiple of 8.
+	 */
+	public Superblock(int blockSize, int blockCount)
+	{
+		if (blockSize < MIN_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size too small");
+		if (blockSize % 8 != 0)
+			throw new IllegalArgumentException("Block size must be a multiple of 8");
+		
+		block = new byte[blockSize];
+		putInt(MAGIC_OFFSET, MAGIC);
+		putInt(VERSION_OFFSET, VERSION);
+		putInt(BLOCK_SIZE_OFFSET, blockSize);
+		putInt(BLOCK_COUNT_OFFSET, blockCount);
+		
+		int freeListBlocks = FreeListNode.storageBlocksFor(blockSize, blockCount);
+		putInt(FREE_LIST_START_OFFSET, 1);
+		putInt(FREE_LIST_BLOCKS_OFFSET, freeListBlocks);
+		
+		int refCountBlocks = RefCountTable.storageBlocksFor(blockSize, blockCount);
+		putInt(REF_COUNT_START_OFFSET, 1 + freeListBlocks);
+		putInt(REF_COUNT_BLOCKS_OFFSET, refCountBlocks);
+		
+		int journalBlocks = Math.min(MAX_JOURNAL_BLOCKS, Math.max(MIN_JOURNAL_BLOCKS, blockCount / 16));
+		putInt(JOURNAL_START_OFFSET, 1 + freeListBlocks + refCountBlocks);
+		putInt(JOURNAL_BLOCKS_OFFSET, journalBlocks);
+		putInt(ROOT_BLOCK_OFFSET, 1 + freeListBlocks + refCountBlocks + journalBlocks);
+	}
+	
+	/**
+	 * constructor. Creates a <code>Superblock</code> for an existing block.
+	 * 
+	 * @param data byte array holding the first block of the device.
+	 * @throws IllegalArgumentException Exception thrown if <code>data</code> is null, too small
+	 * or does not contain a supported superblock.
+	 */
+	public Superblock(byte[] data)
+	{
+		if (data == null || data.length < MIN_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block too small");
+		
+		block = data;
+		
+		if (getInt(MAGIC_OFFSET) != MAGIC)
+			throw new IllegalArgumentException("Invalid data");
+		
+		if (getInt(VERSION_OFFSET) != VERSION)
+			throw new IllegalArgumentException("Unsupported version");
+	}
+	
+	/**
+	 * Get the block of data represented by this <code>Superblock</code>.
+	 * 
+	 * @return Byte array of the block size of the filesystem.
+	 */
+	public byte[] getBlock()
+	{
+		return block;
+	}
+	
+	/**
+	 * Get the block size the filesystem was formatted with.
+	 * 
+	 * @return The size of a single block in bytes.
+	 */
+	public int getBlockSize()
+	{
+		return getInt(BLOCK_SIZE_OFFSET);
+	}
+	
+	/**
+	 * Get the number of blocks the filesystem was formatted with.
+	 * 
+	 * @return The number of blocks in the filesystem.
+	 */
+	public int getBlockCount()
+	{
+		return getInt(BLOCK_COUNT_OFFSET);
+	}
+	
+	/**
+	 * Get the block holding the root directory.
+	 * 
+	 * @return The block number of the root <code>INode</code>.
+	 */
+	public int getRootBlock()
+	{
+		return getInt(ROOT_BLOCK_OFFSET);
+	}
+	
+	/**
+	 * Get the first of the blocks storing the free list.
+	 * 
+	 * @return The block number of the first free list block.
+	 */
+	public int getFreeListStart()
+	{
+		return getInt(FREE_LIST_START_OFFSET);
+	}
+	
+	/**
+	 * Get the number of consecutive blocks storing the free list.
+	 * 
+	 * @return The number of free list blocks.
+	 */
+	public int getFreeListBlocks()
+	{
+		return getInt(FREE_LIST_BLOCKS_OFFSET);
+	}
+	
+	/**
+	 * Get the first of the blocks storing the reference counts of shared blocks.
+	 * 
+	 * @return The block number of the first reference count block.
+	 */
+	public int getRefCountStart()
+	{
+		return getInt(REF_COUNT_START_OFFSET);
+	}
+	
+	/**
+	 * Get the number of consecutive blocks storing the reference counts of shared blocks.
+	 * 
+	 * @return The number of reference count blocks.
+	 */
+	public int getRefCountBlocks()
+	{
+		return getInt(REF_COUNT_BLOCKS_OFFSET);
+	}
+	
+	/**
+	 * Get the first block of the metadata journal, see {@link JournalBlockDevice}.
+	 * 
+	 * @return The block number of the first journal block.
+	 */
+	public int getJournalStart()
+	{
+		return getInt(JOURNAL_START_OFFSET);
+	}
+	
+	/**
+	 * Get the number of consecutive blocks reserved for the metadata journal.
+	 * 
+	 * @return The number of journal blocks.
+	 */
+	public int getJournalBlocks()
+	{
+		return getInt(JOURNAL_BLOCKS_OFFSET);
+	}
+	
+	/**
+	 * Get the index of the first block free for dynamic use.
+	 * Earlier blocks are reserved for use by the filesystem.
+	 * 
+	 * @return The number of reserved blocks.
+	 */
+	public int getFirstFreeBlock()
+	{
+		return getRootBlock() + 1;
+	}
+	
+	private int getInt(int index)
+	{
+		return (block[index] & 0xff) << 24 |
+				(block[index + 1] & 0xff) << 16 |
+				(block[index + 2] & 0xff) << 8 |
+				(block[index + 3] & 0xff);
+	}
+	
+	private void putInt(int index, int val)
+	{
+		block[index + 0] = (byte) (val >>> 24);
+		block[index + 1] = (byte) (val >>> 16);
+		block[index + 2] = (byte) (val >>> 8);
+		block[index + 3] = (byte) val;
+	}
+}
@@ -1,5 +1,8 @@
 package se.jereq.filesystem;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Start-class for the program.
  * Sets up and runs the systems.
@@ -9,14 +12,49 @@ public class TestShell
 	/**
 	 * main.
 	 * 
-	 * @param args command-line arguments, ignored
+	 * @param args command-line arguments. An optional image file to map as the block device,
+	 * otherwise a memory device is used, optionally followed by the block size and block count
+	 * of the device. Blocks of a mapped image are cached, and written back when the shell quits.
 	 */
 	public static void main(String[] args)
 	{
-		MemoryBlockDevice BlockTest = new MemoryBlockDevice();
+		int blockSize = BlockDevice.BLOCK_SIZE;
+		int blockCount = BlockDevice.BLOCK_COUNT;
+		if (args.length >= 3)
+		{
+			blockSize = Integer.parseInt(args[1]);
+			blockCount = Integer.parseInt(args[2]);
+		}
+		
+		BlockDevice BlockTest;
+		if (args.length > 0)
+		{
+			try
+			{
+				BlockTest = new CachingBlockDevice(new MappedBlockDevice(new File(args[0]), blockSize, blockCount));
+			}
+			catch (IOException ex)
+			{
+				System.out.println("Could not map " + args[0] + ": " + ex.getMessage());
+				return;
+			}
+		}
+		else
+		{
+			BlockTest = new MemoryBlockDevice();
+		}
+		
 		Filesystem FS = new Filesystem(BlockTest);
+		if (args.length > 0)
+		{
+			System.out.println(FS.mount());
+		}
+		
 		Shell Bash = new Shell(FS, null);	// Standard input
 		
 		Bash.start();
+		
+		// Write back anything still cached or waiting in the journal
+		FS.sync();
 	}
 }